@@ -0,0 +1,72 @@
+package core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What handing lines over from the selector thread to the {@link Dispatcher} costs: the benchmark thread
+ * plays the selector and dispatches a burst of trivial tasks spread over a number of targets,
+ * then waits until the lanes have run them all. Measured per task.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandoffBenchmark {
+    private static final int BURST = 1024;
+
+    /** Channels and queries the burst is spread over, 1 keeps every task on one lane */
+    @Param({"1", "64"})
+    public int targets;
+
+    /** Lanes of the dispatcher, 0 for as many as it has by default */
+    @Param({"0"})
+    public int lanes;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private final Runnable task = done::incrementAndGet;
+    private Dispatcher dispatcher;
+    private int[] keys;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dispatcher = lanes > 0 ? new Dispatcher(lanes, Dispatcher.DEFAULT_LANE_CAPACITY) : new Dispatcher();
+        keys = new int[targets];
+        for (int i = 0; i < targets; i++)
+            keys[i] = 31 * hashCode() + IrcLine.key("#channel" + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        dispatcher.shutdown(2, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int dispatch() {
+        done.set(0);
+        for (int i = 0; i < BURST; i++)
+            dispatcher.dispatch(keys[i % keys.length], task);
+        int finished;
+        while ((finished = done.get()) < BURST)
+            Thread.onSpinWait();
+        return finished;
+    }
+}
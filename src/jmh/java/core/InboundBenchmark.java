@@ -0,0 +1,103 @@
+package core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * What a received line costs: parsing it alone, and interpreting it as the dispatcher does
+ * (parsing again, building the message and passing it on to the listeners, of which there are none here).
+ * The handler is connected to a socket nobody reads from, and never started.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InboundBenchmark {
+    /** Channel entries after which the list is started over, so that it doesn't grow for the whole run */
+    private static final int LIST_RESTART = 4096;
+    /** Kept, a logger nobody refers to may be collected together with its level */
+    private static final Logger LOGGER = Logger.getLogger("core");
+
+    private static final String[] LINES = {
+            // privmsg
+            ":nick!~user@host.example.org PRIVMSG #channel :Did anybody else see the release notes for the new version?",
+            // numeric
+            ":irc.example.org 372 bencher :- Please read the rules of the network before you join any channel.",
+            // tagged
+            "@time=2021-05-12T18:20:31.123Z;msgid=63E1033A051D4B41B1AB1FA3CF4B243E;account=nick :nick!~user@host.example.org "
+                    + "PRIVMSG #channel :Did anybody else see the release notes for the new version?",
+            // channel-entry
+            ":irc.example.org 322 bencher #channel 1234 :[+nt] A channel about nothing in particular, but a lot of it",
+    };
+
+    @Param({"privmsg", "numeric", "tagged", "channel-entry"})
+    public String kind;
+
+    private final IrcLine parser = new IrcLine();
+    private ServerSocket server;
+    private ConnectionHandler handler;
+    private String line;
+    private int listed = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        line = LINES[switch (kind) {
+            case "privmsg" -> 0;
+            case "numeric" -> 1;
+            case "tagged" -> 2;
+            case "channel-entry" -> 3;
+            default -> throw new IllegalArgumentException(kind);
+        }];
+        // The handler's logging would measure the console instead
+        LOGGER.setLevel(java.util.logging.Level.OFF);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        handler = new ConnectionHandler("localhost", server.getLocalPort(), "bencher");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        handler.setAutoReconnect(false);
+        handler.disconnect();
+        server.close();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        parser.parse(line);
+        // What every line is asked on the selector thread before it's dispatched
+        blackhole.consume(parser.isNumeric() ? parser.numeric() : parser.command().length());
+        blackhole.consume(parser.paramCount() > 0 && parser.isChannel(0) ? parser.paramKey(0) : parser.nickKey());
+        blackhole.consume(parser.trailing());
+        if (parser.hasTags())
+            blackhole.consume(parser.tag("batch"));
+    }
+
+    @Benchmark
+    public void interpret() {
+        if (kind.equals("channel-entry") && ++listed == LIST_RESTART) {
+            listed = 0;
+            handler.interpretServerCommand(":irc.example.org 321 bencher Channel :Users  Name");
+        }
+        handler.interpretServerCommand(line);
+    }
+}
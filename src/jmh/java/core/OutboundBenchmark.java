@@ -0,0 +1,72 @@
+package core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a message the user sends costs before it reaches the socket: splitting it into lines,
+ * queueing them and encoding them into the write buffer, the way {@link ConnectionHandler} does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class OutboundBenchmark {
+    /** short fits into one line, long takes four, unicode is short but two or three bytes a character */
+    @Param({"short", "long", "unicode"})
+    public String text;
+
+    private final OutboundQueue queue = new OutboundQueue();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(16 * 1024);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private String message;
+
+    @Setup
+    public void setUp() {
+        message = switch (text) {
+            case "short" -> "Did anybody else see the release notes for the new version?";
+            case "long" -> "Did anybody else see the release notes for the new version? ".repeat(24);
+            case "unicode" -> "\u0425\u0442\u043e-\u043d\u0435\u0431\u0443\u0434\u044c \u0431\u0430\u0447\u0438\u0432 \u043d\u043e\u0442\u0430\u0442\u043a\u0438 \u0434\u043e \u043d\u043e\u0432\u043e\u0457 \u0432\u0435\u0440\u0441\u0456\u0457? \u65b0\u7248\u672c\u7684\u53d1\u884c\u8bf4\u660e\u6709\u4eba\u770b\u8fc7\u5417\uff1f";
+            default -> throw new IllegalArgumentException(text);
+        };
+    }
+
+    @Benchmark
+    public Object split() {
+        return MessageSplitter.split("PRIVMSG", "#channel", "bencher", message);
+    }
+
+    @Benchmark
+    public void splitQueueEncode(Blackhole blackhole) {
+        var lines = MessageSplitter.split("PRIVMSG", "#channel", "bencher", message);
+        queue.offerAll(lines);
+        writeBuffer.clear();
+        String line;
+        while ((line = queue.pollPriority()) != null || (line = queue.pollNormal()) != null) {
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(line + "\r\n"), writeBuffer, true);
+        }
+        blackhole.consume(writeBuffer.position());
+    }
+}
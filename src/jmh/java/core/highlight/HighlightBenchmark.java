@@ -0,0 +1,79 @@
+package core.highlight;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What checking a line for highlights costs with a number of keywords: with the {@link Highlighter},
+ * and by looking for each keyword in turn, as the client used to for the nick.
+ * Most lines mention nobody, so the lines here don't, and both have to look at the whole line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HighlightBenchmark {
+    private static final String[] LINES = {
+            "Did anybody else see the release notes for the new version?",
+            "yes, the changelog says they rewrote the parser and the config format is different now",
+            "I upgraded last night and my old settings still load fine, no idea what they changed",
+            "Please read the rules of the network before you join any channel, thanks!",
+    };
+
+    @Param({"1", "100", "1000"})
+    public int keywords;
+
+    private Highlighter highlighter;
+    private String[] folded;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        var random = new Random(42);
+        var words = new ArrayList<String>(keywords);
+        while (words.size() < keywords - 1) {
+            var word = new StringBuilder("kw");
+            for (int i = 0; i < 6; i++)
+                word.append((char) ('a' + random.nextInt(26)));
+            words.add(word.toString());
+        }
+        highlighter = new Highlighter("bencher", words, List.of());
+        words.add("bencher");
+        folded = words.stream().map(String::toLowerCase).toArray(String[]::new);
+    }
+
+    private String nextLine() {
+        return LINES[next++ & (LINES.length - 1)];
+    }
+
+    @Benchmark
+    public boolean automaton() {
+        return highlighter.matches(nextLine());
+    }
+
+    @Benchmark
+    public boolean eachKeyword() {
+        final String line = nextLine().toLowerCase();
+        for (var keyword : folded) {
+            if (line.contains(keyword))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,285 @@
+package loadtest;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An IRC server on the loopback interface, in the same process as the client, which speaks just enough
+ * of the protocol to exercise a {@link core.ConnectionHandler}: CAP (offering nothing), registration,
+ * PING, JOIN with a NAMES reply, PRIVMSG and NOTICE (counted), LIST and QUIT, in plain text or over TLS.
+ * Each client gets a {@link Session}, which can send it a {@link Storm} of messages.
+ * <p>
+ * Every stormed line carries the {@link System#nanoTime()} at which it was written, so the client side
+ * can tell how long the line took from the server to the event. Both sides share the clock of the process.
+ */
+public final class FakeIrcServer implements Closeable {
+    public static final String NAME = "fake.server";
+    /** Marks the text of stormed lines: {@code LT <sequence> <nanoTime> <padding>} */
+    public static final String MARKER = "LT ";
+
+    private final ServerSocket serverSocket;
+    private final int namesSize;
+    private final int listSize;
+    private final LinkedBlockingQueue<Session> sessions = new LinkedBlockingQueue<>();
+    private final Thread acceptor;
+
+    /**
+     * Starts listening on a free port
+     *
+     * @param namesSize members of every channel besides the client, sent in the NAMES reply of a JOIN
+     * @param listSize  entries of the LIST reply
+     */
+    public FakeIrcServer(int namesSize, int listSize) throws IOException {
+        this(namesSize, listSize, null);
+    }
+
+    /**
+     * Starts listening on a free port
+     *
+     * @param namesSize members of every channel besides the client, sent in the NAMES reply of a JOIN
+     * @param listSize  entries of the LIST reply
+     * @param tls       context with the certificate to present, null for plain text
+     */
+    public FakeIrcServer(int namesSize, int listSize, SSLContext tls) throws IOException {
+        this.namesSize = namesSize;
+        this.listSize = listSize;
+        final var loopback = InetAddress.getLoopbackAddress();
+        serverSocket = tls == null ? new ServerSocket(0, 50, loopback)
+                : tls.getServerSocketFactory().createServerSocket(0, 50, loopback);
+        acceptor = new Thread(this::acceptLoop, "FakeIrcServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the next client which has connected, or null if none has within the time
+     */
+    public Session awaitSession(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        return sessions.poll(timeout, unit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                var session = new Session(serverSocket.accept());
+                sessions.add(session);
+                var reader = new Thread(session::readLoop, "FakeIrcServer-session");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A storm of PRIVMSG lines, with a NOTICE now and then, spread over the channels the client has joined
+     *
+     * @param messages     lines to send
+     * @param ratePerSecond lines per second, 0 to send them as fast as the socket takes them
+     * @param textBytes    length of the text of a line, at least what the marker needs
+     * @param noticeEvery  every this many lines is a NOTICE, 0 for none
+     */
+    public record Storm(int messages, int ratePerSecond, int textBytes, int noticeEvery) {
+    }
+
+    /**
+     * One connected client
+     */
+    public final class Session implements Closeable {
+        private static final int SENDERS = 64;
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Set<String> channels = ConcurrentHashMap.newKeySet();
+        private final CountDownLatch registered = new CountDownLatch(1);
+        private final AtomicLong received = new AtomicLong();
+        private volatile String nick = "*";
+        private long sequence = 0; // Guarded by this
+
+        private Session(@NotNull Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+        }
+
+        public String getNick() {
+            return nick;
+        }
+
+        /**
+         * @return false if the client hasn't registered within the time
+         */
+        public boolean awaitRegistered(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            return registered.await(timeout, unit);
+        }
+
+        /**
+         * @return channels the client has joined, in no particular order
+         */
+        public Set<String> getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return PRIVMSG and NOTICE lines the client has sent
+         */
+        public long getReceivedMessages() {
+            return received.get();
+        }
+
+        /**
+         * Sends the storm and returns once every line is written
+         */
+        public void storm(@NotNull Storm storm) throws IOException {
+            final List<String> targets = new ArrayList<>(channels);
+            if (targets.isEmpty())
+                throw new IllegalStateException("The client hasn't joined any channel");
+            final String padding = "x".repeat(Math.max(0, storm.textBytes() - 40));
+            final long start = System.nanoTime();
+            final long interval = storm.ratePerSecond() > 0 ? TimeUnit.SECONDS.toNanos(1) / storm.ratePerSecond() : 0;
+            for (int i = 0; i < storm.messages(); i++) {
+                if (interval > 0) {
+                    final long due = start + i * interval;
+                    long now = System.nanoTime();
+                    if (due > now) {
+                        flush(); // Whatever is written before the pause must not wait in the buffer
+                        while ((now = System.nanoTime()) < due)
+                            LockSupport.parkNanos(Math.min(due - now, 200_000));
+                    }
+                }
+                final String command = storm.noticeEvery() > 0 && i % storm.noticeEvery() == storm.noticeEvery() - 1
+                        ? "NOTICE" : "PRIVMSG";
+                final String target = targets.get(i % targets.size());
+                synchronized (this) {
+                    write(":sender%d!user@fake.host %s %s :%s%d %d %s".formatted(i % SENDERS, command, target,
+                            MARKER, sequence++, System.nanoTime(), padding));
+                }
+            }
+            flush();
+        }
+
+        /**
+         * Sends a line as it is
+         */
+        public synchronized void send(@NotNull String line) throws IOException {
+            write(line);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private void write(@NotNull String line) throws IOException {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\r');
+            out.write('\n');
+        }
+
+        private synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        private void readLoop() {
+            try (socket; var in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!handle(line))
+                        return;
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed())
+                    System.err.println("Fake server: " + e);
+            }
+        }
+
+        /**
+         * @return false once the client has quit
+         */
+        private synchronized boolean handle(@NotNull String line) throws IOException {
+            final int space = line.indexOf(' ');
+            final String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+            final String rest = space < 0 ? "" : line.substring(space + 1);
+            switch (command) {
+                case "CAP" -> {
+                    if (rest.startsWith("LS"))
+                        write(":" + NAME + " CAP * LS :");
+                }
+                case "NICK" -> nick = rest.strip();
+                case "USER" -> {
+                    write(":%s 001 %s :Welcome to the fake network %s".formatted(NAME, nick, nick));
+                    write(":%s 005 %s CHANTYPES=# PREFIX=(ov)@+ CASEMAPPING=rfc1459 :are supported by this server".formatted(NAME, nick));
+                    write(":%s 376 %s :End of /MOTD command.".formatted(NAME, nick));
+                    registered.countDown();
+                }
+                case "PING" -> write(":%s PONG %s %s".formatted(NAME, NAME, rest));
+                case "JOIN" -> {
+                    for (var channel : rest.split(" ")[0].split(","))
+                        join(channel);
+                }
+                case "PRIVMSG", "NOTICE" -> received.incrementAndGet();
+                case "LIST" -> {
+                    write(":%s 321 %s Channel :Users  Name".formatted(NAME, nick));
+                    for (int i = 0; i < listSize; i++)
+                        write(":%s 322 %s #list%d %d :[+nt] Channel number %d of the fake network".formatted(NAME, nick, i, i % 500, i));
+                    write(":%s 323 %s :End of /LIST".formatted(NAME, nick));
+                }
+                case "QUIT" -> {
+                    write("ERROR :Closing link");
+                    out.flush();
+                    return false;
+                }
+                default -> write(":%s 421 %s %s :Unknown command".formatted(NAME, nick, command));
+            }
+            out.flush();
+            return true;
+        }
+
+        private void join(@NotNull String channel) throws IOException {
+            channels.add(channel);
+            write(":%s!user@fake.host JOIN %s".formatted(nick, channel));
+            var names = new StringBuilder("@").append(nick);
+            for (int i = 0; i < namesSize; i++) {
+                if (names.length() > 400) {
+                    write(":%s 353 %s = %s :%s".formatted(NAME, nick, channel, names));
+                    names.setLength(0);
+                }
+                names.append(names.length() == 0 ? "" : " ").append(i % 50 == 0 ? "+" : "").append("member").append(i);
+            }
+            write(":%s 353 %s = %s :%s".formatted(NAME, nick, channel, names));
+            write(":%s 366 %s %s :End of /NAMES list.".formatted(NAME, nick, channel));
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package loadtest;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import core.ConnectionHandler;
+import core.ConnectionListener;
+import core.ExecutionMode;
+import core.TlsConfig;
+import core.records.ChannelInfo;
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drives a {@link ConnectionHandler} against a {@link FakeIrcServer} and reports how the receive path keeps up:
+ * time to register, to join the channels and to receive the channel list, then for a storm of messages
+ * the latency from the server writing a line to the client's event (percentiles), the sustained rate,
+ * GC pauses and threads. Then the server drops the first connection a few times and it comes back.
+ * With {@code --tls 1} the server presents a {@link SelfSignedCertificate} which the client trusts, and
+ * the report adds how long the handshakes took, the full ones apart from those which resumed a session.
+ * With more than one connection the storm is split evenly between them,
+ * which compares the thread modes of {@link core.ExecutionMode} ({@code gradle loadTest -Pthreads=virtual}).
+ * <pre>
+ * gradle loadTest -Pargs="--messages 500000 --rate 50000 --max-p99-ms 20"
+ * </pre>
+ * Options, with their defaults:
+ * <pre>
+ * --messages 200000   lines of the measured storm
+ * --warmup 50000      lines sent first and not measured
+ * --rate 0            lines per second over every connection, 0 for as fast as possible
+ * --connections 1     connections to the server, each joining the channels
+ * --channels 10       channels joined, the storm is spread over them
+ * --names 1000        members of every channel
+ * --list 20000        entries of the channel list, asked for by the first connection
+ * --text 100          bytes of text per line
+ * --notice-every 10   every this many lines is a NOTICE, 0 for none
+ * --max-p99-ms 0      fail if the 99th percentile latency is higher, 0 to not check
+ * --min-rate 0        fail if fewer lines per second get through, 0 to not check
+ * --tls 0             1 to connect over TLS
+ * --reconnects 3      times the server drops the first connection after the storm
+ * </pre>
+ * The exit status is 1 if a limit was broken, 2 if the client didn't get everything in time.
+ */
+public final class LoadTest {
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final Map<String, Long> DEFAULTS = Map.ofEntries(
+            Map.entry("messages", 200_000L),
+            Map.entry("warmup", 50_000L),
+            Map.entry("rate", 0L),
+            Map.entry("channels", 10L),
+            Map.entry("names", 1000L),
+            Map.entry("list", 20_000L),
+            Map.entry("connections", 1L),
+            Map.entry("text", 100L),
+            Map.entry("notice-every", 10L),
+            Map.entry("max-p99-ms", 0L),
+            Map.entry("min-rate", 0L),
+            Map.entry("tls", 0L),
+            Map.entry("reconnects", 3L));
+
+    private final Map<String, Long> options;
+    private final PrintStream report;
+    private final Recorder recorder = new Recorder();
+    private final AtomicInteger welcomed = new AtomicInteger();
+    private final Set<String> joinedChannels = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger listed = new AtomicInteger();
+    private final CountDownLatch listEnded = new CountDownLatch(1);
+    private final AtomicLong gcPauses = new AtomicLong();
+    private final AtomicLong gcPauseMillis = new AtomicLong();
+    private final AtomicLong gcMaxPauseMillis = new AtomicLong();
+    private final List<Long> fullHandshakes = new ArrayList<>();
+    private final List<Long> resumedHandshakes = new ArrayList<>();
+
+    private LoadTest(@NotNull Map<String, Long> options, @NotNull PrintStream report) {
+        this.options = options;
+        this.report = report;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<>(DEFAULTS);
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String name = args[i].replaceFirst("^--", "");
+            if (!DEFAULTS.containsKey(name)) {
+                System.err.println("Unknown option " + args[i] + ", known ones: " + DEFAULTS.keySet());
+                System.exit(64);
+            }
+            options.put(name, Long.parseLong(args[i + 1]));
+        }
+        final int status = new LoadTest(options, System.out).run();
+        System.exit(status);
+    }
+
+    private int option(@NotNull String name) {
+        return Math.toIntExact(options.get(name));
+    }
+
+    private int run() throws Exception {
+        final int messages = option("messages");
+        final int warmup = option("warmup");
+        final int channels = option("channels");
+        final int connectionCount = option("connections");
+        report.printf("Load test: %s, %s threads on Java %s%n", new TreeMap<>(options),
+                ExecutionMode.current().name().toLowerCase(), Runtime.version());
+        listenToGc();
+
+        final boolean tls = option("tls") != 0;
+        SSLContext serverTls = null;
+        if (tls) {
+            var certificate = SelfSignedCertificate.generate();
+            certificate.trustInThisJvm();
+            serverTls = certificate.serverContext();
+        }
+        try (var server = new FakeIrcServer(option("names"), option("list"), serverTls)) {
+            // Registration
+            long start = System.nanoTime();
+            var connections = new ArrayList<ConnectionHandler>();
+            var sessions = new ArrayList<FakeIrcServer.Session>();
+            for (int i = 0; i < connectionCount; i++) {
+                var connection = new ConnectionHandler("localhost", server.getPort(), "loadtester" + i, "",
+                        tls ? TlsConfig.DEFAULT : null);
+                connection.addListener(new Listener());
+                connection.start();
+                connections.add(connection);
+                var session = server.awaitSession(10, TimeUnit.SECONDS);
+                if (session == null) {
+                    report.println("Connection " + i + " hasn't reached the server");
+                    return 2;
+                }
+                sessions.add(session);
+            }
+            if (!waitFor(() -> welcomed.get() >= connectionCount, 30)) {
+                report.println("Only " + welcomed.get() + " connections have registered");
+                return 2;
+            }
+            report.printf("Registered %d connections in %.1f ms%n", connectionCount, millisSince(start));
+            for (var connection : connections)
+                recordHandshake(connection);
+
+            // Channels with their member lists
+            start = System.nanoTime();
+            for (var connection : connections) {
+                for (int i = 0; i < channels; i++)
+                    connection.sendCommand(new String[]{"join", "#load" + i});
+            }
+            if (!waitFor(() -> joinedChannels.size() >= channels * connectionCount, 60)) {
+                report.println("Only " + joinedChannels.size() + " channels were joined");
+                return 2;
+            }
+            var connection = connections.get(0);
+            report.printf("Joined %d channels of %d members in %.1f ms%n", channels * connectionCount,
+                    connection.getState().getMemberCount("#load0"), millisSince(start));
+
+            // Channel list
+            start = System.nanoTime();
+            connection.sendCommand(new String[]{"list"});
+            if (!listEnded.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                report.println("The channel list hasn't ended");
+                return 2;
+            }
+            report.printf("Listed %d channels in %.1f ms%n", listed.get(), millisSince(start));
+
+            // Storms: the warm-up lets the JIT settle, only the second one is measured
+            final var storm = new FakeIrcServer.Storm(0, option("rate"), option("text"), option("notice-every"));
+            final long heapBefore = usedHeapAfterGc();
+            if (warmup > 0 && !storm(sessions, storm, warmup, false)) {
+                report.println("The client hasn't received the warm-up storm");
+                return 2;
+            }
+            gcPauses.set(0);
+            gcPauseMillis.set(0);
+            gcMaxPauseMillis.set(0);
+            final var threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            final long gcBefore = collectionMillis();
+            start = System.nanoTime();
+            if (!storm(sessions, storm, messages, true)) {
+                report.printf("The client has received only %d of %d lines%n", recorder.count(), messages);
+                return 2;
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            final double rate = messages / seconds;
+
+            var latencies = recorder.sorted();
+            report.printf("Storm of %d lines over %d channels in %.2f s: %.0f lines/s%n", messages, channels, seconds, rate);
+            report.printf("Latency, server write to client event: p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n",
+                    format(percentile(latencies, 50)), format(percentile(latencies, 90)), format(percentile(latencies, 99)),
+                    format(percentile(latencies, 99.9)), format(latencies[latencies.length - 1]));
+            report.printf("GC: %d pauses, %d ms in total, longest %d ms (%d ms in all collectors)%n", gcPauses.get(),
+                    gcPauseMillis.get(), gcMaxPauseMillis.get(), collectionMillis() - gcBefore);
+            // Virtual threads aren't among the live ones, they only take carrier threads while they run
+            report.printf("Threads: %d live platform threads, peak %d; the client's dispatcher %d, the fake server %d%n",
+                    threads.getThreadCount(), threads.getPeakThreadCount(), countThreads("Dispatcher"),
+                    countThreads("FakeIrcServer"));
+            final var heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            report.printf("Heap: %d MB used of %d MB, %.1f MB retained by the connections after a GC%n",
+                    heap.getUsed() >> 20, heap.getCommitted() >> 20, (usedHeapAfterGc() - heapBefore) / 1e6);
+
+            // Reconnects: each waits for the backoff of the client, so only the handshakes are worth timing
+            final int reconnects = option("reconnects");
+            for (int i = 0; i < reconnects; i++) {
+                final int before = welcomed.get();
+                sessions.get(0).close();
+                var session = server.awaitSession(10, TimeUnit.SECONDS);
+                if (session == null || !waitFor(() -> welcomed.get() > before, 30)) {
+                    report.println("The connection hasn't come back after " + i + " reconnects");
+                    return 2;
+                }
+                sessions.set(0, session);
+                recordHandshake(connection);
+            }
+            if (reconnects > 0)
+                report.printf("Reconnected %d times%n", reconnects);
+            if (tls) {
+                report.printf("TLS handshakes: %s; %s%n", summarize("full", fullHandshakes),
+                        summarize("resumed", resumedHandshakes));
+            }
+
+            for (var each : connections) {
+                each.setAutoReconnect(false);
+                each.disconnect();
+            }
+
+            int status = 0;
+            final long maxP99 = options.get("max-p99-ms");
+            if (maxP99 > 0 && percentile(latencies, 99) > TimeUnit.MILLISECONDS.toNanos(maxP99)) {
+                report.printf("FAILED: p99 latency is above %d ms%n", maxP99);
+                status = 1;
+            }
+            final long minRate = options.get("min-rate");
+            if (minRate > 0 && rate < minRate) {
+                report.printf("FAILED: fewer than %d lines/s%n", minRate);
+                status = 1;
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Sends a storm and waits until the client has had an event for every line of it
+     *
+     * @return false if it hasn't in time
+     */
+    private boolean storm(@NotNull List<FakeIrcServer.Session> sessions, @NotNull FakeIrcServer.Storm storm,
+                          int messages, boolean measured) throws Exception {
+        recorder.reset(measured ? messages : 0);
+        // Every session sends its share at its share of the rate, all at the same time
+        var senders = new ArrayList<Thread>();
+        for (int i = 0; i < sessions.size(); i++) {
+            final var session = sessions.get(i);
+            final var share = new FakeIrcServer.Storm(messages / sessions.size() + (i < messages % sessions.size() ? 1 : 0),
+                    storm.ratePerSecond() / sessions.size(), storm.textBytes(), storm.noticeEvery());
+            var sender = new Thread(() -> {
+                try {
+                    session.storm(share);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "Storm-" + i);
+            sender.start();
+            senders.add(sender);
+        }
+        for (var sender : senders)
+            sender.join();
+        return waitFor(() -> recorder.count() >= messages, TIMEOUT_SECONDS);
+    }
+
+    private void recordHandshake(@NotNull ConnectionHandler connection) {
+        final long nanos = connection.getTlsHandshakeNanos();
+        if (nanos >= 0)
+            (connection.isTlsSessionResumed() ? resumedHandshakes : fullHandshakes).add(nanos);
+    }
+
+    private static String summarize(@NotNull String kind, @NotNull List<Long> handshakes) {
+        if (handshakes.isEmpty())
+            return "0 " + kind;
+        var sorted = handshakes.stream().mapToLong(Long::longValue).sorted().toArray();
+        return "%d %s, p50 %s  max %s".formatted(sorted.length, kind, format(percentile(sorted, 50)),
+                format(sorted[sorted.length - 1]));
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static boolean waitFor(@NotNull BooleanSupplier condition, long seconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline)
+                return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private void listenToGc() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter emitter))
+                continue;
+            emitter.addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                    return;
+                var info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // Concurrent cycles run beside the application, only the stop-the-world ones are pauses
+                if (!info.getGcAction().contains("minor") && !info.getGcAction().contains("major"))
+                    return;
+                final long duration = info.getGcInfo().getDuration();
+                gcPauses.incrementAndGet();
+                gcPauseMillis.addAndGet(duration);
+                gcMaxPauseMillis.accumulateAndGet(duration, Math::max);
+            }, null, null);
+        }
+    }
+
+    private static long collectionMillis() {
+        long total = 0;
+        for (var collector : ManagementFactory.getGarbageCollectorMXBeans())
+            total += Math.max(0, collector.getCollectionTime());
+        return total;
+    }
+
+    private static long countThreads(@NotNull String prefix) {
+        return Thread.getAllStackTraces().keySet().stream().filter(thread -> thread.getName().startsWith(prefix)).count();
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0)
+            return 0;
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static String format(long nanos) {
+        return nanos < 1_000_000 ? "%d us".formatted(nanos / 1000) : "%.1f ms".formatted(nanos / 1e6);
+    }
+
+    /**
+     * Latencies of the stormed lines, recorded by the dispatcher's threads into a preallocated array
+     */
+    private static final class Recorder {
+        private final AtomicInteger count = new AtomicInteger();
+        private volatile long[] latencies = new long[0];
+
+        void reset(int capacity) {
+            latencies = new long[capacity];
+            count.set(0);
+        }
+
+        void record(long latency) {
+            final int index = count.getAndIncrement();
+            final long[] into = latencies;
+            if (index < into.length)
+                into[index] = latency;
+        }
+
+        int count() {
+            return count.get();
+        }
+
+        long[] sorted() {
+            var copy = Arrays.copyOf(latencies, Math.min(count.get(), latencies.length));
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+
+    private final class Listener implements ConnectionListener {
+        @Override
+        public void onMessage(@NotNull ConnectionHandler connection, @NotNull Message message) {
+            final long now = System.nanoTime();
+            final String text = message.text();
+            if (text.startsWith(FakeIrcServer.MARKER)) {
+                // LT <sequence> <nanoTime> <padding>
+                final int timeStart = text.indexOf(' ', FakeIrcServer.MARKER.length()) + 1;
+                final int timeEnd = text.indexOf(' ', timeStart);
+                recorder.record(now - Long.parseLong(text, timeStart, timeEnd < 0 ? text.length() : timeEnd, 10));
+            } else if (message.kind() == Message.Kind.NOTICE && "SERVER".equals(message.sender())
+                    && message.text().startsWith("Welcome")) {
+                welcomed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onMembersChanged(@NotNull ConnectionHandler connection, @NotNull String channel) {
+            // The channel counts once its NAMES reply is in
+            if (connection.getState().getMemberCount(channel) > option("names"))
+                joinedChannels.add(connection.getNick() + channel);
+        }
+
+        @Override
+        public void onChannelInfo(@NotNull ConnectionHandler connection, @NotNull ChannelInfo info) {
+            listed.incrementAndGet();
+        }
+
+        @Override
+        public void onChannelListEnded(@NotNull ConnectionHandler connection, int count) {
+            listEnded.countDown();
+        }
+    }
+}
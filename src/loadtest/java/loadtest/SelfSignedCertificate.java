@@ -0,0 +1,89 @@
+package loadtest;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * A certificate for localhost signed by its own key, for the {@link FakeIrcServer} to speak TLS with.
+ * The JDK's keytool makes it into a temporary PKCS#12 key store, beside which a second store holds just
+ * the certificate for the client to trust. Both are deleted when the JVM exits.
+ */
+final class SelfSignedCertificate {
+    private static final String ALIAS = "fake.server";
+    private static final String PASSWORD = "loadtest";
+
+    private final KeyStore keyStore;
+    private final Path trustStore;
+
+    private SelfSignedCertificate(@NotNull KeyStore keyStore, @NotNull Path trustStore) {
+        this.keyStore = keyStore;
+        this.trustStore = trustStore;
+    }
+
+    /**
+     * Makes a new RSA key and certificate, valid for localhost and 127.0.0.1 for two days
+     */
+    static SelfSignedCertificate generate() throws IOException, GeneralSecurityException, InterruptedException {
+        var directory = Files.createTempDirectory("loadtest-tls");
+        directory.toFile().deleteOnExit();
+        var keyFile = directory.resolve("server.p12");
+        var trustFile = directory.resolve("trust.p12");
+        // Files are deleted in the reverse order, before their directory
+        keyFile.toFile().deleteOnExit();
+        trustFile.toFile().deleteOnExit();
+
+        var keytool = Path.of(System.getProperty("java.home"), "bin", "keytool");
+        var process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", ALIAS,
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyFile.toString(), "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        final String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0)
+            throw new IOException("keytool has failed: " + output.strip());
+
+        var keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyFile)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        var trusted = KeyStore.getInstance("PKCS12");
+        trusted.load(null, null);
+        trusted.setCertificateEntry(ALIAS, keyStore.getCertificate(ALIAS));
+        try (OutputStream out = Files.newOutputStream(trustFile)) {
+            trusted.store(out, PASSWORD.toCharArray());
+        }
+        return new SelfSignedCertificate(keyStore, trustFile);
+    }
+
+    /**
+     * @return a context for server sockets which present the certificate
+     */
+    SSLContext serverContext() throws GeneralSecurityException {
+        var keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+        var context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Makes the certificate the only one the JVM's default trust store has.
+     * Must be called before the first TLS connection, which reads the trust store.
+     */
+    void trustInThisJvm() {
+        System.setProperty("javax.net.ssl.trustStore", trustStore.toString());
+        System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+        System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+    }
+}
@@ -1,6 +1,8 @@
 package core;
 
 import core.controller.Controller;
+import core.highlight.HighlightSettings;
+import core.history.ChatLog;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
@@ -14,13 +16,16 @@ import javafx.stage.Stage;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static java.util.logging.Logger.getLogger;
 
@@ -30,60 +35,138 @@ public class App extends Application {
     public static final int DEFAULT_WIDTH = 800;
     public static final int DEFAULT_HEIGHT = 600;
     public static final String FXML_PATH = "/fxml/";
+    /** How many lines the message list keeps, can be changed with -Dirc.scrollback=N */
+    public static final int SCROLLBACK_LIMIT = Math.max(1, Integer.getInteger("irc.scrollback", 5000));
+    /** Where the chat log is kept, can be changed with -Dirc.logs=DIR */
+    public static final Path LOG_DIRECTORY = Path.of(System.getProperty("irc.logs",
+            Path.of(System.getProperty("user.home"), ".irc-client", "logs").toString()));
+    /** Keywords and rules to highlight messages on, can be changed with -Dirc.highlights=FILE */
+    public static final Path HIGHLIGHTS_FILE = Path.of(System.getProperty("irc.highlights",
+            Path.of(System.getProperty("user.home"), ".irc-client", "highlights.txt").toString()));
+    /** Rules of lines to ignore, can be changed with -Dirc.ignores=FILE */
+    public static final Path IGNORES_FILE = Path.of(System.getProperty("irc.ignores",
+            Path.of(System.getProperty("user.home"), ".irc-client", "ignores.txt").toString()));
+    public static final String TITLE = "IRC Protocol Demo";
     public static final List<String> ROOT_NAMES = List.of("start", "main");
     public static final boolean DEBUG = false;
     public static final Level LOG_LEVEL = DEBUG ? Level.FINEST : Level.INFO;
+    /** Quits once every root is loaded after the first frame, so that a class data sharing archive can be recorded */
+    private static final boolean EXIT_AFTER_STARTUP = Boolean.getBoolean("irc.exitAfterStartup");
 
+    /** Loggers are only weakly referenced, this one keeps the level of every core logger */
+    private static final Logger coreLogger = getLogger("core");
     private static final BooleanProperty running = new SimpleBooleanProperty(true);
-    private static final HashMap<String, Parent> roots = new HashMap<>();
-    private static final HashMap<String, Controller> rootControllers = new HashMap<>();
+    /** Loaded or being loaded, by name */
+    private static final ConcurrentHashMap<String, CompletableFuture<Root>> roots = new ConcurrentHashMap<>();
     private static String currentRoot;
     private static Stage primaryStage;
+    private static ChatLog chatLog = null;
+    private static HighlightSettings highlights = null;
+    private static IgnoreList ignores = null;
+    /** Highlights since the window last had the focus, used on the FX thread */
+    private static int missedHighlights = 0;
+    private static long initStartedAt;
+    private static boolean firstFrameShown = false;
 
+    /**
+     * Loads only the start root, which the first frame needs; the others are loaded
+     * in the background once it's shown, or right away if they're needed earlier
+     */
     @Override
     public void init() throws Exception {
-        var threadPool = Executors.newCachedThreadPool();
-        var logger = getLogger("core.App");
-        logger.setLevel(LOG_LEVEL);
-
-        // Loading the roots in multiple threads
-        logger.fine("Loading the roots...");
-        // Map all the root names to a runnable, and add each one of those to the thread pool
-        ROOT_NAMES.stream().<Runnable>map(name -> () -> {
-            try {
-                var rootPath = FXML_PATH + name + ".fxml";
-                var rootURL = getClass().getResource(rootPath);
-                roots.put(name, FXMLLoader.load(Objects.requireNonNull(rootURL)));
-            } catch (NullPointerException | IOException e) {
-                e.printStackTrace();
-            }
-        }).forEach(threadPool::submit);
+        initStartedAt = System.nanoTime();
+        coreLogger.setLevel(LOG_LEVEL);
+        getLogger("core.App").fine("Loading the start root...");
+        root("start");
+    }
 
-        threadPool.shutdown();
-        if (!threadPool.awaitTermination(10, TimeUnit.SECONDS))
-            throw new TimeoutException("Root loading time out");
+    /**
+     * @return the root of the name, loaded on a background thread the first time it is asked for;
+     * waits until it is loaded
+     */
+    private static Root root(@NotNull String name) {
+        return load(name).join();
+    }
 
-        ROOT_NAMES.forEach(name -> {
-            String className = Character.toUpperCase(name.charAt(0)) + name.substring(1) + "Controller";
-            try {
-                var clazz = Class.forName(Controller.class.getPackageName() + "." + className);
-                var instance = (Controller) clazz.getMethod("getInstance").invoke(null);
-                rootControllers.put(name, instance);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+    private static CompletableFuture<Root> load(@NotNull String name) {
+        return roots.computeIfAbsent(name, key -> CompletableFuture.supplyAsync(() -> loadRoot(key),
+                task -> ExecutionMode.start("RootLoader-" + key, task)));
+    }
+
+    private static Root loadRoot(@NotNull String name) {
+        final long start = System.nanoTime();
+        var rootURL = Objects.requireNonNull(App.class.getResource(FXML_PATH + name + ".fxml"), "No FXML for root " + name);
+        var loader = new FXMLLoader(rootURL);
+        try {
+            Parent node = loader.load();
+            getLogger("core.App").fine("Root %s loaded in %d ms".formatted(name,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            return new Root(node, loader.getController());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't load root " + name, e);
+        }
+    }
 
-        int rootCount = ROOT_NAMES.size();
-        assert (roots.size() == rootCount && rootControllers.size() == rootCount);
+    /**
+     * Starts loading every root which isn't loaded yet
+     *
+     * @return completed once they all are
+     */
+    private static CompletableFuture<Void> preload() {
+        return CompletableFuture.allOf(ROOT_NAMES.stream().map(App::load).toArray(CompletableFuture[]::new));
+    }
 
-        logger.fine("Loading finished");
+    /**
+     * @return controller of the root, which is loaded first if it isn't yet. Should not be called on the FX thread
+     * before the first frame, the root may take a while.
+     */
+    public static Controller getController(@NotNull String name) {
+        return root(name).controller();
     }
 
     public static Stage getPrimaryStage() {
         return primaryStage;
     }
 
+    /**
+     * @return log shared by every connection, opened the first time it is needed
+     */
+    public static synchronized ChatLog getChatLog() {
+        if (chatLog == null)
+            chatLog = new ChatLog(LOG_DIRECTORY);
+        return chatLog;
+    }
+
+    /**
+     * @return highlight settings of the user, read the first time they are needed
+     */
+    public static synchronized HighlightSettings getHighlights() {
+        if (highlights == null)
+            highlights = new HighlightSettings(HIGHLIGHTS_FILE);
+        return highlights;
+    }
+
+    /**
+     * @return ignore rules of the user, read the first time they are needed
+     */
+    public static synchronized IgnoreList getIgnores() {
+        if (ignores == null)
+            ignores = new IgnoreList(IGNORES_FILE);
+        return ignores;
+    }
+
+    /**
+     * Lets the user know about highlights when the window is in the background: counts them in its title,
+     * which the window manager shows in the task bar.
+     * Must be called on the FX thread.
+     */
+    public static void notifyHighlights(int count) {
+        if (primaryStage == null || primaryStage.isFocused())
+            return;
+        missedHighlights += count;
+        primaryStage.setTitle("(" + missedHighlights + ") " + TITLE);
+    }
+
     public static synchronized boolean isRunning() {
         return running.get();
     }
@@ -97,7 +180,13 @@ public class App extends Application {
         App.primaryStage = primaryStage;
 
         Platform.setImplicitExit(true);
-        primaryStage.setTitle("IRC Protocol Demo");
+        primaryStage.setTitle(TITLE);
+        primaryStage.focusedProperty().addListener((observable, was, focused) -> {
+            if (focused && missedHighlights > 0) {
+                missedHighlights = 0;
+                primaryStage.setTitle(TITLE);
+            }
+        });
         showRoot("start");
     }
 
@@ -105,6 +194,9 @@ public class App extends Application {
     public synchronized void stop() throws Exception {
         super.stop();
         running.set(false);
+        ConnectionManager.shutdown();
+        if (chatLog != null)
+            chatLog.close();
     }
 
     public static void showRoot(@NotNull String name) {
@@ -113,9 +205,11 @@ public class App extends Application {
 
         Platform.runLater(() -> {
             try {
-                Parent p = Objects.requireNonNull(roots.get(name), "Root: " + name + " isn't in the root map.");
+                if (!ROOT_NAMES.contains(name))
+                    throw new IllegalArgumentException("Root: " + name + " isn't one of " + ROOT_NAMES);
+                Parent p = root(name).node();
                 if(currentRoot != null)
-                    rootControllers.get(currentRoot).reset();
+                    root(currentRoot).controller().reset();
                 currentRoot = name;
 
                 if(primaryStage.isShowing())
@@ -131,6 +225,10 @@ public class App extends Application {
                 primaryStage.setWidth(DEFAULT_WIDTH);
                 primaryStage.setResizable(!name.equals("start"));
                 primaryStage.show();
+                if (!firstFrameShown) {
+                    firstFrameShown = true;
+                    onFirstFrame(primaryStage.getScene());
+                }
             } catch (Exception e) {
                 Platform.runLater(() -> new Alert(Alert.AlertType.ERROR, e.getMessage()).showAndWait());
                 e.printStackTrace();
@@ -138,6 +236,29 @@ public class App extends Application {
         });
     }
 
+    /**
+     * Reports time to the first frame once the scene has been laid out for it, then loads the other roots
+     */
+    private static void onFirstFrame(@NotNull Scene scene) {
+        scene.addPostLayoutPulseListener(new Runnable() {
+            @Override
+            public void run() {
+                scene.removePostLayoutPulseListener(this);
+                final long sinceInit = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStartedAt);
+                final String sinceLaunch = ProcessHandle.current().info().startInstant()
+                        .map(start -> Instant.now().toEpochMilli() - start.toEpochMilli() + " ms after launch, ")
+                        .orElse("");
+                getLogger("core.App").fine("First frame " + sinceLaunch + sinceInit + " ms after init");
+                var loaded = preload();
+                if (EXIT_AFTER_STARTUP)
+                    loaded.whenComplete((result, e) -> Platform.exit());
+            }
+        });
+    }
+
+    private record Root(@NotNull Parent node, @NotNull Controller controller) {
+    }
+
     public static void main(String[] args) {
         launch(App.class, args);
     }
@@ -0,0 +1,54 @@
+package core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Delays between attempts which double with every failure, up to a cap.
+ * Every delay is between half and all of its doubled value, picked at random,
+ * so clients which lost the same server at once don't all come back at the same moment.
+ */
+public class Backoff {
+    public static final long DEFAULT_BASE_MILLIS = 1000;
+    public static final long DEFAULT_MAX_MILLIS = 120_000;
+
+    private final long baseMillis;
+    private final long maxMillis;
+    private int attempts = 0;
+
+    public Backoff() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS);
+    }
+
+    public Backoff(long baseMillis, long maxMillis) {
+        if (baseMillis <= 0 || maxMillis < baseMillis)
+            throw new IllegalArgumentException("Delays must be positive and the cap at least the base");
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Counts an attempt
+     *
+     * @return how long to wait before making it
+     */
+    public synchronized long nextDelay() {
+        // Past 2^20 the cap is reached for any sensible base anyway
+        long ceiling = Math.min(maxMillis, baseMillis << Math.min(attempts, 20));
+        attempts++;
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * @return number of attempts since the last success
+     */
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Starts over after a success
+     */
+    public synchronized void reset() {
+        attempts = 0;
+    }
+}
@@ -0,0 +1,164 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * IRCv3 capability negotiation of one connection.
+ * The login starts with {@code CAP LS 302}, which holds the registration back;
+ * every capability the client understands and the server offers is requested,
+ * and {@code CAP END} is sent once the server has answered and SASL, if it was asked for, is over.
+ * A server which doesn't know CAP ignores it and registers us as usual.
+ * <p>
+ * All the CAP and AUTHENTICATE replies arrive on the server lane of the dispatcher,
+ * {@link #isEnabled(String)} can be asked from any thread.
+ */
+final class Capabilities {
+    /** Capabilities the client understands, except SASL which is only asked for with a client certificate */
+    static final List<String> SUPPORTED = List.of("batch", "server-time", "message-tags", "echo-message",
+            "chathistory", "draft/chathistory", "cap-notify", "multi-prefix");
+    static final String SASL = "sasl";
+
+    private final Consumer<String> send;
+    private final boolean sasl;
+    private final HashSet<String> offered = new HashSet<>();
+    private volatile Set<String> enabled = Set.of();
+    private int pendingRequests = 0;
+    private boolean negotiating = false; // Between CAP LS and CAP END
+    private boolean authenticating = false;
+
+    /**
+     * @param send queues a line ahead of everything else
+     * @param sasl whether to authenticate with SASL EXTERNAL, i.e. by the client certificate
+     */
+    Capabilities(@NotNull Consumer<String> send, boolean sasl) {
+        this.send = send;
+        this.sasl = sasl;
+    }
+
+    /**
+     * Starts the negotiation of a new login, forgetting the previous one
+     */
+    synchronized void start() {
+        offered.clear();
+        enabled = Set.of();
+        pendingRequests = 0;
+        authenticating = false;
+        negotiating = true;
+        send.accept("CAP LS 302");
+    }
+
+    boolean isEnabled(@NotNull String capability) {
+        return enabled.contains(capability);
+    }
+
+    boolean hasChatHistory() {
+        var caps = enabled;
+        return caps.contains("chathistory") || caps.contains("draft/chathistory");
+    }
+
+    /**
+     * Handles a CAP line from the server:
+     * <pre>:server CAP nick subcommand [*] :capabilities</pre>
+     */
+    synchronized void onCap(@NotNull IrcLine line) {
+        if (line.paramCount() < 3)
+            return;
+        final String subcommand = line.param(1).toUpperCase();
+        // In a multi-line reply every line but the last one has "*" before the list
+        final boolean more = line.paramCount() > 3 && line.param(2).equals("*");
+        final String[] capabilities = line.trailing().strip().split(" +");
+        switch (subcommand) {
+            case "LS" -> {
+                for (var capability : capabilities)
+                    offered.add(name(capability));
+                if (!more)
+                    request(offered);
+            }
+            case "NEW" -> {
+                var added = new HashSet<String>();
+                for (var capability : capabilities)
+                    added.add(name(capability));
+                offered.addAll(added);
+                request(added);
+            }
+            case "DEL" -> {
+                var left = new HashSet<>(enabled);
+                for (var capability : capabilities) {
+                    offered.remove(name(capability));
+                    left.remove(name(capability));
+                }
+                enabled = Set.copyOf(left);
+            }
+            case "ACK" -> {
+                var now = new HashSet<>(enabled);
+                for (var capability : capabilities) {
+                    if (capability.startsWith("-"))
+                        now.remove(capability.substring(1));
+                    else if (!capability.isEmpty())
+                        now.add(capability);
+                }
+                enabled = Set.copyOf(now);
+                getLogger("core.Capabilities").info("Capabilities enabled: " + enabled);
+                pendingRequests = Math.max(0, pendingRequests - 1);
+                if (sasl && now.contains(SASL) && negotiating && !authenticating) {
+                    authenticating = true;
+                    send.accept("AUTHENTICATE EXTERNAL");
+                }
+                endIfDone();
+            }
+            case "NAK" -> {
+                getLogger("core.Capabilities").warning("Capabilities refused: " + line.trailing());
+                pendingRequests = Math.max(0, pendingRequests - 1);
+                endIfDone();
+            }
+            default -> getLogger("core.Capabilities").fine("CAP " + subcommand + " ignored");
+        }
+    }
+
+    /**
+     * SASL has succeeded or failed, the registration can go on
+     */
+    synchronized void onAuthenticated() {
+        authenticating = false;
+        endIfDone();
+    }
+
+    private void request(@NotNull Set<String> available) {
+        var wanted = new StringBuilder();
+        for (var capability : SUPPORTED) {
+            if (available.contains(capability))
+                wanted.append(wanted.length() == 0 ? "" : " ").append(capability);
+        }
+        if (sasl && available.contains(SASL) && negotiating)
+            wanted.append(wanted.length() == 0 ? "" : " ").append(SASL);
+        if (sasl && negotiating && !available.contains(SASL))
+            getLogger("core.Capabilities").warning("Server doesn't offer SASL, logging in without the certificate");
+        if (wanted.length() > 0) {
+            pendingRequests++;
+            send.accept("CAP REQ :" + wanted);
+        }
+        endIfDone();
+    }
+
+    private void endIfDone() {
+        if (negotiating && pendingRequests == 0 && !authenticating) {
+            negotiating = false;
+            send.accept("CAP END");
+        }
+    }
+
+    /**
+     * @return capability name without the value, e.g. "sasl" of "sasl=EXTERNAL,PLAIN"
+     */
+    private static String name(@NotNull String capability) {
+        final int equals = capability.indexOf('=');
+        return equals < 0 ? capability : capability.substring(0, equals);
+    }
+}
@@ -0,0 +1,70 @@
+package core;
+
+import core.records.ChannelInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The last complete channel list received from a server, together with the time it was received.
+ * While a new list is being received, the old one stays available.
+ */
+public class ChannelListCache {
+    public static final Duration DEFAULT_TTL = Duration.ofMinutes(2);
+
+    private final long ttlNanos;
+    private ArrayList<ChannelInfo> receiving = null;
+    private List<ChannelInfo> complete = null;
+    private long completedAt;
+
+    public ChannelListCache() {
+        this(DEFAULT_TTL);
+    }
+
+    public ChannelListCache(@NotNull Duration ttl) {
+        ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Starts receiving a new list
+     */
+    public synchronized void begin() {
+        receiving = new ArrayList<>(complete == null ? 64 : complete.size());
+    }
+
+    /**
+     * @return whether a list is being received
+     */
+    public synchronized boolean isReceiving() {
+        return receiving != null;
+    }
+
+    public synchronized void add(@NotNull ChannelInfo info) {
+        if (receiving == null)
+            begin(); // Not every server sends the start of the list
+        receiving.add(info);
+    }
+
+    /**
+     * Makes the list which was being received the complete one
+     *
+     * @return the complete list
+     */
+    public synchronized List<ChannelInfo> end() {
+        complete = receiving == null ? List.of() : List.copyOf(receiving);
+        receiving = null;
+        completedAt = System.nanoTime();
+        return complete;
+    }
+
+    /**
+     * @return the last complete list if it was received within the TTL, otherwise null
+     */
+    public synchronized List<ChannelInfo> getIfFresh() {
+        if (complete == null || System.nanoTime() - completedAt > ttlNanos)
+            return null;
+        return complete;
+    }
+}
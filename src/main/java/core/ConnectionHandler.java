@@ -1,38 +1,96 @@
 package core;
 
-import core.controller.MainController;
-import core.lines.MessageLine;
-import core.lines.NoticeLine;
-import core.lines.TextLine;
-import core.lines.WarningLine;
+import core.history.Scrollback;
 import core.records.Channel;
-import javafx.application.Platform;
-import javafx.scene.control.Alert;
+import core.records.ChannelInfo;
+import core.records.Message;
+import core.state.CaseMapping;
+import core.state.NetworkState;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.Socket;
-import java.util.ArrayDeque;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static java.util.logging.Logger.getLogger;
 
-public class ConnectionHandler extends Thread {
+/**
+ * A single connection to an IRC server together with the state of that network.
+ * The socket itself is driven by the {@link ConnectionManager}, so any number
+ * of connections can be open at once without dedicated threads.
+ * Everything that happens is reported to {@link ConnectionListener listeners} as plain events,
+ * the connection itself knows nothing about the UI.
+ * <p>
+ * When the link is lost the connection doesn't close: it keeps its channels and their history,
+ * connects again after a {@link Backoff jittered, growing delay}, logs in and rejoins the channels.
+ * A link which has been quiet for {@value #IDLE_PING_MILLIS} ms is PINGed, which also measures the lag;
+ * no answer within {@value #PING_TIMEOUT_MILLIS} ms counts as a lost link, so a half-open
+ * connection is noticed within seconds rather than when TCP gives up.
+ * <p>
+ * With a {@link TlsConfig} the link is encrypted by a {@link TlsChannel}, still without blocking the selector.
+ * If the configuration has a client certificate, the login asks for SASL EXTERNAL so that the server
+ * identifies us by the certificate.
+ * <p>
+ * The login negotiates {@link Capabilities IRCv3 capabilities}. With server-time the messages keep the time
+ * the server has stamped them with, and with chathistory every joined channel asks for what was said
+ * since the last message it has. Lines of a batch are held back until the batch ends and,
+ * if it's played back history, handed over together with {@link ConnectionListener#onHistory}.
+ * <p>
+ * Who is in which channel is kept in a {@link NetworkState}. Joins, parts, quits, nick and mode changes
+ * and NAMES replies are applied to it on the selector thread, in the order the server has sent them,
+ * before the lines are dispatched; what the user is told about them goes through the dispatcher as usual.
+ * Then lines from others which the {@link IgnoreList} matches are dropped, so they are never dispatched.
+ */
+public class ConnectionHandler {
     public static final String DEBUG_HOST = "irc.vub.lt";
     public static final String DEBUG_NICK = "test";
     public static final int DEFAULT_PORT = 6667;
     public static final Set<String> COMMANDS = Set.of("m", "list", "join");
     
-    private static final AtomicReference<ConnectionHandler> instance = new AtomicReference<>(null);
+    /** Quiet time after which the server is PINGed */
+    public static final long IDLE_PING_MILLIS = 15_000;
+    /** Time the server has to answer a PING */
+    public static final long PING_TIMEOUT_MILLIS = 10_000;
+    /** Time from starting to connect until the server has to welcome us */
+    public static final long LOGIN_TIMEOUT_MILLIS = 30_000;
+    /** Most messages asked for when a channel's history is played back */
+    public static final int HISTORY_LIMIT = 1000;
+
+    private static final int WRITE_BUFFER_LENGTH = 16384;
+    private static final String LAG_TOKEN = "LAG";
+    private static final int LIST_KEY = "LIST".hashCode();
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+            .withZone(ZoneOffset.UTC);
+    /** Held, a logger nobody refers to may be collected together with its level */
+    private static final Logger LINE_LOGGER = getLogger("core.ConnectionHandler.lines");
+    private static final ThreadLocal<IrcLine> PARSER = ThreadLocal.withInitial(IrcLine::new);
     private static final HashMap<String, Integer> COMMAND_ARG_COUNT = new HashMap<>();
     static {
         COMMAND_ARG_COUNT.put("list", 1);
@@ -41,34 +99,220 @@ public class ConnectionHandler extends Thread {
     }
     
     private final String host;
-    private final String nick;
-    private final Socket socket;
-    private final BufferedReader in;
-    private final PrintStream out;
-    private final ExecutorService decoderThreadPool = Executors.newCachedThreadPool();
-    private final HashMap<String, Channel> channels = new HashMap<>();
-    private final ArrayDeque<String> messagesToSend = new ArrayDeque<>();
-    private Channel curChannel = null;
+    private final int port;
+    private final String password;
+    private final TlsConfig tls; // null for plain text
+    private final ConnectionManager manager;
+    private final Metrics metrics = Metrics.getInstance();
+    private final IgnoreList ignores = App.getIgnores();
+    private final Backoff backoff = new Backoff();
+    private final FloodControl floodControl = new FloodControl();
+    private final LineFramer framer = new LineFramer();
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_LENGTH).flip();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final HashMap<String, Channel> channels = new HashMap<>(); // By folded name
+    private final HashSet<String> rejoining = new HashSet<>(); // Folded names, guarded by channels
+    private final NetworkState state;
+    private final ChannelListCache channelList = new ChannelListCache();
+    private final CopyOnWriteArrayList<ConnectionListener> listeners = new CopyOnWriteArrayList<>();
+    private final OutboundQueue messagesToSend = new OutboundQueue(
+            OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.OverflowPolicy.REJECT, this::requestWrite);
+    private final Capabilities caps;
+    private final ConcurrentHashMap<String, Batch> openBatches = new ConcurrentHashMap<>(); // By reference
+    private final HashMap<String, Integer> batchLanes = new HashMap<>(); // Used on the selector thread only
+    private volatile int historyLimit = HISTORY_LIMIT;
+    private volatile String nick;
+    private volatile SocketChannel channel;
+    private volatile Channel curChannel = null;
+    private volatile boolean autoReconnect = true;
+    private volatile boolean registered = false; // The server has welcomed us, lines other than the login can be sent
+    private volatile boolean reconnected = false; // Was registered once already
+    private volatile long loginStartedAt; // nanoTime, 0 once registered
+    private volatile long lastReceivedAt;
+    private volatile long pingSentAt = 0; // 0 if no PING is waiting for an answer
+    private volatile long lagMillis = -1;
+    private volatile long tlsHandshakeNanos = -1;
+    private volatile boolean tlsResumed = false;
+    private long pongDueSince = 0; // nanoTime of the oldest unanswered PING of the server, used on the selector thread only
+    // Used on the selector thread only
+    private Selector selector = null;
+    private SelectionKey key = null;
+    private TlsChannel secure = null; // Wraps the channel if the connection uses TLS
+    private CharBuffer pendingLine = null; // Part of a line which didn't fit into the write buffer
+    private boolean reconnectPending = false;
+    private boolean throttling = false;
+    private boolean throttleTimerPending = false;
+    private boolean readPaused = false; // The dispatcher is saturated, the socket isn't read until it catches up
+    private volatile String throttledLine = null; // Taken from the queue but held back by the flood control
 
     public ConnectionHandler(@NotNull String host, int port, @NotNull String nickName) throws IOException, IllegalArgumentException {
         this(host, port, nickName, "");
     }
 
     public ConnectionHandler(@NotNull String host, int port, @NotNull String nick, @NotNull String password) throws IOException, IllegalArgumentException {
-        super("ConnectionHandler-" + host);
+        this(host, port, nick, password, null);
+    }
+
+    /**
+     * @param tls how to secure the connection, null for plain text
+     */
+    public ConnectionHandler(@NotNull String host, int port, @NotNull String nick, @NotNull String password, TlsConfig tls) throws IOException, IllegalArgumentException {
         this.host = host;
+        this.port = port;
         this.nick = nick;
-        socket = new Socket(host, port);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintStream(socket.getOutputStream(), true);
-        instance.set(this);
+        this.password = password;
+        this.tls = tls;
+        this.state = new NetworkState(nick);
+        this.caps = new Capabilities(messagesToSend::offerPriority, tls != null && tls.hasClientCertificate());
+        this.manager = ConnectionManager.getInstance();
+        var address = new InetSocketAddress(host, port);
+        if(address.isUnresolved())
+            throw new UnknownHostException(host);
+        // The first attempt is made right away so that the user can be told why it has failed
+        channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+        // Lines are already batched into one write, waiting for more would only add latency
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (tls != null) {
+            try {
+                secure = new TlsChannel(channel, tls.createEngine(host, port));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        loginStartedAt = lastReceivedAt = System.nanoTime();
         
-        getLogger("core.ConnectionHandler").setLevel(App.LOG_LEVEL);
+        // Queued now, written in one batch as soon as the connection is started
+        queueLogin();
+    }
+
+    /**
+     * Queues CAP LS, PASS, NICK and USER ahead of everything else.
+     * Nothing from the normal lane is written until the server has welcomed us.
+     */
+    private void queueLogin() {
         getLogger("core.ConnectionHandler").info("Logging in...");
+        // Holds the registration back until the capabilities are negotiated
+        caps.start();
         if(!password.isEmpty())
-            out.println("PASS " + password);
-        out.println("NICK " + nick);
-        out.printf("USER %s localhost %s :%s\n", nick, host, nick);
+            messagesToSend.offerPriority("PASS " + password);
+        messagesToSend.offerPriority("NICK " + nick);
+        messagesToSend.offerPriority("USER %s localhost %s :%s".formatted(nick, host, nick));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * @return who is in which of our channels
+     */
+    public NetworkState getState() {
+        return state;
+    }
+
+    public boolean isSecure() {
+        return tls != null;
+    }
+
+    /**
+     * @return time the server took to answer the last PING, or -1 if it hasn't answered one yet
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * @return time the TLS handshake of the last registered connection took, or -1 without TLS or before registering
+     */
+    public long getTlsHandshakeNanos() {
+        return tlsHandshakeNanos;
+    }
+
+    /**
+     * @return true if the last registered connection resumed an earlier TLS session instead of a full handshake
+     */
+    public boolean isTlsSessionResumed() {
+        return tlsResumed;
+    }
+
+    /**
+     * @param autoReconnect whether a lost connection is tried again, if not it is closed
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public void addListener(@NotNull ConnectionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NotNull ConnectionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Keeps the message in its channel's history and passes it on to the listeners
+     */
+    private void emit(@NotNull Message message) {
+        if (message.target() != null) {
+            Channel channel;
+            synchronized (channels) {
+                channel = channels.get(state.fold(message.target()));
+            }
+            if (channel != null)
+                channel.history().append(message);
+        }
+        for (var listener : listeners)
+            listener.onMessage(this, message);
+    }
+
+    /**
+     * @return the channel the user's messages go to, or null if there is none
+     */
+    public Channel getCurrentChannel() {
+        return curChannel;
+    }
+
+    /**
+     * Makes the channel the current one and tells the listeners on the channel's lane,
+     * so that the history they get can't miss or repeat a message. For the user's threads;
+     * the lane itself calls {@link #switchChannelOnLane(Channel)}.
+     *
+     * @param channel joined channel or null
+     */
+    private void switchChannel(Channel channel) {
+        curChannel = channel;
+        int key = channel == null ? 0 : IrcLine.key(channel.name());
+        manager.dispatch(31 * hashCode() + key, () -> notifyChannelSwitched(channel));
+    }
+
+    /**
+     * Makes the channel the current one and tells the listeners right away.
+     * Must be called on the lane of the channel's lines, e.g. while interpreting its JOIN, PART or KICK.
+     *
+     * @param channel joined channel or null
+     */
+    private void switchChannelOnLane(Channel channel) {
+        curChannel = channel;
+        notifyChannelSwitched(channel);
+    }
+
+    private void notifyChannelSwitched(Channel channel) {
+        var history = channel == null ? new ArrayList<Message>() : channel.history().last(Scrollback.DEFAULT_CAPACITY);
+        // Played back history lands after what was already there
+        history.sort(Comparator.comparingLong(Message::timestamp));
+        for (var listener : listeners)
+            listener.onChannelSwitched(this, channel, history);
     }
     
     /**
@@ -77,218 +321,1113 @@ public class ConnectionHandler extends Thread {
      * @param cmdArgs client command plus arguments
      * @return true on success
      */
-    public static boolean sendCommand(@NotNull String[] cmdArgs) {
+    public boolean sendCommand(@NotNull String[] cmdArgs) {
         if (cmdArgs.length == 0 || !COMMANDS.contains(cmdArgs[0]) || cmdArgs.length != COMMAND_ARG_COUNT.get(cmdArgs[0]))
             return false;
         
-        var inst = instance.getAcquire();
         switch (cmdArgs[0]) {
             case "m" -> {
                 sendMessage(cmdArgs[1], cmdArgs[2]);
-                MainController.print(new MessageLine("YOU", cmdArgs[2]));
+                if (!caps.isEnabled("echo-message")) // Otherwise the server sends it back
+                    emit(Message.message(cmdArgs[1], "YOU", cmdArgs[2]));
+            }
+            case "join" -> {
+                final String channelName = cmdArgs[1].startsWith("#") ? cmdArgs[1] : "#" + cmdArgs[1];
+                Channel joined;
+                synchronized (channels) {
+                    joined = channels.get(state.fold(channelName));
+                }
+                if (joined != null)
+                    switchChannel(joined); // Already there, just switch to it
+                else
+                    queue("JOIN " + channelName);
             }
-            case "join" -> inst.messagesToSend.add("JOIN #" + cmdArgs[1]);
-            case "list" -> inst.messagesToSend.add("LIST");
+            case "list" -> requestChannelList();
             default -> getLogger("core.ConnectionHandler").severe("Command " + cmdArgs[0] + " is in the set but not defined!");
         }
-        instance.setRelease(inst);
         
         return true;
     }
 
     
-    public static void sendMessage(@NotNull String dest, @NotNull String msg) {
-        synchronized (instance) {
-            instance.get().messagesToSend.add("PRIVMSG " + dest + " :" + msg);
-        }
+    /**
+     * Queues the message, split into as many lines as it takes to fit the line length limit
+     */
+    public void sendMessage(@NotNull String dest, @NotNull String msg) {
+        var lines = MessageSplitter.split("PRIVMSG", dest, nick, msg);
+        if (!messagesToSend.offerAll(lines))
+            emit(Message.warning(dest, "Too many messages are waiting to be sent, dropped: " + msg));
     }
 
     /**
      * @param msg message to send
      * @return true on success, false if user isn't in any channel
      */
-    public static boolean sendMessage(@NotNull String msg) {
-        synchronized (instance) {
-            if (instance.get().curChannel == null)
-                return false;
-            sendMessage("#" + instance.get().curChannel.name(), msg);
-            return true;
+    public boolean sendMessage(@NotNull String msg) {
+        var channel = curChannel;
+        if (channel == null)
+            return false;
+        sendMessage(channel.name(), msg);
+        if (!caps.isEnabled("echo-message"))
+            emit(Message.message(channel.name(), "YOU", msg));
+        return true;
+    }
+
+    /**
+     * Serves the channel list from the cache if it is fresh, otherwise asks the server for it
+     */
+    private void requestChannelList() {
+        var cached = channelList.getIfFresh();
+        if (cached == null) {
+            queue("LIST");
+            return;
         }
+        // Same lane as the list from the server, so it can't get mixed up with one
+        manager.dispatch(31 * hashCode() + LIST_KEY, () -> {
+            for (var listener : listeners)
+                listener.onChannelListStarted(this);
+            for (var info : cached)
+                for (var listener : listeners)
+                    listener.onChannelInfo(this, info);
+            for (var listener : listeners)
+                listener.onChannelListEnded(this, cached.size());
+            emit(Message.text(cached.size() + " channels listed (cached)"));
+        });
     }
 
-    @Override
-    public void run() {
-        new Thread(() -> {
-            String buffer;
-            while(App.isRunning() && !socket.isClosed()) {
-                var inst = instance.getAcquire(); // locking the instance
-                if(messagesToSend.isEmpty()) { // if there are no messages to send - release
-                    instance.setRelease(inst);
-                    continue;
+    /**
+     * Queues a line for sending, warning the user if the queue is full
+     */
+    private void queue(@NotNull String line) {
+        if(!messagesToSend.offer(line))
+            emit(Message.warning("Too many messages are waiting to be sent, dropped: " + line));
+    }
+
+    /**
+     * Starts exchanging messages with the server
+     */
+    public void start() {
+        manager.register(this);
+    }
+
+    /**
+     * Called by the manager on the selector thread
+     */
+    void attach(@NotNull Selector selector) throws IOException {
+        this.selector = selector;
+        // Writing right away, the login lines are already queued
+        key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+    }
+
+    /**
+     * Asks the selector thread to start writing, at most once until it does
+     */
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            manager.execute(() -> {
+                writeRequested.set(false);
+                // While still connecting the key waits for OP_CONNECT, which mustn't be replaced
+                if (key != null && key.isValid() && channel.isConnected())
+                    setInterest(true);
+            });
+        }
+    }
+
+    /**
+     * Called by the manager on the selector thread when the server has sent something
+     */
+    void onReadable() throws IOException {
+        final boolean handshaking = secure != null && !secure.isHandshakeDone();
+        int read;
+        do {
+            read = framer.readFrom(io());
+            if (read < 0) { // Server has closed the connection
+                connectionLost("Server has closed the connection");
+                return;
+            }
+            lastReceivedAt = System.nanoTime();
+            metrics.countIn(framer.drain(this::onLineReceived), read);
+            if (manager.isBackedUp()) {
+                pauseReading();
+                return;
+            }
+            // Decrypted bytes which didn't fit into the framer won't make the socket readable again
+        } while (read > 0 && secure != null && secure.hasBufferedInput());
+
+        // Reading may have moved the handshake on: either the engine has something to say
+        // or the lines held back by the handshake can go now
+        if (secure != null && (secure.wantsWrite() || handshaking && secure.isHandshakeDone()))
+            setInterest(true);
+    }
+
+    /**
+     * Selects the socket for writing or not, and for reading unless reading is paused.
+     * Must be called on the selector thread.
+     */
+    private void setInterest(boolean write) {
+        key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Stops reading while the dispatcher is saturated; the manager calls {@link #resumeReading()} once it isn't
+     */
+    private void pauseReading() {
+        if (readPaused || !key.isValid())
+            return;
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Called by the manager on the selector thread once the dispatcher has caught up
+     */
+    void resumeReading() throws IOException {
+        if (!readPaused)
+            return;
+        readPaused = false;
+        if (key == null || !key.isValid() || !channel.isConnected())
+            return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        // Decrypted bytes won't make the socket readable again
+        if (secure != null && secure.hasBufferedInput())
+            onReadable();
+    }
+
+    private ByteChannel io() {
+        return secure != null ? secure : channel;
+    }
+
+    /**
+     * Called by the manager on the selector thread when the socket can take more bytes.
+     * Encodes as many queued lines as fit into the write buffer and writes them at once.
+     */
+    void onWritable() throws IOException {
+        writeQueued();
+        // The handshake may have read more than it needed
+        if (secure != null && secure.hasBufferedInput() && key.isValid() && !readPaused)
+            onReadable();
+    }
+
+    private void writeQueued() throws IOException {
+        while (true) {
+            if (writeBuffer.hasRemaining() || secure != null && secure.wantsWrite()) {
+                metrics.countBytesOut(io().write(writeBuffer));
+                if (writeBuffer.hasRemaining() || secure != null && secure.wantsWrite()) {
+                    // Waiting for the server's side of the handshake, the socket being writable doesn't help
+                    if (secure != null && secure.isWaitingForPeer())
+                        setInterest(false);
+                    return; // The socket is full, wait until it's writable again
                 }
-                buffer = messagesToSend.poll(); // take the first message in queue
-                getLogger("core.ConnectionHandler").fine("Sending message: " + buffer);
-                if(buffer != null && !buffer.isEmpty())
-                    out.println(buffer); // send the message
-                instance.setRelease(inst); // release the instance
             }
-        }, "SenderThread").start();
+            writeBuffer.clear();
+            fillWriteBuffer();
+            writeBuffer.flip();
+            if (!writeBuffer.hasRemaining()) { // Nothing left to send
+                setInterest(false);
+                return;
+            }
+        }
+    }
 
-        while(App.isRunning()) {
-            try {
-                synchronized (socket) {
-                    if (in.ready()) {
-                        String buffer = in.readLine(); // Reading from the server
-                        System.out.println(buffer);
-                        if(buffer.startsWith("PING")) {
-                            // If PING request is received then send PONG as quickly as possible
-                            var inst = instance.getAcquire();
-                            out.println("PONG" + buffer.substring(4));
-                            instance.setRelease(inst);
-                        } else {
-                            // Submit the task of processing a command to the executor
-                            // so that processes of receiving and sending messages
-                            // would be interrupted
-                            decoderThreadPool.submit(() -> interpretServerCommand(buffer));
+    /**
+     * Moves lines from the queue into the write buffer. The priority lane, PONG and QUIT
+     * always go through; the rest waits for {@link FloodControl} and, once it has to,
+     * for a timer that brings the writing back.
+     */
+    private void fillWriteBuffer() {
+        var logger = getLogger("core.ConnectionHandler");
+        while (true) {
+            if (pendingLine == null) {
+                String line = messagesToSend.pollPriority();
+                if (line == null && registered) {
+                    line = throttledLine != null ? throttledLine : messagesToSend.pollNormal();
+                    throttledLine = null;
+                    if (line != null && !isFloodExempt(line)) {
+                        final long now = System.nanoTime();
+                        final long wait = floodControl.tryAcquire(MessageSplitter.utf8Length(line) + 2, now);
+                        if (wait > 0) {
+                            throttledLine = line; // Goes first once there are tokens, so the order is kept
+                            throttle(wait);
+                            return;
                         }
                     }
                 }
-            } catch (IOException e) { // An error has occurred
-                synchronized (socket) {
-                    if (socket.isClosed()) { // Server must've closed the connection
-                        Platform.runLater(() -> new Alert(Alert.AlertType.INFORMATION, "Server has closed the connection").showAndWait());
-                        break;
+                if (line == null) {
+                    if (throttling) {
+                        throttling = false;
+                        notifySendQueue();
                     }
+                    return;
                 }
-                e.printStackTrace();
+                if (line.isEmpty())
+                    continue;
+                logger.fine("Sending message: " + line);
+                if (pongDueSince != 0 && line.startsWith("PONG")) {
+                    metrics.recordPongTurnaround(System.nanoTime() - pongDueSince);
+                    pongDueSince = 0;
+                }
+                pendingLine = CharBuffer.wrap(line + "\r\n");
+                encoder.reset();
             }
+            if (encoder.encode(pendingLine, writeBuffer, true).isOverflow())
+                return; // The rest of the line goes into the next batch
+            pendingLine = null;
+            metrics.countLineOut();
         }
+    }
 
-        disconnect(); // close the connection
+    private static boolean isFloodExempt(@NotNull String line) {
+        return line.startsWith("PONG") || line.startsWith("QUIT");
     }
-    
+
     /**
-     * Closes the connection with the server and switches
-     * the root a starting one
+     * Stops writing the normal lane until the flood control lets the next line through.
+     * Must be called on the selector thread.
      */
-    public static void disconnect() {
-        var inst = instance.getAcquire();
-        if(inst == null) {
-            instance.setRelease(null);
+    private void throttle(long waitNanos) {
+        throttling = true;
+        if (!throttleTimerPending) {
+            throttleTimerPending = true;
+            // Rounded up, waking up early would only find the bucket still short
+            manager.schedule(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999_999)), () -> {
+                throttleTimerPending = false;
+                if (key != null && key.isValid() && channel.isConnected())
+                    setInterest(true);
+            });
+        }
+        notifySendQueue();
+    }
+
+    private void notifySendQueue() {
+        final int queued = getQueuedLines();
+        final long delay = floodControl.estimateDelayMillis(queued);
+        for (var listener : listeners)
+            listener.onSendQueueChanged(this, queued, delay);
+    }
+
+    /**
+     * @return number of lines waiting to be sent
+     */
+    public int getQueuedLines() {
+        return messagesToSend.size() + (throttledLine != null ? 1 : 0);
+    }
+
+    /**
+     * @return rough time until every queued line is sent
+     */
+    public long getSendDelayMillis() {
+        return floodControl.estimateDelayMillis(getQueuedLines());
+    }
+
+    /**
+     * Called by the manager on the selector thread when reading or writing has failed
+     */
+    void onError(@NotNull IOException e) {
+        if (!closed.get()) // Otherwise we've closed the connection ourselves
+            getLogger("core.ConnectionHandler").warning(host + ": " + e);
+        connectionLost(e.getMessage() == null ? e.toString() : e.getMessage());
+    }
+
+    /**
+     * Called by the manager on the selector thread when a reconnect attempt has connected or failed to
+     */
+    void onConnectable() {
+        try {
+            if (!channel.finishConnect())
+                return;
+        } catch (IOException e) {
+            connectionLost("Couldn't connect: " + e.getMessage());
             return;
         }
+        getLogger("core.ConnectionHandler").info("Connected to " + host + " again");
+        lastReceivedAt = System.nanoTime();
+        setInterest(true);
+        queueLogin();
+    }
 
-        synchronized (inst.socket) {
-            // Complete the remaining tasks
-            if(inst.socket.isConnected())
-                inst.decoderThreadPool.shutdown();
+    /**
+     * Called by the manager on the selector thread every {@link ConnectionManager#TICK_MILLIS} ms.
+     * Notices a server which takes too long to let us in or stops answering.
+     */
+    void onTick(long now) {
+        // While reading is paused the server's lines wait in the socket, it's there
+        if (closed.get() || reconnectPending || readPaused)
+            return;
+        final long loginStarted = loginStartedAt;
+        if (loginStarted != 0) {
+            if (now - loginStarted > TimeUnit.MILLISECONDS.toNanos(LOGIN_TIMEOUT_MILLIS))
+                connectionLost("Server hasn't let us in for " + LOGIN_TIMEOUT_MILLIS / 1000 + " seconds");
+            return;
+        }
+
+        final long pingSent = pingSentAt;
+        if (pingSent == 0) {
+            if (now - lastReceivedAt > TimeUnit.MILLISECONDS.toNanos(IDLE_PING_MILLIS)) {
+                pingSentAt = now;
+                messagesToSend.offerPriority("PING :" + LAG_TOKEN + now);
+            }
+        } else if (now - pingSent > TimeUnit.MILLISECONDS.toNanos(PING_TIMEOUT_MILLIS)) {
+            if (lastReceivedAt - pingSent < 0)
+                connectionLost("Server hasn't answered for " + PING_TIMEOUT_MILLIS / 1000 + " seconds");
             else
-                inst.decoderThreadPool.shutdownNow();
+                pingSentAt = 0; // Something else came through, the link is alive; PING again once it's quiet
+        }
+    }
+
+    /**
+     * Drops the socket and, unless the user has turned it off, tries again after a delay.
+     * Must be called on the selector thread.
+     */
+    private void connectionLost(@NotNull String reason) {
+        if (closed.get() || reconnectPending)
+            return;
+        if (!autoReconnect) {
+            disconnect(true);
+            return;
+        }
+
+        // Forget everything about the session, the queued lines of the normal lane are kept
+        closeSocket();
+        readPaused = false;
+        framer.clear();
+        writeBuffer.clear().flip();
+        pendingLine = null;
+        messagesToSend.clearPriority();
+        registered = false;
+        loginStartedAt = 0;
+        pingSentAt = 0;
+        pongDueSince = 0;
+        synchronized (channels) {
+            rejoining.clear();
+        }
+        // The NAMES replies of the rejoins tell who is there now
+        state.clear();
+        // Batches cut short are handed over as they are, after the lines of them which are still being dispatched
+        batchLanes.forEach((reference, lane) -> manager.dispatch(lane, () -> {
+            var batch = openBatches.remove(reference);
+            if (batch != null)
+                endBatch(batch);
+        }));
+        batchLanes.clear();
+
+        reconnectPending = true;
+        final long delay = backoff.nextDelay();
+        final int attempt = backoff.getAttempts();
+        getLogger("core.ConnectionHandler").warning("%s: %s, reconnecting in %d ms".formatted(host, reason, delay));
+        manager.dispatch(31 * hashCode(), () -> {
+            emit(Message.warning("%s. Reconnecting in %d seconds (attempt %d)...".formatted(reason, Math.max(1, delay / 1000), attempt)));
+            for (var listener : listeners)
+                listener.onReconnecting(this, attempt, delay);
+        });
+        manager.schedule(delay, this::reconnect);
+    }
+
+    /**
+     * Starts connecting again. Resolving the host may block for as long as the resolver takes,
+     * so it's done on a thread of its own rather than on the selector or a dispatcher lane,
+     * which other connections and channels share; the socket is handed back to the selector thread connecting.
+     */
+    private void reconnect() {
+        // Stays pending until the socket is handed back, there is nothing to lose until then
+        if (closed.get())
+            return;
+        ExecutionMode.start("Reconnect-" + host, () -> {
+            SocketChannel socket = null;
+            String failure;
             try {
-                if (!inst.decoderThreadPool.awaitTermination(2, TimeUnit.SECONDS))
-                    throw new TimeoutException("ExecutorService timeout in the connection handler");
-            } catch (Exception e) {
-                e.printStackTrace();
+                var address = new InetSocketAddress(host, port);
+                if (address.isUnresolved())
+                    throw new UnknownHostException("Couldn't resolve " + host);
+                socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                socket.connect(address);
+                failure = null;
+            } catch (IOException e) {
+                failure = e.getMessage() == null ? e.toString() : e.getMessage();
+                closeQuietly(socket);
+                socket = null;
             }
+            TlsChannel secured = null;
+            if (socket != null && tls != null) {
+                try {
+                    // Same context as before, so the session is resumed if the server still has it
+                    secured = new TlsChannel(socket, tls.createEngine(host, port));
+                } catch (IOException e) {
+                    failure = e.getMessage();
+                    closeQuietly(socket);
+                    socket = null;
+                }
+            }
+            final SocketChannel connecting = socket;
+            final TlsChannel connectingSecure = secured;
+            final String reason = failure;
+            manager.execute(() -> {
+                reconnectPending = false;
+                if (closed.get()) {
+                    closeQuietly(connecting);
+                    return;
+                }
+                if (connecting == null) {
+                    connectionLost(reason);
+                    return;
+                }
+                channel = connecting;
+                secure = connectingSecure;
+                try {
+                    key = connecting.register(selector, SelectionKey.OP_CONNECT, this);
+                    loginStartedAt = System.nanoTime();
+                    if (connecting.isConnected())
+                        onConnectable();
+                } catch (IOException e) {
+                    connectionLost("Couldn't connect: " + e.getMessage());
+                }
+            });
+        });
+    }
 
-            try {
-                inst.socket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Closes the current socket. Must be called on the selector thread.
+     */
+    private void closeSocket() {
+        if (key != null)
+            key.cancel();
+        // Says goodbye to the TLS session, as far as the socket takes it without waiting
+        closeQuietly(secure != null ? secure : channel);
+    }
+
+    private static void closeQuietly(Closeable socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    private void onLineReceived(@NotNull String line) {
+        if (LINE_LOGGER.isLoggable(Level.FINE))
+            LINE_LOGGER.fine("Received: " + line);
+        final long receivedAt = lastReceivedAt;
+        final IrcLine parsed = PARSER.get();
+        final long parseStart = System.nanoTime();
+        final boolean wellFormed = parsed.parse(line);
+        metrics.recordParse(System.nanoTime() - parseStart);
+        // Messages emitted right here, e.g. for a QUIT, count from the read as well
+        Metrics.setLineReceivedAt(receivedAt);
+        if (!wellFormed) {
+            getLogger("core.ConnectionHandler").warning("Malformed line: " + line);
+        } else if(parsed.isCommand("PING")) {
+            // If PING request is received then send PONG as quickly as possible
+            if (pongDueSince == 0)
+                pongDueSince = receivedAt;
+            messagesToSend.offerPriority(parsed.paramCount() == 0 ? "PONG" : "PONG :" + parsed.trailing());
+        } else if (parsed.isCommand("PONG") && parsed.paramCount() > 0
+                && parsed.param(parsed.paramCount() - 1).startsWith(LAG_TOKEN)) {
+            // Answer to our own PING
+            final long pingSent = pingSentAt;
+            if (pingSent != 0) {
+                metrics.recordServerLag(receivedAt - pingSent);
+                lagMillis = TimeUnit.NANOSECONDS.toMillis(receivedAt - pingSent);
+                pingSentAt = 0;
+            }
+        } else if (!updateState(parsed) && !isIgnored(parsed)) {
+            // Submit the task of processing a command to the dispatcher
+            // so that processes of receiving and sending messages
+            // would not be interrupted.
+            // Lines for the same target are processed in order.
+            // The lane gets the parsed line, the parser is reused for the next one
+            final IrcLine copy = parsed.copy();
+            manager.dispatch(dispatchKey(parsed), () -> {
+                Metrics.setLineReceivedAt(receivedAt);
+                try {
+                    interpretServerCommand(copy);
+                } finally {
+                    Metrics.setLineReceivedAt(0);
+                }
+            });
+        }
+        Metrics.setLineReceivedAt(0);
+    }
+
+    /**
+     * Applies what the line changes about who is in which channel, on the selector thread so that
+     * the changes keep the server's order across the lanes of the dispatcher
+     *
+     * @return true if there is nothing left to do with the line
+     */
+    private boolean updateState(@NotNull IrcLine line) {
+        if (line.isNumeric()) {
+            switch (line.numeric()) {
+                // What the server supports, needed before the NAMES replies come
+                case 5 -> parseSupported(line);
+                // :server 353 ourNick = #channel :@op +voiced nick ...
+                case 353 -> {
+                    if (line.paramCount() > 3)
+                        state.names(line.param(2), line.trailing());
+                }
+                // :server 366 ourNick #channel :End of /NAMES list.
+                case 366 -> {
+                    if (line.paramCount() > 1 && state.endOfNames(line.param(1)))
+                        notifyMembersChanged(line.param(1));
+                }
+                // :server 352 ourNick #channel user host server nick flags :hops real name
+                case 352 -> {
+                    if (line.paramCount() > 6 && state.who(line.param(1), line.param(5), line.param(2), line.param(3), line.param(6)))
+                        notifyMembersChanged(line.param(1));
+                }
+                // End of WHO
+                case 315 -> {}
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (!line.hasPrefix())
+            return false;
+        switch (line.command()) {
+            case "JOIN" -> {
+                if (line.paramCount() > 0 && state.join(line.param(0), line.nick(), line.user(), line.host()))
+                    notifyMembersChanged(line.param(0));
+            }
+            case "PART" -> {
+                if (line.paramCount() > 0 && state.part(line.param(0), line.nick()))
+                    notifyMembersChanged(line.param(0));
+            }
+            case "KICK" -> {
+                if (line.paramCount() > 1 && state.part(line.param(0), line.param(1)))
+                    notifyMembersChanged(line.param(0));
+            }
+            case "MODE" -> {
+                if (line.isChannel(0) && line.paramCount() > 1) {
+                    var arguments = new ArrayList<String>(line.paramCount() - 2);
+                    for (int i = 2; i < line.paramCount(); i++)
+                        arguments.add(line.param(i));
+                    if (state.mode(line.param(0), line.param(1), arguments))
+                        notifyMembersChanged(line.param(0));
+                }
+            }
+            // :nick!user@host QUIT :reason
+            case "QUIT" -> {
+                final String quitter = line.nick();
+                final String reason = line.paramCount() > 0 && !line.trailing().isBlank() ? " (" + line.trailing().strip() + ")" : "";
+                for (var channelName : state.quit(quitter)) {
+                    notifyMembersChanged(channelName);
+                    if (!ignores.ignores(line, channelName))
+                        emitTo(channelName, Message.warning(channelName, "User " + quitter + " has quit" + reason));
+                }
+                return true;
+            }
+            // :old!user@host NICK :new
+            case "NICK" -> {
+                if (line.paramCount() == 0)
+                    return true;
+                final String oldNick = line.nick();
+                final String newNick = line.trailing();
+                final boolean self = line.nickEquals(nick);
+                if (self)
+                    nick = newNick;
+                final String change = self ? "You are now known as " + newNick : oldNick + " is now known as " + newNick;
+                final List<String> shared = state.rename(oldNick, newNick);
+                for (var channelName : shared) {
+                    notifyMembersChanged(channelName);
+                    emitTo(channelName, Message.warning(channelName, change));
+                }
+                if (self && shared.isEmpty())
+                    manager.dispatch(31 * hashCode(), () -> emit(Message.warning(change)));
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+        return false; // The dispatcher still tells the user
+    }
+
+    /**
+     * Lines from others which the user has chosen to ignore are dropped here, before they cost a task
+     * of the dispatcher or anything in the UI. What they change about the members has been applied already.
+     */
+    private boolean isIgnored(@NotNull IrcLine line) {
+        return !line.nickEquals(nick) && ignores.ignores(line);
+    }
+
+    /**
+     * Emits the message on the lane of its channel, after what was already dispatched there
+     */
+    private void emitTo(@NotNull String channelName, @NotNull Message message) {
+        manager.dispatch(31 * hashCode() + IrcLine.key(channelName), () -> emit(message));
+    }
+
+    /**
+     * Tells the listeners that the members of a channel have changed
+     */
+    private void notifyMembersChanged(@NotNull String channelName) {
+        for (var listener : listeners)
+            listener.onMembersChanged(this, channelName);
+    }
+
+    /**
+     * Picks the dispatcher lane for a line. Everything addressed to one channel or query
+     * of this connection, as well as the whole channel list, goes to the same lane.
+     */
+    private int dispatchKey(@NotNull IrcLine line) {
+        // A batch goes to the lane of its target and stays there to the end, so it can be collected in one place
+        if (line.isCommand("BATCH") && line.paramCount() > 0) {
+            final String reference = line.param(0);
+            if (reference.startsWith("-")) {
+                final Integer lane = batchLanes.remove(reference.substring(1));
+                return lane != null ? lane : 31 * hashCode();
             }
+            final String parent = line.tag("batch");
+            Integer lane = parent == null ? null : batchLanes.get(parent);
+            if (lane == null)
+                lane = 31 * hashCode() + (line.paramCount() > 2 ? line.paramKey(2) : 0);
+            if (reference.startsWith("+"))
+                batchLanes.put(reference.substring(1), lane);
+            return lane;
+        }
+        if (line.hasTags()) {
+            final String reference = line.tag("batch");
+            final Integer lane = reference == null ? null : batchLanes.get(reference);
+            if (lane != null)
+                return lane;
         }
+
+        int target = 0; // Server messages
+        if (line.isNumeric()) {
+            if (line.numeric() >= 321 && line.numeric() <= 323)
+                target = LIST_KEY;
+        } else if (line.isChannel(0)) {
+            target = line.paramKey(0);
+        } else if (line.isCommand("PRIVMSG") || line.isCommand("NOTICE")) {
+            target = line.nickKey(); // Query, the conversation is named after the sender
+        }
+        return 31 * hashCode() + target;
+    }
     
-        instance.setRelease(null);
-        if (App.isRunning())
-            App.showRoot("start");
+    /**
+     * Closes the connection with the server
+     */
+    public void disconnect() {
+        disconnect(false);
+    }
+
+    private void disconnect(boolean byServer) {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        if (!byServer)
+            messagesToSend.offerPriority("QUIT :Leaving");
+        messagesToSend.close();
+        manager.execute(() -> {
+            // Whatever fits into the socket right away, the QUIT first
+            if (!byServer && registered && key != null && key.isValid() && channel.isConnected()) {
+                try {
+                    onWritable();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+            closeSocket();
+        });
+        manager.unregister(this);
+        for (var listener : listeners)
+            listener.onDisconnected(this, byServer);
     }
     
     /**
      * Interprets a server command and reacts accordingly.
      * If reaction to a particular command is undefined,
-     * it will be logged using {@link java.util.logging.Logger Logger}
+     * it will be logged using {@link java.util.logging.Logger Logger}.
+     * Package-private so that the benchmarks in src/jmh can drive it without a server.
      * @param cmd command to interpret
      */
-    private static void interpretServerCommand(String cmd) {
+    void interpretServerCommand(String cmd) {
+        final IrcLine line = PARSER.get();
+        if (line.parse(cmd))
+            interpretServerCommand(line);
+        else
+            getLogger("core.ConnectionHandler.processCommand()").warning("Malformed line: " + cmd);
+    }
+
+    /**
+     * Interprets a line {@link #onLineReceived(String) already parsed} on the selector thread
+     */
+    private void interpretServerCommand(@NotNull IrcLine line) {
         // We have some sort of command:
         // :sender!sender@example.org PRIVMSG thisUser :hello!
-
-        final String[] cmdParts = cmd.split(":", 3); // Firstly, we split it by the ':' character
-        // The first part is empty
-        final String prefix = cmdParts[1].stripTrailing(); // The second part is the prefix
-        final String text = cmdParts.length > 2 ? cmdParts[2].strip() : ""; // The third part is some text
-        
-        final String[] prefixParts = prefix.split(" "); // Then we split the prefix
-        final String
-                sender = prefixParts[0].split("!", 2)[0], // The first part is the sender
-                command = prefixParts[1]; // The second part is a command
-
         var logger = getLogger("core.ConnectionHandler.processCommand()");
-        try {
-            int intCommand = Integer.parseInt(command); // Check if the command is numeric
-            switch (intCommand) { // If so, do the action corresponding to it
+        final String text = line.trailing().strip();
+        final long time = serverTime(line);
+
+        if (line.isNumeric()) {
+            switch (line.numeric()) {
+                // Welcome, we're logged in
+                case 1 -> {
+                    onRegistered();
+                    emit(Message.notice(null, "SERVER", text));
+                }
                 // Just some server info
-                case 1, 2, 3, 251, 265, 266 -> MainController.print(new NoticeLine("SERVER", text));
+                case 2, 3, 251, 265, 266 -> emit(Message.notice(null, "SERVER", text));
+                // Logged in by the client certificate
+                case 900 -> emit(Message.notice(null, "SERVER", text));
+                // SASL is over, successfully or not; registration can go on
+                case 903, 907 -> caps.onAuthenticated();
+                case 902, 904, 905, 906 -> {
+                    emit(Message.warning("Certificate authentication has failed: " + text));
+                    caps.onAuthenticated();
+                }
+                // Nick is taken, e.g. by our own connection which the server hasn't noticed is dead yet
+                case 433 -> {
+                    if (!registered) {
+                        state.rename(nick, nick + "_");
+                        nick = nick + "_";
+                        messagesToSend.offerPriority("NICK " + nick);
+                        emit(Message.warning("Nick is taken, trying " + nick));
+                    } else {
+                        emit(Message.warning(text));
+                    }
+                }
                 // Start of the channel list
-                case 321 -> MainController.print(new TextLine("Channels:\n"));
+                case 321 -> startChannelList();
                 // Channel info
-                case 322 -> parseChannelInfo(prefix, text);
+                case 322 -> parseChannelInfo(line);
                 // End of the channel list
                 case 323 -> {
-                    synchronized (instance) {
-                        MainController.printChannels(instance.get().channels.values());
-                    }
-                    MainController.print(new TextLine());
+                    if (!channelList.isReceiving())
+                        startChannelList(); // Nothing was listed
+                    int count = channelList.end().size();
+                    for (var listener : listeners)
+                        listener.onChannelListEnded(this, count);
+                    emit(Message.text(count + " channels listed"));
                 }
                 // Other commands are ignored
-                default -> logger.fine("Numeric command: " + intCommand + " ignored");
-            }
-        } catch (NumberFormatException ignored) { // The command is not numeric
-            var inst = ConnectionHandler.instance.getAcquire();
-            switch (command) {
-                case "KICK" -> {
-                    MainController.print(new WarningLine("You were kicked from channel " + inst.curChannel.name()));
-                    inst.curChannel = null;
+                default -> logger.fine("Numeric command: " + line.numeric() + " ignored");
+            }
+            return;
+        }
+
+        final String sender = line.hasPrefix() ? line.nick() : host;
+        switch (line.command()) {
+            case "KICK" -> {
+                // :op!user@host KICK #channel nick :reason
+                if (lacksParams(line, 2))
+                    return;
+                final String channelName = line.param(0);
+                final String kicked = line.param(1);
+                if (state.fold(kicked).equals(state.fold(nick))) {
+                    Channel left;
+                    synchronized (channels) {
+                        left = channels.remove(state.fold(channelName));
+                    }
+                    emit(Message.warning(channelName, "You were kicked from channel " + channelName));
+                    var current = curChannel;
+                    if (current != null && current == left)
+                        switchChannelOnLane(null);
+                } else {
+                    emit(Message.warning(channelName, "User " + kicked + " was kicked by " + sender));
                 }
-                case "JOIN" -> {
-                    if(sender.equals(inst.nick)) { // this client was moved to a new channel
-                        final String channelName = text.substring(1);
-                        inst.channels.putIfAbsent(channelName, new Channel(channelName));
-                        MainController.print(new WarningLine("You have joined a channel: " + channelName));
-                    } else {
-                        MainController.print(new WarningLine("User " + sender + " has joined your channel."));
+            }
+            case "JOIN" -> {
+                if (lacksParams(line, 1))
+                    return;
+                if(line.nickEquals(nick)) { // this client was moved to a new channel
+                    final String channelName = line.param(0);
+                    Channel joined;
+                    boolean rejoined;
+                    synchronized (channels) {
+                        joined = channels.computeIfAbsent(state.fold(channelName), key -> new Channel(channelName));
+                        rejoined = rejoining.remove(state.fold(channelName));
                     }
+                    if (rejoined) { // Back after a reconnect, the user stays where they were
+                        emit(Message.warning(channelName, "Rejoined " + channelName));
+                        requestHistory(joined);
+                        return;
+                    }
+                    emit(Message.warning(channelName, "You have joined a channel: " + channelName.substring(1)));
+                    switchChannelOnLane(joined);
+                    requestHistory(joined);
+                } else {
+                    emit(Message.warning(line.param(0), "User " + sender + " has joined your channel."));
                 }
-                // Important message
-                case "NOTICE" -> MainController.print(new NoticeLine(sender.equals(inst.host) ? "SERVER" : sender, text));
-                // Usual message
-                case "PRIVMSG" -> MainController.print(new MessageLine(sender, text));
-                // Other commands are ignored
-                default -> logger.warning("Command \"%s\" was ignored".formatted(command));
             }
-            ConnectionHandler.instance.setRelease(inst);
+            // :nick!user@host PART #channel [:reason]
+            case "PART" -> {
+                if (lacksParams(line, 1))
+                    return;
+                final String channelName = line.param(0);
+                if (line.nickEquals(nick)) {
+                    Channel left;
+                    synchronized (channels) {
+                        left = channels.remove(state.fold(channelName));
+                    }
+                    emit(Message.warning(channelName, "You have left channel " + channelName));
+                    var current = curChannel;
+                    if (current != null && current == left)
+                        switchChannelOnLane(null);
+                } else {
+                    emit(Message.warning(channelName, "User " + sender + " has left your channel."
+                            + (line.paramCount() > 1 && !text.isEmpty() ? " (" + text + ")" : "")));
+                }
+            }
+            // :op!user@host MODE #channel +ov-b nick nick mask
+            case "MODE" -> {
+                if (line.isChannel(0) && line.paramCount() > 1) {
+                    var change = new StringBuilder();
+                    for (int i = 1; i < line.paramCount(); i++)
+                        change.append(i == 1 ? "" : " ").append(line.param(i));
+                    emit(Message.warning(line.param(0), sender + " sets mode " + change));
+                } else {
+                    logger.fine("User mode ignored: " + line);
+                }
+            }
+            // :server CAP * LS :batch server-time ...
+            case "CAP" -> caps.onCap(line);
+            // The server is ready for the (empty) EXTERNAL response, the certificate says who we are
+            case "AUTHENTICATE" -> {
+                if (line.paramCount() > 0 && line.param(0).equals("+"))
+                    messagesToSend.offerPriority("AUTHENTICATE +");
+            }
+            // :server BATCH +reference type [parameters] ... :server BATCH -reference
+            case "BATCH" -> {
+                if (line.paramCount() == 0)
+                    return;
+                final String reference = line.param(0);
+                if (reference.startsWith("+") && line.paramCount() > 1) {
+                    openBatches.put(reference.substring(1), new Batch(line.param(1),
+                            line.paramCount() > 2 ? line.param(2) : null, line.tag("batch"), new ArrayList<>()));
+                } else if (reference.startsWith("-")) {
+                    var batch = openBatches.remove(reference.substring(1));
+                    if (batch != null)
+                        endBatch(batch);
+                }
+            }
+            // Only tags, e.g. typing notifications
+            case "TAGMSG" -> logger.fine("Tags ignored: " + line.tags());
+            // Important message
+            case "NOTICE" -> deliver(line, Message.notice(messageTarget(line, sender), sender.equals(host) ? "SERVER" : sender, text, time));
+            // Usual message, or our own one sent back by the server
+            case "PRIVMSG" -> {
+                if (!lacksParams(line, 1))
+                    deliver(line, line.nickEquals(nick)
+                            ? Message.message(line.param(0), "YOU", text, time)
+                            : Message.message(messageTarget(line, sender), sender, text, time));
+            }
+            // Other commands are ignored
+            default -> logger.warning("Command \"%s\" was ignored".formatted(line.command()));
         }
     }
     
-    private static void parseChannelInfo(String prefix, String text) {
-        int indOfChName = prefix.indexOf('#'); // Channel name starts with '#'
-        int indOfUserCount = prefix.indexOf(' ', indOfChName); // ends with ' '
-        String name = prefix.substring(indOfChName + 1, indOfUserCount);
+    /**
+     * Shows a line which has fewer parameters than its command needs as the server's message, as it is
+     *
+     * @return whether the line lacks parameters, nothing else is to be done with it then
+     */
+    private boolean lacksParams(@NotNull IrcLine line, int needed) {
+        if (line.paramCount() >= needed)
+            return false;
+        getLogger("core.ConnectionHandler").warning("Malformed line: " + line);
+        emit(Message.notice(null, "SERVER", line.toString()));
+        return true;
+    }
+
+    /**
+     * The server has welcomed us: lets the held back lines through and, after a reconnect,
+     * rejoins every channel with as few JOIN lines as fit
+     */
+    private void onRegistered() {
+        loginStartedAt = 0;
+        backoff.reset();
+        if (secure != null) {
+            tlsResumed = secure.isSessionResumed();
+            tlsHandshakeNanos = secure.getHandshakeNanos();
+        }
+        if (!reconnected) {
+            reconnected = true;
+            registered = true;
+            requestWrite();
+            return;
+        }
+
+        List<String> names = new ArrayList<>();
+        synchronized (channels) {
+            for (var channel : channels.values())
+                names.add(channel.name());
+            rejoining.addAll(channels.keySet());
+        }
+        // Ahead of whatever the user has queued meanwhile, which may be meant for these channels
+        var joinLine = new StringBuilder();
+        for (var name : names) {
+            if (joinLine.length() > 0 && joinLine.length() + 1 + name.length() > MessageSplitter.MAX_LINE_BYTES) {
+                messagesToSend.offerPriority(joinLine.toString());
+                joinLine.setLength(0);
+            }
+            joinLine.append(joinLine.length() == 0 ? "JOIN " : ",").append(name);
+        }
+        if (joinLine.length() > 0)
+            messagesToSend.offerPriority(joinLine.toString());
+        // Only now, so that the JOINs are written before anything that was held back
+        registered = true;
+        requestWrite();
+        emit(Message.warning("Reconnected to " + host + (names.isEmpty() ? "" : ", rejoining " + names.size() + " channels")));
+        for (var listener : listeners)
+            listener.onReconnected(this);
+    }
+
+    /**
+     * @return when the server says the line was sent, or now if it doesn't
+     */
+    private static long serverTime(@NotNull IrcLine line) {
+        final String time = line.hasTags() ? line.tag("time") : null;
+        if (time != null) {
+            try {
+                return Instant.parse(time).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                getLogger("core.ConnectionHandler").fine("Bad server time: " + time);
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Emits the message, or keeps it for later if its line is part of a batch
+     */
+    private void deliver(@NotNull IrcLine line, @NotNull Message message) {
+        final String reference = line.hasTags() ? line.tag("batch") : null;
+        final Batch batch = reference == null ? null : openBatches.get(reference);
+        if (batch != null)
+            batch.messages().add(message);
+        else
+            emit(message);
+    }
+
+    /**
+     * Hands over the messages of a finished batch: to the enclosing batch if there is one,
+     * as history if it's played back history, otherwise one by one
+     */
+    private void endBatch(@NotNull Batch batch) {
+        final Batch parent = batch.parent() == null ? null : openBatches.get(batch.parent());
+        if (parent != null)
+            parent.messages().addAll(batch.messages());
+        else if (batch.type().equalsIgnoreCase("chathistory") && batch.target() != null)
+            emitHistory(batch.target(), batch.messages());
+        else
+            batch.messages().forEach(this::emit);
+    }
+
+    /**
+     * Adds played back messages to the channel's history and passes them on to the listeners, all at once.
+     * Messages the history already has are left out, the server may well repeat some.
+     */
+    private void emitHistory(@NotNull String target, @NotNull List<Message> messages) {
+        Channel channel;
+        synchronized (channels) {
+            channel = channels.get(state.fold(target));
+        }
+        var fresh = channel == null ? messages : channel.history().appendMissing(messages);
+        if (fresh.isEmpty())
+            return;
+        for (var listener : listeners)
+            listener.onHistory(this, target, fresh);
+    }
+
+    /**
+     * Asks the server for what was said in the channel since its last message we have
+     */
+    private void requestHistory(@NotNull Channel channel) {
+        if (!caps.hasChatHistory())
+            return;
+        final long last = channel.history().lastTimestamp(Message.Kind.MESSAGE, Message.Kind.NOTICE);
+        final String after = last < 0 ? "*" : "timestamp=" + HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(last));
+        queue("CHATHISTORY LATEST %s %s %d".formatted(channel.name(), after, historyLimit));
+    }
+
+    /**
+     * Picks what the client cares about from a 005 reply:
+     * <pre>:server 005 ourNick TOKEN TOKEN=value ... :are supported by this server</pre>
+     */
+    private void parseSupported(@NotNull IrcLine line) {
+        for (int i = 1; i < line.paramCount() - 1; i++) {
+            final String token = line.param(i);
+            if (token.startsWith("CHATHISTORY=")) {
+                final int limit = parseLimit(token.substring("CHATHISTORY=".length()));
+                historyLimit = limit > 0 ? Math.min(limit, HISTORY_LIMIT) : HISTORY_LIMIT;
+            } else if (token.startsWith("PREFIX=")) {
+                state.setPrefix(token.substring("PREFIX=".length()));
+            } else if (token.startsWith("CHANMODES=")) {
+                state.setChannelModes(token.substring("CHANMODES=".length()));
+            } else if (token.startsWith("CASEMAPPING=")) {
+                state.setCaseMapping(CaseMapping.of(token.substring("CASEMAPPING=".length())));
+            }
+        }
+    }
+
+    /**
+     * @return the CHATHISTORY limit, 0 if there is none or it can't be parsed
+     */
+    private static int parseLimit(@NotNull String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * A batch which has started but not ended yet
+     *
+     * @param parent reference of the batch this one is nested in, or null
+     */
+    private record Batch(@NotNull String type, String target, String parent, @NotNull List<Message> messages) {
+    }
+
+    /**
+     * @return the channel a PRIVMSG or NOTICE was sent to, or the sender if it was sent to us
+     */
+    private static String messageTarget(@NotNull IrcLine line, String sender) {
+        return line.isChannel(0) ? line.param(0) : sender;
+    }
+    
+    /**
+     * Parses a channel list entry:
+     * <pre>:server 322 ourNick #channel userCount :[options] description</pre>
+     */
+    private void parseChannelInfo(IrcLine line) {
+        if (line.paramCount() < 3) {
+            getLogger("core.ConnectionHandler").warning("Malformed channel info: " + line);
+            return;
+        }
+        String name = line.param(1);
+        if (name.startsWith("#"))
+            name = name.substring(1);
         
         // Then there should be a user count
-        int userCount = -1;
-        try {
-            userCount = Integer.parseInt(prefix.substring(++indOfUserCount));
-        } catch (NumberFormatException ignored) {
+        int userCount = line.intParam(2, -1);
+        if (userCount < 0)
             getLogger("core.ConnectionHandler").warning("User count couldn't be parsed!");
-        }
-        // Then, there are channel options in format [x,y,...]
+        
+        // Then, there may be channel options in format [x,y,...]
         // and channel description
-        var splitMsg = text.split(" ", 2);
+        String desc = line.paramCount() > 3 ? line.param(3).strip() : "";
+        int optionsEnd;
+        if (desc.startsWith("[") && (optionsEnd = desc.indexOf(']')) > 0)
+            desc = desc.substring(optionsEnd + 1).strip();
         
-        // Add this info to a temporary list
-        synchronized (instance) {
-            instance.get().channels.putIfAbsent(name, new Channel(name, userCount, splitMsg[0], splitMsg[1]));
-        }
+        // Pass it on right away, the whole list may take a while
+        if (!channelList.isReceiving())
+            startChannelList(); // Not every server sends the start of the list
+        var info = new ChannelInfo(name, userCount, desc);
+        channelList.add(info);
+        for (var listener : listeners)
+            listener.onChannelInfo(this, info);
+    }
+
+    private void startChannelList() {
+        channelList.begin();
+        for (var listener : listeners)
+            listener.onChannelListStarted(this);
     }
 }
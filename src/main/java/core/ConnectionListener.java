@@ -0,0 +1,101 @@
+package core;
+
+import core.records.Channel;
+import core.records.ChannelInfo;
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Receives what happens on a {@link ConnectionHandler connection}.
+ * Events for the same target arrive in order, on one of the dispatcher's threads
+ * (or the selector thread, for the connection's own state changes),
+ * so listeners must hand them over to their own thread themselves.
+ */
+public interface ConnectionListener {
+    /**
+     * Something is to be shown to the user
+     */
+    void onMessage(@NotNull ConnectionHandler connection, @NotNull Message message);
+
+    /**
+     * The server has played back a batch of earlier messages of a channel or query, e.g. on join.
+     * Messages the channel's history already had are left out; listeners which keep
+     * their own copy may still have to look for repeated ones.
+     * By default every message is passed to {@link #onMessage}.
+     *
+     * @param target   channel or query the messages belong to
+     * @param messages messages with the time the server has stamped them with, oldest first
+     */
+    default void onHistory(@NotNull ConnectionHandler connection, @NotNull String target, @NotNull List<Message> messages) {
+        for (var message : messages)
+            onMessage(connection, message);
+    }
+
+    /**
+     * The channel the user's messages go to has changed.
+     * Arrives after every message of that channel emitted before the switch.
+     *
+     * @param channel the new current channel, or null if there is none
+     * @param history the newest messages of the channel, oldest first
+     */
+    default void onChannelSwitched(@NotNull ConnectionHandler connection, Channel channel, @NotNull List<Message> history) {}
+
+    /**
+     * Someone has joined or left one of our channels, or has a new nick or prefix mode there.
+     * Ask {@link ConnectionHandler#getState()} for a snapshot of the members; a channel with a busy
+     * member list may change often, so listeners should take the snapshot at most once per frame.
+     * Arrives on the selector thread.
+     *
+     * @param channel channel name as the server has sent it
+     */
+    default void onMembersChanged(@NotNull ConnectionHandler connection, @NotNull String channel) {}
+
+    /**
+     * The server has started sending the channel list.
+     * Entries which aren't sent again before the list ends are gone.
+     */
+    default void onChannelListStarted(@NotNull ConnectionHandler connection) {}
+
+    /**
+     * An entry of the channel list, as soon as it arrives
+     */
+    default void onChannelInfo(@NotNull ConnectionHandler connection, @NotNull ChannelInfo info) {}
+
+    /**
+     * The server has finished sending the channel list
+     *
+     * @param count number of entries in the list
+     */
+    default void onChannelListEnded(@NotNull ConnectionHandler connection, int count) {}
+
+    /**
+     * Lines are waiting to be sent because the flood control holds them back,
+     * or they have all been sent after that. Arrives on the selector thread.
+     *
+     * @param queued      number of lines waiting, 0 once they're all sent
+     * @param delayMillis rough time until they are all sent
+     */
+    default void onSendQueueChanged(@NotNull ConnectionHandler connection, int queued, long delayMillis) {}
+
+    /**
+     * The connection to the server was lost and will be tried again after a delay.
+     * The connection keeps its channels and their history meanwhile.
+     *
+     * @param attempt number of attempts since the connection was lost, starting with 1
+     */
+    default void onReconnecting(@NotNull ConnectionHandler connection, int attempt, long delayMillis) {}
+
+    /**
+     * The connection is logged in again after it was lost, the channels are being rejoined
+     */
+    default void onReconnected(@NotNull ConnectionHandler connection) {}
+
+    /**
+     * The connection is closed for good
+     *
+     * @param byServer true if the server has closed it, false if it was closed by us
+     */
+    default void onDisconnected(@NotNull ConnectionHandler connection, boolean byServer) {}
+}
@@ -0,0 +1,261 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Drives every open {@link ConnectionHandler} from a single selector thread.
+ * Reads, writes and closing of the sockets all happen on that thread; other threads
+ * hand work over to it with {@link #execute(Runnable)}.
+ * Parsed lines are interpreted by a {@link Dispatcher} shared by all the connections,
+ * so the thread count doesn't grow with the number of connections.
+ * While the dispatcher is {@link Dispatcher#isSaturated() saturated} the connections stop reading,
+ * so the backlog stays in the sockets; the selector thread itself never waits for a lane.
+ * The selector thread also runs timers, and every {@value #TICK_MILLIS} ms lets every
+ * connection check that its server is still there.
+ */
+public class ConnectionManager {
+    public static final long TICK_MILLIS = 1000;
+
+    private static ConnectionManager instance = null;
+
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final Dispatcher dispatcher = new Dispatcher();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<ConnectionHandler> connections = new CopyOnWriteArrayList<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(); // Used on the selector thread only
+    private long timerCount = 0; // Used on the selector thread only, keeps timers with the same deadline in order
+    private volatile boolean running = true;
+
+    private ConnectionManager() throws IOException {
+        selector = Selector.open();
+        selectorThread = new Thread(this::selectLoop, "ConnectionManager");
+        selectorThread.setDaemon(true);
+        dispatcher.setDrainListener(() -> execute(this::resumeReading));
+        selectorThread.start();
+        execute(() -> schedule(TICK_MILLIS, this::tick));
+    }
+
+    public static synchronized ConnectionManager getInstance() {
+        if (instance == null) {
+            try {
+                instance = new ConnectionManager();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't open a selector", e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Closes every connection and stops the selector thread, if it was ever started
+     */
+    public static synchronized void shutdown() {
+        if (instance == null)
+            return;
+        var manager = instance;
+        instance = null;
+        manager.connections.forEach(ConnectionHandler::disconnect);
+        manager.execute(() -> manager.running = false);
+        try {
+            manager.selectorThread.join(TimeUnit.SECONDS.toMillis(2));
+            if (!manager.dispatcher.shutdown(2, TimeUnit.SECONDS))
+                getLogger("core.ConnectionManager").warning("Dispatcher didn't finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return connections that are currently open, in the order they were registered
+     */
+    public List<ConnectionHandler> getConnections() {
+        return List.copyOf(connections);
+    }
+
+    /**
+     * Starts driving the connection's socket from the selector thread
+     */
+    void register(@NotNull ConnectionHandler connection) {
+        connections.add(connection);
+        execute(() -> {
+            try {
+                connection.attach(selector);
+            } catch (IOException e) {
+                e.printStackTrace();
+                connection.disconnect();
+            }
+        });
+    }
+
+    /**
+     * Forgets the connection, its key must already be cancelled
+     */
+    void unregister(@NotNull ConnectionHandler connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * Runs the task on the selector thread
+     */
+    void execute(@NotNull Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the selector thread after the delay. Must be called on the selector thread.
+     */
+    void schedule(long delayMillis, @NotNull Runnable task) {
+        timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), timerCount++, task));
+    }
+
+    private void tick() {
+        final long now = System.nanoTime();
+        Metrics.getInstance().tick(now, dispatcher);
+        for (var connection : connections) {
+            try {
+                connection.onTick(now);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        schedule(TICK_MILLIS, this::tick);
+    }
+
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Runs the task on the dispatcher lane of the key, never waits
+     */
+    void dispatch(int key, @NotNull Runnable task) {
+        dispatcher.dispatch(key, task);
+    }
+
+    /**
+     * @return whether the connections should stop reading until the dispatcher has caught up
+     */
+    boolean isBackedUp() {
+        return dispatcher.isSaturated();
+    }
+
+    /**
+     * The dispatcher has caught up, the connections which stopped reading can go on
+     */
+    private void resumeReading() {
+        for (var connection : connections) {
+            if (dispatcher.isSaturated())
+                return;
+            try {
+                connection.resumeReading();
+            } catch (CancelledKeyException ignored) {
+                // Closed meanwhile
+            } catch (IOException e) {
+                connection.onError(e);
+            }
+        }
+    }
+
+    private void selectLoop() {
+        var logger = getLogger("core.ConnectionManager");
+        while (running) {
+            try {
+                var next = timers.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long wait = TimeUnit.NANOSECONDS.toMillis(next.deadline() - System.nanoTime());
+                    if (wait > 0)
+                        selector.select(wait);
+                    else
+                        selector.selectNow();
+                }
+            } catch (IOException e) {
+                logger.severe("Selector has failed: " + e.getMessage());
+                break;
+            }
+
+            for (var it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                var connection = (ConnectionHandler) key.attachment();
+                try {
+                    if (key.isConnectable())
+                        connection.onConnectable();
+                    if (key.isValid() && key.isReadable())
+                        connection.onReadable();
+                    if (key.isValid() && key.isWritable())
+                        connection.onWritable();
+                } catch (CancelledKeyException ignored) {
+                    // The connection was closed while handling the previous event
+                } catch (IOException e) {
+                    fail(connection, e);
+                } catch (RuntimeException e) {
+                    // E.g. a line nobody expected or a failing listener; the other connections go on
+                    logger.log(Level.SEVERE, connection.getHost() + ": handling an event has failed", e);
+                    fail(connection, new IOException("Internal error: " + e, e));
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            final long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+                try {
+                    timers.poll().task().run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        logger.fine("Selector thread has stopped");
+    }
+
+    /**
+     * Lets the connection handle its failure, without anything it throws stopping the selector thread
+     */
+    private static void fail(@NotNull ConnectionHandler connection, @NotNull IOException e) {
+        try {
+            connection.onError(e);
+        } catch (RuntimeException again) {
+            getLogger("core.ConnectionManager").log(Level.SEVERE, connection.getHost() + ": couldn't drop the connection", again);
+        }
+    }
+
+    private record Timer(long deadline, long order, @NotNull Runnable task) implements Comparable<Timer> {
+        @Override
+        public int compareTo(@NotNull Timer other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0); // nanoTime may overflow
+            return byDeadline != 0 ? byDeadline : Long.compare(order, other.order);
+        }
+    }
+}
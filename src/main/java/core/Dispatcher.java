@@ -0,0 +1,187 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Runs tasks on a fixed set of single-threaded lanes.
+ * Every task comes with a key (e.g. the hash of a channel or a query) and tasks
+ * with the same key always go to the same lane, so they run in the order they were dispatched,
+ * while tasks with different keys can run on different cores.
+ * <p>
+ * Dispatching never waits: lane tasks dispatch further tasks, to their own lane too, so a lane waiting
+ * for room in its own queue would wait forever, and the selector thread mustn't wait for a lane either.
+ * Instead a lane holding more than its capacity counts as {@link #isSaturated() saturated}; the
+ * {@link ConnectionManager} then stops reading from the sockets and starts again once
+ * the lanes have worked their queues down to half their capacity, which the drain listener is told about.
+ * Lanes are platform or virtual threads as the {@link ExecutionMode} says.
+ */
+public class Dispatcher {
+    public static final int DEFAULT_LANES = Math.max(2, Runtime.getRuntime().availableProcessors());
+    public static final int DEFAULT_LANE_CAPACITY = 4096;
+
+    private final Lane[] lanes;
+    private final int laneCapacity;
+    private final AtomicInteger peakDepth = new AtomicInteger();
+    private final AtomicInteger saturatedLanes = new AtomicInteger();
+    private volatile Runnable drainListener = () -> {};
+    private volatile boolean running = true;
+
+    public Dispatcher() {
+        this(DEFAULT_LANES, DEFAULT_LANE_CAPACITY);
+    }
+
+    public Dispatcher(int laneCount, int laneCapacity) {
+        this(laneCount, laneCapacity, ExecutionMode.current());
+    }
+
+    public Dispatcher(int laneCount, int laneCapacity, @NotNull ExecutionMode mode) {
+        if (laneCount <= 0 || laneCapacity <= 0)
+            throw new IllegalArgumentException("Lane count and capacity must be positive");
+        this.laneCapacity = laneCapacity;
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(this, "Dispatcher-" + i, mode);
+            lanes[i].thread.start();
+        }
+    }
+
+    /**
+     * Queues the task on the lane of the key, without waiting however long the lane's queue is
+     *
+     * @return false if the dispatcher was shut down
+     */
+    public boolean dispatch(int key, @NotNull Runnable task) {
+        if (!running)
+            return false;
+        var lane = lanes[Math.floorMod(mix(key), lanes.length)];
+        lane.queue.add(task);
+        final int depth = lane.queue.size();
+        peakDepth.accumulateAndGet(depth, Math::max);
+        if (depth >= laneCapacity && lane.saturated.compareAndSet(false, true))
+            saturatedLanes.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return whether a lane holds more tasks than its capacity, so no more lines should be read for now
+     */
+    public boolean isSaturated() {
+        return saturatedLanes.get() > 0;
+    }
+
+    /**
+     * @param listener called on a lane thread when no lane is saturated any more
+     */
+    public void setDrainListener(@NotNull Runnable listener) {
+        drainListener = listener;
+    }
+
+    /**
+     * Called by a lane before each task
+     */
+    private void onTaken(@NotNull Lane lane) {
+        if (lane.saturated.get() && lane.queue.size() <= laneCapacity / 2 && lane.saturated.compareAndSet(true, false)
+                && saturatedLanes.decrementAndGet() == 0)
+            drainListener.run();
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * @return number of tasks waiting in every lane together
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (var lane : lanes)
+            depth += lane.queue.size();
+        return depth;
+    }
+
+    /**
+     * @return number of tasks waiting in each lane
+     */
+    public int[] getLaneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++)
+            depths[i] = lanes[i].queue.size();
+        return depths;
+    }
+
+    /**
+     * @return the longest a single lane's queue has been so far
+     */
+    public int getPeakQueueDepth() {
+        return peakDepth.get();
+    }
+
+    /**
+     * Stops accepting tasks, lets the lanes finish what is already queued
+     * and waits for them up to the timeout
+     *
+     * @return true if every lane has finished in time
+     */
+    public boolean shutdown(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        running = false;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean finished = true;
+        for (var lane : lanes)
+            lane.queue.add(Lane.STOP);
+        for (var lane : lanes) {
+            lane.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (lane.thread.isAlive()) {
+                lane.thread.interrupt();
+                finished = false;
+            }
+        }
+        return finished;
+    }
+
+    /**
+     * Spreads keys which differ only in the high bits, like {@link java.util.HashMap} does
+     */
+    private static int mix(int key) {
+        return key ^ (key >>> 16);
+    }
+
+    private static final class Lane implements Runnable {
+        private static final Runnable STOP = () -> {};
+
+        private final Dispatcher dispatcher;
+        private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private final AtomicBoolean saturated = new AtomicBoolean();
+        private final Thread thread;
+
+        private Lane(Dispatcher dispatcher, String name, ExecutionMode mode) {
+            this.dispatcher = dispatcher;
+            thread = mode.newThread(name, this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = queue.take()) != STOP) {
+                    dispatcher.onTaken(this);
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        getLogger("core.Dispatcher").severe(thread.getName() + " task has failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                // Shut down without finishing the queue
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * What kind of threads the client makes for the work that waits a lot: the {@link Dispatcher} lanes
+ * which run the handlers of received lines, connect attempts and loading of the views.
+ * Chosen with {@code -Dirc.threads=platform} (the default) or {@code -Dirc.threads=virtual}.
+ * The selector thread of the {@link ConnectionManager} is always a platform thread, it spends its life in one
+ * {@link java.nio.channels.Selector#select()}.
+ * <p>
+ * Virtual threads need JDK 21; they are looked up at run time so that the client still builds for and runs on 17,
+ * where asking for them falls back to platform threads.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    /** Thread.ofVirtual() and the Thread.Builder methods, null if the JDK has no virtual threads */
+    private static final Method OF_VIRTUAL, BUILDER_NAME, BUILDER_UNSTARTED;
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            var builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            ofVirtual.invoke(null); // On 19 and 20 they're a preview, which throws unless it's enabled
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null; // Before JDK 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+    /** After the lookup, which it depends on */
+    private static final ExecutionMode CURRENT = choose(System.getProperty("irc.threads", "platform"));
+
+    /**
+     * @return the mode the client runs in
+     */
+    public static ExecutionMode current() {
+        return CURRENT;
+    }
+
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    private static ExecutionMode choose(@NotNull String name) {
+        var mode = switch (name.strip().toLowerCase()) {
+            case "virtual" -> VIRTUAL;
+            case "platform" -> PLATFORM;
+            default -> {
+                getLogger("core.ExecutionMode").warning("Unknown thread mode " + name + ", using platform threads");
+                yield PLATFORM;
+            }
+        };
+        if (mode == VIRTUAL && OF_VIRTUAL == null) {
+            getLogger("core.ExecutionMode").warning("Virtual threads need JDK 21, running on "
+                    + Runtime.version() + " with platform threads");
+            return PLATFORM;
+        }
+        return mode;
+    }
+
+    /**
+     * @return a thread of this kind which isn't started yet; a platform one is a daemon, as virtual ones always are
+     */
+    public Thread newThread(@NotNull String name, @NotNull Runnable task) {
+        if (this == VIRTUAL) {
+            try {
+                var builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Couldn't make a virtual thread", e);
+            }
+        }
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Starts a thread of the kind the client runs with
+     */
+    public static Thread start(@NotNull String name, @NotNull Runnable task) {
+        var thread = CURRENT.newThread(name, task);
+        thread.start();
+        return thread;
+    }
+}
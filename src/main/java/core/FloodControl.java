@@ -0,0 +1,95 @@
+package core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets which pace the lines written to a server so that it doesn't kill the
+ * connection for "Excess Flood". One bucket counts lines and the other bytes; a line is
+ * only written when both have enough tokens, and both refill at a steady rate up to their burst.
+ * Every connection has its own.
+ * <p>
+ * The defaults can be changed with the system properties {@code irc.flood.lines},
+ * {@code irc.flood.linesPerSecond}, {@code irc.flood.bytes} and {@code irc.flood.bytesPerSecond}.
+ */
+public class FloodControl {
+    public static final int DEFAULT_LINE_BURST = Integer.getInteger("irc.flood.lines", 5);
+    public static final double DEFAULT_LINES_PER_SECOND = doubleProperty("irc.flood.linesPerSecond", 1.0);
+    public static final int DEFAULT_BYTE_BURST = Integer.getInteger("irc.flood.bytes", 2048);
+    public static final double DEFAULT_BYTES_PER_SECOND = doubleProperty("irc.flood.bytesPerSecond", 512);
+
+    private final int lineBurst;
+    private final int byteBurst;
+    private final double linesPerNano;
+    private final double bytesPerNano;
+    private double lines;
+    private double bytes;
+    private long refilledAt;
+
+    public FloodControl() {
+        this(DEFAULT_LINE_BURST, DEFAULT_LINES_PER_SECOND, DEFAULT_BYTE_BURST, DEFAULT_BYTES_PER_SECOND);
+    }
+
+    /**
+     * @param lineBurst      lines which can be written at once after a quiet period
+     * @param linesPerSecond lines which can be written per second after that
+     * @param byteBurst      bytes which can be written at once after a quiet period
+     * @param bytesPerSecond bytes which can be written per second after that
+     */
+    public FloodControl(int lineBurst, double linesPerSecond, int byteBurst, double bytesPerSecond) {
+        if (lineBurst <= 0 || linesPerSecond <= 0 || byteBurst <= 0 || bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Flood control limits must be positive");
+        this.lineBurst = lineBurst;
+        this.byteBurst = byteBurst;
+        this.linesPerNano = linesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.bytesPerNano = bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        lines = lineBurst;
+        bytes = byteBurst;
+        refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens for a line if there are enough of them.
+     * A line longer than the byte burst only needs a full byte bucket.
+     *
+     * @param length length of the line in bytes, including the line terminator
+     * @return 0 if the line can be written now, otherwise nanoseconds until it can
+     */
+    public synchronized long tryAcquire(int length, long now) {
+        refill(now);
+        final double neededBytes = Math.min(length, byteBurst);
+        if (lines >= 1 && bytes >= neededBytes) {
+            lines -= 1;
+            bytes -= neededBytes;
+            return 0;
+        }
+        final double lineWait = lines >= 1 ? 0 : (1 - lines) / linesPerNano;
+        final double byteWait = bytes >= neededBytes ? 0 : (neededBytes - bytes) / bytesPerNano;
+        return Math.max(1, (long) Math.ceil(Math.max(lineWait, byteWait)));
+    }
+
+    /**
+     * @return rough time it takes to write that many more lines from now, assuming they're short
+     */
+    public synchronized long estimateDelayMillis(int lineCount) {
+        refill(System.nanoTime());
+        final double owed = lineCount - lines;
+        return owed <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis((long) (owed / linesPerNano));
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - refilledAt;
+        if (elapsed <= 0)
+            return;
+        lines = Math.min(lineBurst, lines + elapsed * linesPerNano);
+        bytes = Math.min(byteBurst, bytes + elapsed * bytesPerNano);
+        refilledAt = now;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        try {
+            return Double.parseDouble(System.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
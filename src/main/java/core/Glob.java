@@ -0,0 +1,54 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A compiled wildcard mask such as {@code *!*@*.example.org}: '*' stands for any number of characters
+ * and '?' for one. Compared in the rfc1459 case mapping, without cutting the text out of anything.
+ */
+final class Glob {
+    private final String source;
+    private final char[] pattern; // Folded
+
+    Glob(@NotNull String source) {
+        this.source = source;
+        pattern = new char[source.length()];
+        for (int i = 0; i < pattern.length; i++)
+            pattern[i] = IrcLine.foldCase(source.charAt(i));
+    }
+
+    boolean matches(@NotNull CharSequence text) {
+        return matches(text, 0, text.length());
+    }
+
+    /**
+     * @return whether the part [start, end) of the text matches, all of it
+     */
+    boolean matches(@NotNull CharSequence text, int start, int end) {
+        int p = 0, t = start;
+        int star = -1, resumeAt = start; // Last '*' and where the text it stands for ends
+        while (t < end) {
+            if (p < pattern.length && (pattern[p] == '?' || pattern[p] == IrcLine.foldCase(text.charAt(t)))) {
+                p++;
+                t++;
+            } else if (p < pattern.length && pattern[p] == '*') {
+                star = p++;
+                resumeAt = t;
+            } else if (star >= 0) {
+                // Let the last '*' stand for one more character
+                p = star + 1;
+                t = ++resumeAt;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length && pattern[p] == '*')
+            p++;
+        return p == pattern.length;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
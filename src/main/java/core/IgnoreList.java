@@ -0,0 +1,187 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * The {@link IgnoreRule}s of the user, shared by every connection and kept in a file, a rule per line.
+ * <p>
+ * Connections check each received line right after parsing it, on the selector thread, and drop what
+ * a rule matches before it's dispatched, so that a flood of ignored lines never reaches the listeners or the UI.
+ * For that the rules are compiled into buckets by {@link IgnoreRule.Type}: a line is only compared with the rules
+ * of its type, and with no rules at all unless it's one of the types lines are ignored by.
+ * The buckets are replaced whenever the rules change or one of them expires.
+ */
+public final class IgnoreList {
+    private static final IgnoreRule[] NONE = new IgnoreRule[0];
+
+    private final Path file;
+    private final ArrayList<IgnoreRule> rules = new ArrayList<>(); // Guarded by this
+    private volatile Compiled compiled;
+
+    /**
+     * Reads the rules from the file, if there is one; those which have expired meanwhile are left out
+     */
+    public IgnoreList(@NotNull Path file) {
+        this.file = file;
+        final long now = System.currentTimeMillis();
+        try {
+            for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.isBlank())
+                    continue;
+                try {
+                    var rule = IgnoreRule.parse(Arrays.asList(line.strip().split(" ")), now);
+                    if (!rule.isExpired(now))
+                        rules.add(rule);
+                } catch (IllegalArgumentException e) {
+                    getLogger("core.IgnoreList").warning("Skipped rule " + line + " of " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing has been ignored yet
+        } catch (IOException e) {
+            getLogger("core.IgnoreList").warning("Couldn't read ignore rules from " + file + ": " + e);
+        }
+        compile(now);
+    }
+
+    /**
+     * @return whether the line is to be dropped, counting it for the rule which drops it
+     */
+    boolean ignores(@NotNull IrcLine line) {
+        return ignores(line, null);
+    }
+
+    /**
+     * @param channel channel the line is shown in, e.g. one of those a QUIT is shown in,
+     *                or null to take it from the line
+     */
+    boolean ignores(@NotNull IrcLine line, String channel) {
+        var current = compiled;
+        if (current.count() == 0)
+            return false;
+        final var type = IgnoreRule.Type.of(line);
+        if (type == null)
+            return false;
+        var bucket = current.byType()[type.ordinal()];
+        if (bucket.length == 0)
+            return false;
+        if (current.nextExpiry() != Long.MAX_VALUE) {
+            final long now = System.currentTimeMillis();
+            if (now >= current.nextExpiry()) {
+                synchronized (this) {
+                    if (rules.removeIf(rule -> rule.isExpired(now)))
+                        getLogger("core.IgnoreList").fine("Expired ignore rules dropped");
+                    compile(now);
+                }
+                return ignores(line, channel);
+            }
+        }
+        for (var rule : bucket) {
+            if (rule.matches(line, channel))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the rules in the order they were added
+     */
+    public synchronized List<IgnoreRule> list() {
+        final long now = System.currentTimeMillis();
+        var current = new ArrayList<IgnoreRule>(rules.size());
+        for (var rule : rules) {
+            if (!rule.isExpired(now))
+                current.add(rule);
+        }
+        return current;
+    }
+
+    public synchronized void add(@NotNull IgnoreRule rule) throws IOException {
+        rules.add(rule);
+        changed();
+    }
+
+    /**
+     * @return whether the rule was there
+     */
+    public synchronized boolean remove(@NotNull IgnoreRule rule) throws IOException {
+        if (!rules.remove(rule))
+            return false;
+        changed();
+        return true;
+    }
+
+    /**
+     * Removes every rule of the mask
+     *
+     * @return how many there were
+     */
+    public synchronized int removeMask(@NotNull String mask) throws IOException {
+        final String normalized = IgnoreRule.normalizeMask(mask);
+        final int before = rules.size();
+        rules.removeIf(rule -> rule.getMask().equalsIgnoreCase(normalized));
+        final int removed = before - rules.size();
+        if (removed > 0)
+            changed();
+        return removed;
+    }
+
+    /**
+     * Compiles the rules again and saves them
+     */
+    private void changed() throws IOException {
+        final long now = System.currentTimeMillis();
+        rules.removeIf(rule -> rule.isExpired(now));
+        compile(now);
+        var lines = new ArrayList<String>(rules.size());
+        for (var rule : rules)
+            lines.add(rule.toString());
+        if (lines.isEmpty() && Files.notExists(file))
+            return;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Puts each rule into the bucket of every type it drops
+     */
+    private void compile(long now) {
+        var buckets = new ArrayList<List<IgnoreRule>>();
+        for (int i = 0; i < IgnoreRule.Type.values().length; i++)
+            buckets.add(new ArrayList<>());
+        long nextExpiry = Long.MAX_VALUE;
+        int count = 0;
+        for (var rule : rules) {
+            if (rule.isExpired(now))
+                continue;
+            count++;
+            for (var type : rule.getTypes())
+                buckets.get(type.ordinal()).add(rule);
+            if (rule.getExpiresAt() != 0)
+                nextExpiry = Math.min(nextExpiry, rule.getExpiresAt());
+        }
+        var byType = new IgnoreRule[buckets.size()][];
+        for (int i = 0; i < byType.length; i++)
+            byType[i] = buckets.get(i).toArray(NONE);
+        compiled = new Compiled(byType, count, nextExpiry);
+    }
+
+    /**
+     * @param byType     rules by the ordinal of the type they drop
+     * @param count      how many rules there are
+     * @param nextExpiry when the first of them expires, in milliseconds since the epoch, or Long.MAX_VALUE
+     */
+    private record Compiled(IgnoreRule[][] byType, int count, long nextExpiry) {
+    }
+}
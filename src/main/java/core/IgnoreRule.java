@@ -0,0 +1,228 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Drops received lines of some {@link Type types} from senders matching a hostmask, optionally only in one channel,
+ * only if the text matches a regular expression, and only until some time.
+ * Written as {@code MASK [TYPE...] [#CHANNEL] [DURATION | until=INSTANT] [/REGEX/]}, e.g.
+ * {@code spammer!*@* JOINS,PARTS #channel 2h}; {@link #toString()} gives it back that way.
+ * Counts how many lines it has dropped.
+ */
+public final class IgnoreRule {
+    public static final String UNTIL_PREFIX = "until=";
+    private static final Pattern DURATION = Pattern.compile("(\\d{1,6})([smhd])");
+
+    public enum Type {
+        MESSAGES,
+        NOTICES,
+        /** CTCP requests and replies, ACTIONs included */
+        CTCPS,
+        JOINS,
+        PARTS,
+        QUITS;
+
+        /**
+         * @return type of the line, null if lines like it are never ignored
+         */
+        static Type of(@NotNull IrcLine line) {
+            if (line.isNumeric())
+                return null;
+            if (line.isCommand("PRIVMSG"))
+                return line.isCtcp() ? CTCPS : MESSAGES;
+            if (line.isCommand("NOTICE"))
+                return line.isCtcp() ? CTCPS : NOTICES;
+            if (line.isCommand("JOIN"))
+                return JOINS;
+            if (line.isCommand("PART"))
+                return PARTS;
+            if (line.isCommand("QUIT"))
+                return QUITS;
+            return null;
+        }
+
+        /**
+         * @param name e.g. {@code joins} or {@code JOIN}, or {@code ALL}
+         * @return null if there is no such type
+         */
+        static EnumSet<Type> parse(@NotNull String name) {
+            name = name.toUpperCase(Locale.ROOT);
+            if (name.equals("ALL"))
+                return EnumSet.allOf(Type.class);
+            for (var type : values()) {
+                if (type.name().equals(name) || type.name().equals(name + "S"))
+                    return EnumSet.of(type);
+            }
+            return null;
+        }
+    }
+
+    private final Glob mask;
+    private final EnumSet<Type> types;
+    private final String channel; // null for every channel
+    private final Pattern content; // null for any text
+    private final long expiresAt; // Milliseconds since the epoch, 0 for never
+    private final LongAdder hits = new LongAdder();
+
+    private IgnoreRule(@NotNull Glob mask, @NotNull EnumSet<Type> types, String channel, Pattern content, long expiresAt) {
+        this.mask = mask;
+        this.types = types;
+        this.channel = channel;
+        this.content = content;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Parses the arguments of {@code /ignore}, or a saved rule.
+     * A mask without '!' or '@' is a nick; the types default to all of them.
+     *
+     * @param now milliseconds since the epoch which a duration counts from
+     * @throws IllegalArgumentException if the arguments aren't a rule, with a message for the user
+     */
+    public static IgnoreRule parse(@NotNull List<String> args, long now) throws IllegalArgumentException {
+        var words = new ArrayList<String>();
+        for (var arg : args) {
+            if (!arg.isEmpty())
+                words.add(arg);
+        }
+        if (words.isEmpty())
+            throw new IllegalArgumentException("No mask");
+        final String mask = normalizeMask(words.get(0));
+        var types = EnumSet.noneOf(Type.class);
+        String channel = null;
+        Pattern content = null;
+        long expiresAt = 0;
+        for (int i = 1; i < words.size(); i++) {
+            final String word = words.get(i);
+            var duration = DURATION.matcher(word);
+            if (word.charAt(0) == '/') {
+                // The rest, which may have spaces
+                final String regex = String.join(" ", words.subList(i, words.size()));
+                if (regex.length() < 3 || !regex.endsWith("/"))
+                    throw new IllegalArgumentException("A regular expression goes between slashes: " + regex);
+                try {
+                    content = Pattern.compile(regex.substring(1, regex.length() - 1),
+                            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Not a regular expression: " + e.getDescription());
+                }
+                break;
+            } else if (word.charAt(0) == '#' || word.charAt(0) == '&') {
+                channel = word;
+            } else if (duration.matches()) {
+                final long amount = Long.parseLong(duration.group(1));
+                var length = switch (duration.group(2)) {
+                    case "s" -> Duration.ofSeconds(amount);
+                    case "m" -> Duration.ofMinutes(amount);
+                    case "h" -> Duration.ofHours(amount);
+                    default -> Duration.ofDays(amount);
+                };
+                expiresAt = now + length.toMillis();
+            } else if (word.startsWith(UNTIL_PREFIX)) {
+                try {
+                    expiresAt = Instant.parse(word.substring(UNTIL_PREFIX.length())).toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException("Not a time: " + word);
+                }
+            } else {
+                for (var name : word.split(",")) {
+                    var named = Type.parse(name);
+                    if (named == null)
+                        throw new IllegalArgumentException("Unknown type " + name + ", it's one of " + List.of(Type.values()) + " or ALL");
+                    types.addAll(named);
+                }
+            }
+        }
+        if (types.isEmpty())
+            types = EnumSet.allOf(Type.class);
+        return new IgnoreRule(new Glob(mask), types, channel, content, expiresAt);
+    }
+
+    /**
+     * @return the mask as a rule has it: {@code nick} is {@code nick!*@*}, {@code user@host} is {@code *!user@host}
+     */
+    public static String normalizeMask(@NotNull String mask) {
+        if (mask.indexOf('!') < 0 && mask.indexOf('@') < 0)
+            return mask + "!*@*";
+        if (mask.indexOf('!') < 0)
+            return "*!" + mask;
+        return mask;
+    }
+
+    public String getMask() {
+        return mask.toString();
+    }
+
+    public EnumSet<Type> getTypes() {
+        return EnumSet.copyOf(types);
+    }
+
+    /**
+     * @return milliseconds since the epoch after which the rule is dropped, 0 if it stays
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && now >= expiresAt;
+    }
+
+    /**
+     * @return how many lines it has dropped since it was made or read
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @param channelName channel the line was sent to, or null to take it from the line
+     * @return whether the line of one of the rule's types is to be dropped, counted if it is
+     */
+    boolean matches(@NotNull IrcLine line, String channelName) {
+        if (channel != null && !(channelName != null ? sameName(channel, channelName)
+                : line.isChannel(0) && line.paramEquals(0, channel)))
+            return false;
+        if (!line.prefixMatches(mask))
+            return false;
+        if (content != null && !content.matcher(line.trailing()).find())
+            return false;
+        hits.increment();
+        return true;
+    }
+
+    private static boolean sameName(@NotNull String a, @NotNull String b) {
+        if (a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); i++) {
+            if (IrcLine.foldCase(a.charAt(i)) != IrcLine.foldCase(b.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        var spec = new StringBuilder(mask.toString());
+        spec.append(' ').append(types.size() == Type.values().length ? "ALL"
+                : String.join(",", types.stream().map(Type::name).toList()));
+        if (channel != null)
+            spec.append(' ').append(channel);
+        if (expiresAt != 0)
+            spec.append(' ').append(UNTIL_PREFIX).append(Instant.ofEpochMilli(expiresAt));
+        if (content != null)
+            spec.append(" /").append(content.pattern()).append('/');
+        return spec.toString();
+    }
+}
@@ -0,0 +1,394 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A reusable view of one parsed IRC line.
+ * Parsing only records offsets into the line, so it allocates nothing;
+ * strings are cut out of the line only when a part is asked for.
+ * <pre>
+ * [@tags] [:nick!user@host] COMMAND [param ...] [:trailing param]
+ * </pre>
+ * An instance must not be shared between threads.
+ */
+public final class IrcLine {
+    /** RFC 1459 allows at most 15 parameters, the last one may contain spaces */
+    public static final int MAX_PARAMS = 15;
+
+    private String line = "";
+    private int tagsStart, tagsEnd;
+    private int prefixStart, prefixEnd;
+    private int nickEnd, userStart, hostStart;
+    private int commandStart, commandEnd;
+    private int numeric;
+    private final int[] paramStarts = new int[MAX_PARAMS];
+    private final int[] paramEnds = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean trailing;
+
+    /**
+     * Parses the line, forgetting the previous one
+     *
+     * @param line line without the line terminator
+     * @return false if the line has no command
+     */
+    public boolean parse(@NotNull String line) {
+        this.line = line;
+        tagsStart = tagsEnd = prefixStart = prefixEnd = -1;
+        nickEnd = userStart = hostStart = -1;
+        paramCount = 0;
+        trailing = false;
+        numeric = -1;
+
+        final int length = line.length();
+        int i = 0;
+
+        if (i < length && line.charAt(i) == '@') {
+            tagsStart = i + 1;
+            tagsEnd = i = wordEnd(i);
+            i = skipSpaces(i);
+        }
+
+        if (i < length && line.charAt(i) == ':') {
+            prefixStart = i + 1;
+            prefixEnd = i = wordEnd(i);
+            for (int j = prefixStart; j < prefixEnd; j++) {
+                char c = line.charAt(j);
+                if (c == '!' && userStart < 0 && hostStart < 0) {
+                    userStart = j + 1;
+                } else if (c == '@' && hostStart < 0) {
+                    hostStart = j + 1;
+                }
+            }
+            nickEnd = userStart > 0 ? userStart - 1 : hostStart > 0 ? hostStart - 1 : prefixEnd;
+            i = skipSpaces(i);
+        }
+
+        commandStart = i;
+        commandEnd = i = wordEnd(i);
+        if (commandStart == commandEnd)
+            return false;
+        if (commandEnd - commandStart == 3
+                && isDigit(line.charAt(commandStart))
+                && isDigit(line.charAt(commandStart + 1))
+                && isDigit(line.charAt(commandStart + 2))) {
+            numeric = (line.charAt(commandStart) - '0') * 100
+                    + (line.charAt(commandStart + 1) - '0') * 10
+                    + (line.charAt(commandStart + 2) - '0');
+        }
+
+        while ((i = skipSpaces(i)) < length) {
+            paramStarts[paramCount] = i;
+            if (line.charAt(i) == ':' || paramCount == MAX_PARAMS - 1) {
+                if (line.charAt(i) == ':')
+                    paramStarts[paramCount] = i + 1;
+                paramEnds[paramCount++] = length;
+                trailing = true;
+                break;
+            }
+            paramEnds[paramCount++] = i = wordEnd(i);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the parsed line, which another thread can read while this instance parses the next one
+     */
+    IrcLine copy() {
+        var copy = new IrcLine();
+        copy.line = line;
+        copy.tagsStart = tagsStart;
+        copy.tagsEnd = tagsEnd;
+        copy.prefixStart = prefixStart;
+        copy.prefixEnd = prefixEnd;
+        copy.nickEnd = nickEnd;
+        copy.userStart = userStart;
+        copy.hostStart = hostStart;
+        copy.commandStart = commandStart;
+        copy.commandEnd = commandEnd;
+        copy.numeric = numeric;
+        System.arraycopy(paramStarts, 0, copy.paramStarts, 0, paramCount);
+        System.arraycopy(paramEnds, 0, copy.paramEnds, 0, paramCount);
+        copy.paramCount = paramCount;
+        copy.trailing = trailing;
+        return copy;
+    }
+
+    public String line() {
+        return line;
+    }
+
+    public boolean hasTags() {
+        return tagsStart >= 0;
+    }
+
+    /**
+     * @return raw tags without the leading '@', or null if there are none
+     */
+    public String tags() {
+        return hasTags() ? line.substring(tagsStart, tagsEnd) : null;
+    }
+
+    /**
+     * Looks a tag up without splitting the tags
+     *
+     * @param name tag name, with the '+' of client-only tags
+     * @return unescaped value of the tag, an empty string if it has no value, or null if the line doesn't have it
+     */
+    public String tag(@NotNull String name) {
+        int i = tagsStart;
+        while (i >= 0 && i < tagsEnd) {
+            int end = line.indexOf(';', i);
+            if (end < 0 || end > tagsEnd)
+                end = tagsEnd;
+            int nameEnd = line.indexOf('=', i);
+            if (nameEnd < 0 || nameEnd > end)
+                nameEnd = end;
+            if (nameEnd - i == name.length() && line.regionMatches(i, name, 0, name.length()))
+                return nameEnd == end ? "" : unescapeTag(nameEnd + 1, end);
+            i = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Undoes the escaping of tag values: {@code \:} is ';', {@code \s} is ' ', {@code \r} and {@code \n}
+     * are CR and LF, and any other escaped character stands for itself
+     */
+    private String unescapeTag(int start, int end) {
+        if (line.indexOf('\\', start) < 0 || line.indexOf('\\', start) >= end)
+            return line.substring(start, end);
+        var value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+            } else if (++i < end) { // A lone backslash at the end is dropped
+                c = line.charAt(i);
+                value.append(switch (c) {
+                    case ':' -> ';';
+                    case 's' -> ' ';
+                    case 'r' -> '\r';
+                    case 'n' -> '\n';
+                    default -> c;
+                });
+            }
+        }
+        return value.toString();
+    }
+
+    public boolean hasPrefix() {
+        return prefixStart >= 0;
+    }
+
+    /**
+     * @return the whole prefix without the leading ':', or null if there is none
+     */
+    public String prefix() {
+        return hasPrefix() ? line.substring(prefixStart, prefixEnd) : null;
+    }
+
+    /**
+     * @return nick of the sender or the server name, or null if there is no prefix
+     */
+    public String nick() {
+        return hasPrefix() ? line.substring(prefixStart, nickEnd) : null;
+    }
+
+    /**
+     * @return user part of the prefix, or null if there is none
+     */
+    public String user() {
+        if (userStart < 0)
+            return null;
+        return line.substring(userStart, hostStart > userStart ? hostStart - 1 : prefixEnd);
+    }
+
+    /**
+     * @return host part of the prefix, or null if there is none
+     */
+    public String host() {
+        return hostStart < 0 ? null : line.substring(hostStart, prefixEnd);
+    }
+
+    /**
+     * Compares the sender's nick in any case, the way {@link #foldCase(char)} folds it,
+     * without cutting it out of the line
+     */
+    public boolean nickEquals(@NotNull String nick) {
+        if (!hasPrefix() || nickEnd - prefixStart != nick.length())
+            return false;
+        for (int i = 0; i < nick.length(); i++) {
+            if (foldCase(line.charAt(prefixStart + i)) != foldCase(nick.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Matches the sender's whole prefix against a hostmask without cutting it out of the line
+     */
+    boolean prefixMatches(@NotNull Glob mask) {
+        return hasPrefix() && mask.matches(line, prefixStart, prefixEnd);
+    }
+
+    /**
+     * @return case-insensitive hash of the sender's nick, computed without cutting it out of the line
+     */
+    public int nickKey() {
+        return hasPrefix() ? key(prefixStart, nickEnd) : 0;
+    }
+
+    public String command() {
+        return line.substring(commandStart, commandEnd);
+    }
+
+    /**
+     * Compares the command, ignoring case, without cutting it out of the line
+     */
+    public boolean isCommand(@NotNull String command) {
+        return commandEnd - commandStart == command.length()
+                && line.regionMatches(true, commandStart, command, 0, command.length());
+    }
+
+    public boolean isNumeric() {
+        return numeric >= 0;
+    }
+
+    /**
+     * @return the numeric reply code, or -1 if the command is not numeric
+     */
+    public int numeric() {
+        return numeric;
+    }
+
+    public int paramCount() {
+        return paramCount;
+    }
+
+    public String param(int index) {
+        if (index < 0 || index >= paramCount)
+            throw new IndexOutOfBoundsException("Parameter " + index + " of " + paramCount);
+        return line.substring(paramStarts[index], paramEnds[index]);
+    }
+
+    /**
+     * @return case-insensitive hash of a parameter, computed without cutting it out of the line
+     */
+    public int paramKey(int index) {
+        if (index < 0 || index >= paramCount)
+            throw new IndexOutOfBoundsException("Parameter " + index + " of " + paramCount);
+        return key(paramStarts[index], paramEnds[index]);
+    }
+
+    /**
+     * Compares a parameter in the rfc1459 case mapping without cutting it out of the line
+     */
+    public boolean paramEquals(int index, @NotNull String name) {
+        if (index < 0 || index >= paramCount || paramEnds[index] - paramStarts[index] != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (foldCase(line.charAt(paramStarts[index] + i)) != foldCase(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the parameter is a channel name
+     */
+    public boolean isChannel(int index) {
+        if (index < 0 || index >= paramCount || paramStarts[index] == paramEnds[index])
+            return false;
+        char c = line.charAt(paramStarts[index]);
+        return c == '#' || c == '&' || c == '+' || c == '!';
+    }
+
+    /**
+     * Parses a parameter as a non-negative decimal number without throwing
+     *
+     * @return the number, or otherwise if the parameter is missing or not a number
+     */
+    public int intParam(int index, int otherwise) {
+        if (index < 0 || index >= paramCount || paramStarts[index] == paramEnds[index])
+            return otherwise;
+        int value = 0;
+        for (int i = paramStarts[index]; i < paramEnds[index]; i++) {
+            char c = line.charAt(i);
+            if (!isDigit(c) || value > (Integer.MAX_VALUE - 9) / 10)
+                return otherwise;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return whether the last parameter was introduced by ':' (or took the rest of a line with too many parameters)
+     */
+    public boolean hasTrailing() {
+        return trailing;
+    }
+
+    /**
+     * @return the last parameter, or an empty string if there are no parameters
+     */
+    public String trailing() {
+        return paramCount == 0 ? "" : param(paramCount - 1);
+    }
+
+    /**
+     * @return whether the last parameter is a CTCP request or reply, such as an ACTION, which start with 0x01
+     */
+    public boolean isCtcp() {
+        return paramCount > 0 && paramEnds[paramCount - 1] > paramStarts[paramCount - 1]
+                && line.charAt(paramStarts[paramCount - 1]) == '\u0001';
+    }
+
+    private int wordEnd(int from) {
+        int space = line.indexOf(' ', from);
+        return space < 0 ? line.length() : space;
+    }
+
+    private int skipSpaces(int from) {
+        while (from < line.length() && line.charAt(from) == ' ')
+            from++;
+        return from;
+    }
+
+    private int key(int start, int end) {
+        return key(line, start, end);
+    }
+
+    /**
+     * @return the same case-insensitive hash as {@link #paramKey(int)} would for this name
+     */
+    public static int key(@NotNull CharSequence name) {
+        return key(name, 0, name.length());
+    }
+
+    private static int key(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + foldCase(chars.charAt(i));
+        return hash;
+    }
+
+    /**
+     * Folds a character using the rfc1459 case mapping, where
+     * {@code []\^} are the upper case versions of <code>{}|~</code>
+     */
+    public static char foldCase(char c) {
+        if (c >= 'A' && c <= '^')
+            return (char) (c + ('a' - 'A'));
+        return c;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+}
@@ -0,0 +1,96 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Splits a stream of bytes into IRC lines.
+ * Bytes are read straight into one reusable {@link ByteBuffer}, complete lines
+ * are decoded as UTF-8 and whatever is left of an unfinished line is kept for the next read.
+ * Lines may be terminated either by CRLF or by a bare LF.
+ */
+public class LineFramer {
+    /** IRCv3 allows 8191 bytes of tags on top of the 512 bytes of the message itself */
+    public static final int DEFAULT_CAPACITY = 8192 + 512;
+
+    private final ByteBuffer buffer;
+
+    public LineFramer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LineFramer(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * The buffer to read into. It is always in write mode, i.e.
+     * its position marks the end of the bytes that were not framed yet.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Forgets the unfinished line, e.g. when the stream it came from is gone
+     */
+    public void clear() {
+        buffer.clear();
+    }
+
+    /**
+     * Appends whatever the channel has to offer to the buffer
+     *
+     * @return number of bytes read, or -1 if the end of the stream was reached
+     */
+    public int readFrom(@NotNull ReadableByteChannel channel) throws IOException {
+        return channel.read(buffer);
+    }
+
+    /**
+     * Passes every complete line in the buffer to the sink, without its terminator.
+     * Empty lines are skipped. If the buffer is full and holds no terminator,
+     * its contents are passed on as one line so that the stream can't get stuck.
+     *
+     * @return number of lines passed to the sink
+     */
+    public int drain(@NotNull Consumer<String> sink) {
+        final byte[] bytes = buffer.array();
+        final int offset = buffer.arrayOffset();
+        final int end = buffer.position();
+        int lineStart = 0;
+        int count = 0;
+
+        for (int i = 0; i < end; i++) {
+            if (bytes[offset + i] != '\n')
+                continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && bytes[offset + lineEnd - 1] == '\r')
+                lineEnd--;
+            if (lineEnd > lineStart) {
+                sink.accept(new String(bytes, offset + lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+                count++;
+            }
+            lineStart = i + 1;
+        }
+
+        if (lineStart == 0 && end == buffer.capacity()) {
+            getLogger("core.LineFramer").warning("Line is longer than " + end + " bytes, passing it on as is");
+            sink.accept(new String(bytes, offset, end, StandardCharsets.UTF_8));
+            lineStart = end;
+            count++;
+        }
+
+        // Move the unfinished line to the beginning of the buffer
+        buffer.flip().position(lineStart);
+        buffer.compact();
+        return count;
+    }
+}
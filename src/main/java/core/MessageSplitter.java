@@ -0,0 +1,92 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts message text into pieces which fit into IRC lines.
+ * Pieces are cut between UTF-8 characters, never inside one, and preferably at a space.
+ */
+public final class MessageSplitter {
+    /** A line is at most 512 bytes with CRLF */
+    public static final int MAX_LINE_BYTES = 510;
+    /**
+     * Room left for the prefix the server puts in front of our line when it passes it on:
+     * {@code :nick!user@host }, with up to 10 characters of user name and 63 of host
+     */
+    public static final int PREFIX_RESERVE = 1 + 1 + 10 + 1 + 63 + 1;
+
+    private MessageSplitter() {
+    }
+
+    /**
+     * Splits the text of a PRIVMSG or NOTICE so that every resulting line fits
+     *
+     * @param command e.g. {@code PRIVMSG}
+     * @param nick    our nick, part of the prefix the server adds
+     * @return complete lines, in order
+     */
+    public static List<String> split(@NotNull String command, @NotNull String target, @NotNull String nick, @NotNull String text) {
+        final String head = command + " " + target + " :";
+        final int room = MAX_LINE_BYTES - PREFIX_RESERVE - utf8Length(nick) - utf8Length(head);
+        var pieces = split(text, Math.max(room, 16));
+        var lines = new ArrayList<String>(pieces.size());
+        for (var piece : pieces)
+            lines.add(head + piece);
+        return lines;
+    }
+
+    /**
+     * @return pieces of at most {@code maxBytes} UTF-8 bytes each, the text itself if it fits
+     */
+    public static List<String> split(@NotNull String text, int maxBytes) {
+        if (utf8Length(text) <= maxBytes)
+            return List.of(text);
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        var pieces = new ArrayList<String>(bytes.length / maxBytes + 1);
+        int start = 0;
+        while (bytes.length - start > maxBytes) {
+            int end = start + maxBytes;
+            while (end > start && isContinuation(bytes[end]))
+                end--; // Back to the start of the character which doesn't fit
+            // Rather break at a space, unless that throws away too much of the line
+            int space = end;
+            while (space > start + maxBytes * 2 / 3 && bytes[space - 1] != ' ')
+                space--;
+            if (space > start + maxBytes * 2 / 3)
+                end = space;
+            pieces.add(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            start = end;
+        }
+        pieces.add(new String(bytes, start, bytes.length - start, StandardCharsets.UTF_8));
+        return pieces;
+    }
+
+    /**
+     * @return length of the text in UTF-8, without encoding it
+     */
+    public static int utf8Length(@NotNull CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+}
@@ -0,0 +1,265 @@
+package core;
+
+import jdk.jfr.FlightRecorder;
+import org.jetbrains.annotations.NotNull;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Counters and histograms of the connection pipeline, shared by every connection like the {@link ConnectionManager}.
+ * Recording allocates nothing and takes no lock, so it stays on in production.
+ * The figures are exposed as the MXBean {@value #OBJECT_NAME}, as the {@link PipelineEvent} every second
+ * of a flight recording, and to the user by {@link #describe()}.
+ * <p>
+ * Read to render is measured per frame: how long ago the oldest line it shows was read from the socket.
+ * The line being handled by a thread is known through {@link #setLineReceivedAt(long)}.
+ */
+public final class Metrics implements MetricsMXBean {
+    public static final String OBJECT_NAME = "IRC.client:type=Metrics";
+
+    private static Metrics instance = null;
+    /** nanoTime at which the line the thread is handling was read, 0 if it isn't handling one */
+    private static final ThreadLocal<long[]> LINE_RECEIVED_AT = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final LongAdder linesIn = new LongAdder();
+    private final LongAdder linesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram readToRender = new LatencyHistogram();
+    private final LatencyHistogram pongTurnaround = new LatencyHistogram();
+    private final LatencyHistogram serverLag = new LatencyHistogram();
+    private volatile IntSupplier renderBacklog = () -> 0;
+    // Sampled by tick() on the selector thread
+    private long sampledAt = 0;
+    private final long[] sampledTotals = new long[4];
+    private volatile double linesInRate, linesOutRate, bytesInRate, bytesOutRate;
+    private volatile int dispatchDepth, peakDispatchDepth;
+
+    private Metrics() {
+    }
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+            instance.publish();
+        }
+        return instance;
+    }
+
+    private void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            getLogger("core.Metrics").warning("Metrics aren't available over JMX: " + e);
+        }
+        FlightRecorder.addPeriodicEvent(PipelineEvent.class, () -> new PipelineEvent(this).commit());
+    }
+
+    /**
+     * @param nanoTime when the line the current thread is about to handle was read, 0 once it's done
+     */
+    public static void setLineReceivedAt(long nanoTime) {
+        LINE_RECEIVED_AT.get()[0] = nanoTime;
+    }
+
+    /**
+     * @return when the line the current thread is handling was read, 0 if it isn't handling one
+     */
+    public static long getLineReceivedAt() {
+        return LINE_RECEIVED_AT.get()[0];
+    }
+
+    void countIn(int lines, int bytes) {
+        linesIn.add(lines);
+        bytesIn.add(bytes);
+    }
+
+    void countLineOut() {
+        linesOut.increment();
+    }
+
+    void countBytesOut(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void recordParse(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    /**
+     * @param nanos from reading a PING to writing its PONG
+     */
+    void recordPongTurnaround(long nanos) {
+        pongTurnaround.record(nanos);
+    }
+
+    /**
+     * @param nanos from writing our PING to reading its PONG
+     */
+    void recordServerLag(long nanos) {
+        serverLag.record(nanos);
+    }
+
+    /**
+     * @param receivedAt nanoTime at which the oldest line shown by the frame was read
+     */
+    public void recordRender(long receivedAt) {
+        readToRender.record(System.nanoTime() - receivedAt);
+    }
+
+    /**
+     * @param backlog updates waiting for the FX thread
+     */
+    public void setRenderBacklog(@NotNull IntSupplier backlog) {
+        renderBacklog = backlog;
+    }
+
+    /**
+     * Works out the rates since the last tick. Called by the manager on the selector thread.
+     */
+    void tick(long now, @NotNull Dispatcher dispatcher) {
+        final long[] totals = {linesIn.sum(), linesOut.sum(), bytesIn.sum(), bytesOut.sum()};
+        if (sampledAt != 0) {
+            final double seconds = (now - sampledAt) / 1e9;
+            linesInRate = (totals[0] - sampledTotals[0]) / seconds;
+            linesOutRate = (totals[1] - sampledTotals[1]) / seconds;
+            bytesInRate = (totals[2] - sampledTotals[2]) / seconds;
+            bytesOutRate = (totals[3] - sampledTotals[3]) / seconds;
+        }
+        System.arraycopy(totals, 0, sampledTotals, 0, totals.length);
+        sampledAt = now;
+        dispatchDepth = dispatcher.getQueueDepth();
+        peakDispatchDepth = dispatcher.getPeakQueueDepth();
+    }
+
+    /**
+     * @return the figures as lines for the user
+     */
+    public List<String> describe() {
+        return List.of(
+                "Lines in: %d (%.0f/s), out: %d (%.0f/s)".formatted(getLinesIn(), linesInRate, getLinesOut(), linesOutRate),
+                "Bytes in: %d (%.0f/s), out: %d (%.0f/s)".formatted(getBytesIn(), bytesInRate, getBytesOut(), bytesOutRate),
+                "Parse: " + parseTime,
+                "Read to render: " + readToRender,
+                "PING to PONG: " + pongTurnaround,
+                "Server lag: " + serverLag,
+                "Dispatch queue: %d, at most %d; waiting for the screen: %d".formatted(dispatchDepth, peakDispatchDepth,
+                        getRenderBacklog()));
+    }
+
+    @Override
+    public long getLinesIn() {
+        return linesIn.sum();
+    }
+
+    @Override
+    public long getLinesOut() {
+        return linesOut.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getLinesInPerSecond() {
+        return linesInRate;
+    }
+
+    @Override
+    public double getLinesOutPerSecond() {
+        return linesOutRate;
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInRate;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutRate;
+    }
+
+    @Override
+    public long getParseMicrosP50() {
+        return micros(parseTime.percentile(50));
+    }
+
+    @Override
+    public long getParseMicrosP99() {
+        return micros(parseTime.percentile(99));
+    }
+
+    @Override
+    public long getReadToRenderMicrosP50() {
+        return micros(readToRender.percentile(50));
+    }
+
+    @Override
+    public long getReadToRenderMicrosP99() {
+        return micros(readToRender.percentile(99));
+    }
+
+    @Override
+    public long getReadToRenderMicrosMax() {
+        return micros(readToRender.getMax());
+    }
+
+    @Override
+    public long getPongTurnaroundMicrosP99() {
+        return micros(pongTurnaround.percentile(99));
+    }
+
+    @Override
+    public long getServerLagMicrosP50() {
+        return micros(serverLag.percentile(50));
+    }
+
+    @Override
+    public long getServerLagMicrosMax() {
+        return micros(serverLag.getMax());
+    }
+
+    @Override
+    public int getDispatchQueueDepth() {
+        return dispatchDepth;
+    }
+
+    @Override
+    public int getPeakDispatchQueueDepth() {
+        return peakDispatchDepth;
+    }
+
+    @Override
+    public int getRenderBacklog() {
+        return renderBacklog.getAsInt();
+    }
+
+    @Override
+    public void resetHistograms() {
+        parseTime.reset();
+        readToRender.reset();
+        pongTurnaround.reset();
+        serverLag.reset();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
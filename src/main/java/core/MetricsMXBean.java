@@ -0,0 +1,50 @@
+package core;
+
+/**
+ * What {@link Metrics} shows over JMX, under {@value Metrics#OBJECT_NAME}.
+ * Rates are per second over the last {@link ConnectionManager#TICK_MILLIS} ms, durations in microseconds.
+ */
+public interface MetricsMXBean {
+    long getLinesIn();
+
+    long getLinesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getLinesInPerSecond();
+
+    double getLinesOutPerSecond();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    long getParseMicrosP50();
+
+    long getParseMicrosP99();
+
+    long getReadToRenderMicrosP50();
+
+    long getReadToRenderMicrosP99();
+
+    long getReadToRenderMicrosMax();
+
+    long getPongTurnaroundMicrosP99();
+
+    long getServerLagMicrosP50();
+
+    long getServerLagMicrosMax();
+
+    int getDispatchQueueDepth();
+
+    int getPeakDispatchQueueDepth();
+
+    int getRenderBacklog();
+
+    /**
+     * Forgets the durations recorded so far, the counters keep counting
+     */
+    void resetHistograms();
+}
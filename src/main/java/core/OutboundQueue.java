@@ -0,0 +1,193 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of lines waiting to be written to the server.
+ * It has two lanes: a priority lane for replies which must never wait
+ * (e.g. PONG) and a bounded normal lane for everything else.
+ * Nothing ever waits on it: the consumer is told about new lines through a callback
+ * and takes them with {@link #pollPriority()} and {@link #pollNormal()}.
+ */
+public class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * What to do when a line is offered to the normal lane while it is full
+     */
+    public enum OverflowPolicy {
+        /** Refuse the new line */
+        REJECT,
+        /** Throw away the oldest queued line to make room for the new one */
+        DROP_OLDEST
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<String> priorityLane = new ArrayDeque<>();
+    private final ArrayDeque<String> normalLane = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Runnable onOffer;
+    private boolean closed = false;
+
+    public OutboundQueue() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.REJECT, () -> {});
+    }
+
+    /**
+     * @param onOffer called, outside of the queue's lock, every time a line is accepted
+     */
+    public OutboundQueue(int capacity, @NotNull OverflowPolicy policy, @NotNull Runnable onOffer) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.onOffer = onOffer;
+    }
+
+    /**
+     * Queues a line in the normal lane, applying the overflow policy if it is full
+     *
+     * @param line line to send, without the line terminator
+     * @return false if the line was refused or the queue is closed
+     */
+    public boolean offer(@NotNull String line) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if (normalLane.size() >= capacity) {
+                if (policy == OverflowPolicy.REJECT)
+                    return false;
+                normalLane.poll();
+            }
+            normalLane.add(line);
+        } finally {
+            lock.unlock();
+        }
+        onOffer.run();
+        return true;
+    }
+
+    /**
+     * Queues lines in the normal lane one right after another, e.g. the pieces of a long message.
+     * With {@link OverflowPolicy#REJECT} either all of them are queued or none.
+     *
+     * @return false if the lines were refused or the queue is closed
+     */
+    public boolean offerAll(@NotNull List<String> lines) {
+        if (lines.isEmpty())
+            return true;
+        lock.lock();
+        try {
+            if (closed || policy == OverflowPolicy.REJECT && normalLane.size() + lines.size() > capacity)
+                return false;
+            for (var line : lines) {
+                if (normalLane.size() >= capacity)
+                    normalLane.poll();
+                normalLane.add(line);
+            }
+        } finally {
+            lock.unlock();
+        }
+        onOffer.run();
+        return true;
+    }
+
+    /**
+     * Queues a line in the priority lane. This lane is unbounded and always
+     * drained before the normal one.
+     *
+     * @return false if the queue is closed
+     */
+    public boolean offerPriority(@NotNull String line) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            priorityLane.add(line);
+        } finally {
+            lock.unlock();
+        }
+        onOffer.run();
+        return true;
+    }
+
+    /**
+     * Takes the next line of the priority lane without waiting, leaving the normal lane alone
+     *
+     * @return the line or null if the priority lane is empty
+     */
+    public String pollPriority() {
+        lock.lock();
+        try {
+            return priorityLane.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next line of the normal lane without waiting
+     *
+     * @return the line or null if the normal lane is empty
+     */
+    public String pollNormal() {
+        lock.lock();
+        try {
+            return normalLane.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of lines waiting in the normal lane
+     */
+    public int normalSize() {
+        lock.lock();
+        try {
+            return normalLane.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Throws away the lines in the priority lane, e.g. replies meant for a session that is gone
+     */
+    public void clearPriority() {
+        lock.lock();
+        try {
+            priorityLane.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new lines.
+     * Lines that are already queued can still be taken.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return priorityLane.size() + normalLane.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The figures of {@link Metrics}, taken every second of a flight recording
+ */
+@Name("irc.Pipeline")
+@Label("IRC Pipeline")
+@Category("IRC Client")
+@Description("Traffic and latencies of the connection pipeline")
+@Period("1 s")
+@StackTrace(false)
+final class PipelineEvent extends Event {
+    @Label("Lines In")
+    long linesIn;
+    @Label("Lines Out")
+    long linesOut;
+    @Label("Bytes In")
+    @DataAmount
+    long bytesIn;
+    @Label("Bytes Out")
+    @DataAmount
+    long bytesOut;
+    @Label("Lines In per Second")
+    double linesInPerSecond;
+    @Label("Parse p99")
+    @Timespan(Timespan.MICROSECONDS)
+    long parseP99;
+    @Label("Read to Render p50")
+    @Timespan(Timespan.MICROSECONDS)
+    long readToRenderP50;
+    @Label("Read to Render p99")
+    @Timespan(Timespan.MICROSECONDS)
+    long readToRenderP99;
+    @Label("PING to PONG p99")
+    @Timespan(Timespan.MICROSECONDS)
+    long pongTurnaroundP99;
+    @Label("Server Lag p50")
+    @Timespan(Timespan.MICROSECONDS)
+    long serverLagP50;
+    @Label("Dispatch Queue Depth")
+    int dispatchQueueDepth;
+    @Label("Render Backlog")
+    int renderBacklog;
+
+    PipelineEvent(Metrics metrics) {
+        linesIn = metrics.getLinesIn();
+        linesOut = metrics.getLinesOut();
+        bytesIn = metrics.getBytesIn();
+        bytesOut = metrics.getBytesOut();
+        linesInPerSecond = metrics.getLinesInPerSecond();
+        parseP99 = metrics.getParseMicrosP99();
+        readToRenderP50 = metrics.getReadToRenderMicrosP50();
+        readToRenderP99 = metrics.getReadToRenderMicrosP99();
+        pongTurnaroundP99 = metrics.getPongTurnaroundMicrosP99();
+        serverLagP50 = metrics.getServerLagMicrosP50();
+        dispatchQueueDepth = metrics.getDispatchQueueDepth();
+        renderBacklog = metrics.getRenderBacklog();
+    }
+}
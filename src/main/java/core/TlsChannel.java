@@ -0,0 +1,314 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * TLS over a non-blocking {@link SocketChannel}, driven by an {@link SSLEngine}.
+ * It never blocks: reads and writes move whatever they can and return, and the handshake
+ * advances as a side effect of them. The owner asks {@link #wantsWrite()} and
+ * {@link #isWaitingForPeer()} to know which socket events to wait for.
+ * Delegated tasks of the handshake (mostly certificate checks) run on the calling thread.
+ */
+public class TlsChannel implements ByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private ByteBuffer netIn;  // Encrypted bytes from the socket, write mode
+    private ByteBuffer netOut; // Encrypted bytes for the socket, read mode
+    private ByteBuffer appIn;  // Decrypted bytes the caller hasn't taken yet, read mode
+    private boolean handshakeStarted = false;
+    private long handshakeStartedAt = 0;
+    private long handshakeStartedMillis = 0; // Wall clock, which sessions are stamped with
+    private long handshakeNanos = -1;
+    private boolean resumed = false;
+    private boolean closed = false;
+
+    /**
+     * @param engine engine in client mode, not started yet
+     */
+    public TlsChannel(@NotNull SocketChannel socket, @NotNull SSLEngine engine) {
+        this.socket = socket;
+        this.engine = engine;
+        var session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize()).flip();
+    }
+
+    /**
+     * @return true once the first handshake has finished
+     */
+    public boolean isHandshakeDone() {
+        return handshakeNanos >= 0;
+    }
+
+    /**
+     * @return how long the first handshake took, or -1 if it hasn't finished yet
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * @return true if the first handshake has taken up a session of an earlier connection instead of making a new one
+     */
+    public boolean isSessionResumed() {
+        return resumed;
+    }
+
+    /**
+     * @return true if there are encrypted bytes the socket hasn't taken yet, or the engine has more to say
+     */
+    public boolean wantsWrite() {
+        return netOut.hasRemaining() || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    /**
+     * @return true if nothing can be written until the server has answered
+     */
+    public boolean isWaitingForPeer() {
+        return !netOut.hasRemaining() && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP;
+    }
+
+    /**
+     * @return true if bytes already taken from the socket are waiting to be read, the socket won't signal them again
+     */
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.position() > 0;
+    }
+
+    @Override
+    public int read(@NotNull ByteBuffer dst) throws IOException {
+        if (!appIn.hasRemaining()) {
+            if (engine.isInboundDone())
+                return -1; // The server has said goodbye
+            if (!handshake())
+                return 0;
+            final boolean eof = socket.read(netIn) < 0;
+            if (eof && netIn.position() == 0)
+                return -1;
+            if (!unwrap())
+                return appIn.hasRemaining() ? transfer(dst) : -1;
+            // Answers the engine owes after reading, e.g. to a renegotiation or a close
+            flush();
+            if (eof && !appIn.hasRemaining())
+                return -1; // Whatever is left can never become a whole record
+        }
+        return transfer(dst);
+    }
+
+    @Override
+    public int write(@NotNull ByteBuffer src) throws IOException {
+        if (!flush() || !handshake())
+            return 0;
+        int written = 0;
+        while (src.hasRemaining()) {
+            netOut.compact();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            written += result.bytesConsumed();
+            switch (result.getStatus()) {
+                case OK -> {
+                    if (!flush())
+                        return written;
+                }
+                case BUFFER_OVERFLOW -> {
+                    if (!flush())
+                        return written; // The socket has to take some first
+                    if (netOut.capacity() < engine.getSession().getPacketBufferSize())
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                }
+                case CLOSED -> throw new EOFException("TLS session is closed");
+                default -> throw new SSLException("Unexpected wrap result: " + result);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Sends whatever encrypted bytes are waiting
+     *
+     * @return true if there is nothing left
+     */
+    public boolean flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return socket.isOpen();
+    }
+
+    /**
+     * Says goodbye as far as the socket takes it without waiting, then closes the socket
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (flush() && handshakeStarted) {
+                netOut.compact();
+                try {
+                    engine.wrap(EMPTY, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                flush();
+            }
+        } catch (IOException ignored) {
+            // The socket is closed either way
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Advances the handshake as far as it can go without waiting
+     *
+     * @return true if application data can flow
+     */
+    private boolean handshake() throws IOException {
+        if (!handshakeStarted) {
+            handshakeStarted = true;
+            handshakeStartedAt = System.nanoTime();
+            handshakeStartedMillis = System.currentTimeMillis();
+            engine.beginHandshake();
+        }
+        if (engine.isInboundDone() || engine.isOutboundDone())
+            return true; // Closing, what the engine still owes is sent by close()
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NOT_HANDSHAKING, FINISHED -> {
+                    if (handshakeNanos < 0) {
+                        handshakeNanos = System.nanoTime() - handshakeStartedAt;
+                        // A resumed session keeps the time it was made at, before this handshake
+                        resumed = engine.getSession().getCreationTime() < handshakeStartedMillis;
+                    }
+                    return true;
+                }
+                case NEED_TASK -> {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null)
+                        task.run();
+                }
+                case NEED_WRAP -> {
+                    netOut.compact();
+                    SSLEngineResult result;
+                    try {
+                        result = engine.wrap(EMPTY, netOut);
+                    } finally {
+                        netOut.flip();
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                        netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    else if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new EOFException("TLS handshake was closed");
+                    // Consecutive records go out in one write: a small write followed by another
+                    // would wait for the server's delayed ACK
+                    if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP && !flush())
+                        return false;
+                }
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    if (socket.read(netIn) < 0 && netIn.position() == 0)
+                        throw new EOFException("Server has closed the connection during the TLS handshake");
+                    final int before = netIn.position();
+                    if (!unwrap())
+                        throw new EOFException("TLS handshake was closed");
+                    if (netIn.position() == before && engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP)
+                        return false; // Not a whole record yet, wait for the server
+                }
+            }
+        }
+    }
+
+    /**
+     * Decrypts as much of {@link #netIn} as possible into {@link #appIn}
+     *
+     * @return false if the server has closed the session
+     */
+    private boolean unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            while (netIn.hasRemaining()) {
+                var result = engine.unwrap(netIn, appIn);
+                switch (result.getStatus()) {
+                    case OK -> {
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+                            return true;
+                        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                                || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                            return true; // The handshake has to act before reading further
+                    }
+                    case BUFFER_UNDERFLOW -> {
+                        // Not a whole record yet; make sure one can fit
+                        if (netIn.limit() == netIn.capacity() && netIn.position() == 0)
+                            netIn = growForRead(netIn, engine.getSession().getPacketBufferSize());
+                        return true;
+                    }
+                    case BUFFER_OVERFLOW -> {
+                        if (appIn.position() > 0)
+                            return true; // Let the caller take what's there first
+                        appIn = grow(appIn.flip(), engine.getSession().getApplicationBufferSize()).compact();
+                    }
+                    case CLOSED -> {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    private int transfer(@NotNull ByteBuffer dst) {
+        final int count = Math.min(dst.remaining(), appIn.remaining());
+        if (count == 0)
+            return 0;
+        var slice = appIn.slice(appIn.position(), count);
+        dst.put(slice);
+        appIn.position(appIn.position() + count);
+        return count;
+    }
+
+    /**
+     * @param buffer buffer in read mode
+     * @return a bigger buffer with the same contents, in read mode
+     */
+    private static ByteBuffer grow(@NotNull ByteBuffer buffer, int atLeast) {
+        var bigger = ByteBuffer.allocate(Math.max(atLeast, buffer.capacity() * 2));
+        bigger.put(buffer);
+        return bigger.flip();
+    }
+
+    /**
+     * @param buffer buffer in read mode, as netIn is while unwrapping
+     * @return a bigger buffer with the same contents, in read mode
+     */
+    private static ByteBuffer growForRead(@NotNull ByteBuffer buffer, int atLeast) {
+        return grow(buffer, Math.max(atLeast, buffer.capacity() + 1));
+    }
+}
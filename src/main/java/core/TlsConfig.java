@@ -0,0 +1,74 @@
+package core;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How a connection is secured. The server's certificate is checked against the JVM's trust store
+ * ({@code javax.net.ssl.trustStore} can point at another one) and must match the host name.
+ * <p>
+ * Connections with the same configuration share one {@link SSLContext}, and with it the
+ * cache of TLS sessions, so a reconnect to the same server resumes the session
+ * instead of going through the full handshake again.
+ *
+ * @param clientKeyStore PKCS#12 file with the client certificate and its key, used for
+ *                       SASL EXTERNAL; null to connect without one
+ * @param keyStorePassword password of the key store, may be empty
+ */
+public record TlsConfig(Path clientKeyStore, @NotNull String keyStorePassword) {
+    public static final int DEFAULT_PORT = 6697;
+    /** TLS without a client certificate */
+    public static final TlsConfig DEFAULT = new TlsConfig(null, "");
+
+    private static final ConcurrentHashMap<TlsConfig, SSLContext> CONTEXTS = new ConcurrentHashMap<>();
+
+    public boolean hasClientCertificate() {
+        return clientKeyStore != null;
+    }
+
+    /**
+     * @return a client engine for the server, with SNI and host name checking turned on
+     * @throws IOException if the key store can't be read or TLS isn't available
+     */
+    public SSLEngine createEngine(@NotNull String host, int port) throws IOException {
+        var engine = context().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        var parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    private SSLContext context() throws IOException {
+        var context = CONTEXTS.get(this);
+        if (context != null)
+            return context;
+        try {
+            KeyManagerFactory keyManagers = null;
+            if (clientKeyStore != null) {
+                var keyStore = KeyStore.getInstance("PKCS12");
+                try (InputStream in = Files.newInputStream(clientKeyStore)) {
+                    keyStore.load(in, keyStorePassword.toCharArray());
+                }
+                keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keyStore, keyStorePassword.toCharArray());
+            }
+            context = SSLContext.getInstance("TLS");
+            context.init(keyManagers == null ? null : keyManagers.getKeyManagers(), null, null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Couldn't set up TLS: " + e.getMessage(), e);
+        }
+        var existing = CONTEXTS.putIfAbsent(this, context);
+        return existing != null ? existing : context;
+    }
+}
@@ -1,28 +1,66 @@
 package core.controller;
 
+import core.App;
 import core.ConnectionHandler;
+import core.ConnectionListener;
+import core.IgnoreRule;
+import core.Metrics;
+import core.highlight.HighlightSettings;
+import core.highlight.Highlighter;
+import core.history.SearchQuery;
+import core.lines.Buffer;
 import core.lines.ChannelInfoTable;
-import core.lines.ErrorLine;
-import core.lines.TextLine;
-import core.lines.WarningLine;
+import core.lines.MemberCell;
+import core.lines.MessageCell;
 import core.records.Channel;
+import core.records.ChannelInfo;
+import core.records.Message;
+import core.state.Member;
 import javafx.application.Platform;
-import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.collections.ListChangeListener;
 import javafx.fxml.FXML;
-import javafx.scene.control.ScrollPane;
+import javafx.scene.control.Alert;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TabPane;
 import javafx.scene.control.TextField;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import org.jetbrains.annotations.NotNull;
+import util.FrameBatcher;
 
+import java.io.IOException;
 import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Controller for the {@link javafx.scene.Parent Parent} which will belong to the {@link javafx.scene.Scene Scene}
- * when the connection to the server is established
+ * when the connection to the server is established.
+ * Listens to the connection and turns its events into views.
+ * <p>
+ * Every target has its own {@link Buffer} with a tab: the server, each channel and each query.
+ * There is a single message list, showing the selected buffer; the others keep their messages encoded
+ * and count what's unread, and switching to one decodes its newest messages into the list at once.
+ * <p>
+ * Messages are checked for highlights by a {@link Highlighter} on the thread which received them,
+ * so the FX thread only files the ones which were found.
  */
-public final class MainController extends Controller {
+public final class MainController extends Controller implements ConnectionListener {
     private static final String HELP_MSG = """
         Available commands:
         /help - print this message
@@ -30,26 +68,84 @@ public final class MainController extends Controller {
         /list - list available channels
         /join <CHANNEL NAME> - join a channel by name
         /m <DESTINATION> <MESSAGE> - send a message to destination
-        <MESSAGE> - send a message to a channel, if you have joined one
+        /search <WORDS> [#CHANNEL] [from:NICK] - find the latest logged messages with all the words
+        /stats - show traffic and latencies of the connection
+        /highlight - list the keywords and rules which highlight messages, besides your nick
+        /highlight add <WORDS | /REGEX/> - highlight messages with the words, or matching the expression
+        /highlight remove <WORDS | /REGEX/> - stop highlighting on them
+        /ignore - list the ignore rules and how many lines each has dropped
+        /ignore <MASK> [TYPES] [#CHANNEL] [DURATION] [/REGEX/] - drop lines from senders matching the mask,
+            e.g. /ignore spammer JOINS,PARTS #channel 2h; types are MESSAGES, NOTICES, CTCPS, JOINS, PARTS,
+            QUITS or ALL (the default), durations like 30m, 12h or 7d
+        /unignore <MASK | NUMBER> - remove the rules of the mask, or the rule numbered so by /ignore
+        <MESSAGE> - send a message to the channel or user of the selected tab
         """;
+    /** Most messages /search shows */
+    private static final int SEARCH_LIMIT = 100;
+    /** Most highlighted messages remembered for their looks, the newest ones */
+    private static final int HIGHLIGHTS_KEPT = 10_000;
+    private static final DateTimeFormatter SEARCH_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+            .withZone(ZoneId.systemDefault());
     private static MainController instance = null;
-    private static final HashMap<String, Runnable> CLIENT_COMMANDS = new HashMap<>();
+    /** Commands handled by the client itself, they get the whole command with its arguments */
+    private static final HashMap<String, Consumer<String[]>> CLIENT_COMMANDS = new HashMap<>();
     static {
-        CLIENT_COMMANDS.put("help", () -> instance.messageBox.getChildren().add(new TextLine(HELP_MSG)));
-        CLIENT_COMMANDS.put("quit", ConnectionHandler::disconnect);
+        CLIENT_COMMANDS.put("help", cmd -> instance.show(List.of(Message.text(HELP_MSG))));
+        CLIENT_COMMANDS.put("quit", cmd -> instance.connection.disconnect());
+        CLIENT_COMMANDS.put("stats", cmd -> instance.showStats());
+        CLIENT_COMMANDS.put("search", cmd -> instance.search(SearchQuery.parse(Arrays.asList(cmd).subList(1, cmd.length))));
+        CLIENT_COMMANDS.put("highlight", cmd -> instance.highlight(cmd));
+        CLIENT_COMMANDS.put("ignore", cmd -> instance.ignore(cmd));
+        CLIENT_COMMANDS.put("unignore", cmd -> instance.unignore(cmd));
     }
     
     private final ChannelInfoTable channelTable = new ChannelInfoTable();
+    private final HighlightSettings highlightSettings = App.getHighlights();
+    /** Messages, channel switches and member changes, in the order they happened */
+    private final FrameBatcher<Object> printBatcher = new FrameBatcher<>(FrameBatcher.DEFAULT_MAX_BATCH,
+            this::applyUpdates, Metrics.getInstance()::recordRender);
+    // Used on the FX thread only
+    private final HashMap<String, Buffer> buffers = new HashMap<>(); // By folded target, "" for the server
+    /** The newest highlighted messages, which look the same however often they're decoded from a buffer */
+    private final Map<Message, Boolean> highlighted = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Message, Boolean> eldest) {
+            return size() > HIGHLIGHTS_KEPT;
+        }
+    };
+    private ConnectionHandler connection = null;
+    private Buffer current = null;
+    private boolean membersLoading = false;
+    private boolean membersStale = false;
     
-    @FXML private ScrollPane scrollPane;
-    @FXML private VBox messageBox;
+    @FXML private TabPane bufferTabs;
+    @FXML private ListView<Message> messageList;
+    @FXML private ListView<Member> memberList;
+    @FXML private VBox channelPane;
     
     @FXML private TextField textField;
+    @FXML private Label sendStatus;
     
     @FXML @Override
     protected void initialize() {
         instance = this;
-        messageBox.maxWidthProperty().bind(scrollPane.widthProperty());
+        Metrics.getInstance().setRenderBacklog(printBatcher::getPending);
+        messageList.setCellFactory(list -> new MessageCell(highlighted::containsKey));
+        memberList.setCellFactory(list -> new MemberCell());
+        memberList.managedProperty().bind(memberList.visibleProperty());
+        bufferTabs.getSelectionModel().selectedItemProperty().addListener((observable, oldTab, tab) -> {
+            if (tab != null)
+                showBuffer((Buffer) tab.getUserData());
+        });
+        bufferTabs.getTabs().addListener((ListChangeListener<Tab>) change -> {
+            while (change.next())
+                for (var tab : change.getRemoved())
+                    forget((Buffer) tab.getUserData());
+        });
+        channelPane.getChildren().add(channelTable);
+        VBox.setVgrow(channelTable, Priority.ALWAYS);
+        channelPane.managedProperty().bind(channelPane.visibleProperty());
+        sendStatus.managedProperty().bind(sendStatus.visibleProperty());
         textField.setOnAction(e -> onSendButton());
     }
 
@@ -57,26 +153,492 @@ public final class MainController extends Controller {
         return instance;
     }
 
-    public static void print(@NotNull TextLine textLine) {
-        Platform.runLater(() -> instance.messageBox.getChildren().add(textLine));
+    /**
+     * @param connection connection which the user's input is sent to
+     */
+    public void setConnection(@NotNull ConnectionHandler connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Queues a message for the list, it is shown with the next frame.
+     * Can be called from any thread.
+     */
+    public static void print(@NotNull Message message) {
+        instance.printBatcher.add(message);
     }
     
-    public static void printChannels(@NotNull Collection<Channel> channels) {
+    @Override
+    public void onMessage(@NotNull ConnectionHandler connection, @NotNull Message message) {
+        var highlighter = highlightSettings.highlighter(connection.getNick());
+        printBatcher.add(isHighlight(highlighter, message) ? new Highlight(message) : message,
+                Metrics.getLineReceivedAt());
+    }
+
+    @Override
+    public void onHistory(@NotNull ConnectionHandler connection, @NotNull String target, @NotNull List<Message> messages) {
+        var highlighter = highlightSettings.highlighter(connection.getNick());
+        var highlights = new ArrayList<Message>();
+        for (var message : messages) {
+            if (isHighlight(highlighter, message))
+                highlights.add(message);
+        }
+        // One update however long it is, so that it's applied in a single frame
+        printBatcher.add(new History(target, messages, highlights));
+    }
+
+    @Override
+    public void onChannelSwitched(@NotNull ConnectionHandler connection, Channel channel, @NotNull List<Message> history) {
+        printBatcher.add(new ChannelSwitch(channel == null ? null : channel.name(), history));
+    }
+
+    @Override
+    public void onMembersChanged(@NotNull ConnectionHandler connection, @NotNull String channel) {
+        printBatcher.add(new MembersChanged(channel));
+    }
+
+    @Override
+    public void onChannelListStarted(@NotNull ConnectionHandler connection) {
+        channelTable.begin();
+        Platform.runLater(() -> channelPane.setVisible(true));
+    }
+
+    @Override
+    public void onChannelInfo(@NotNull ConnectionHandler connection, @NotNull ChannelInfo info) {
+        channelTable.add(info);
+    }
+
+    @Override
+    public void onChannelListEnded(@NotNull ConnectionHandler connection, int count) {
+        channelTable.end();
+    }
+
+    @Override
+    public void onSendQueueChanged(@NotNull ConnectionHandler connection, int queued, long delayMillis) {
+        if (connection != this.connection)
+            return;
         Platform.runLater(() -> {
-            instance.channelTable.setChannels(channels);
-            instance.messageBox.getChildren().remove(instance.channelTable);
-            instance.messageBox.getChildren().add(instance.channelTable);
+            sendStatus.setVisible(queued > 0);
+            sendStatus.setText(MessageFormat.format("Sending {0} queued {0,choice,1#line|1<lines} (about {1} s)",
+                    queued, Math.max(1, TimeUnit.MILLISECONDS.toSeconds(delayMillis))));
         });
     }
+
+    @Override
+    public void onDisconnected(@NotNull ConnectionHandler connection, boolean byServer) {
+        if (byServer)
+            Platform.runLater(() -> new Alert(Alert.AlertType.INFORMATION, "Server has closed the connection").showAndWait());
+        // Go back to the start if it was the connection the user was talking to
+        if (App.isRunning() && connection == this.connection)
+            App.showRoot("start");
+    }
     
-    public ReadOnlyDoubleProperty scrollPaneWidthProperty() {
-        return scrollPane.widthProperty();
+    /**
+     * Files the batch of updates which arrived since the last frame into their buffers.
+     * Only the messages of the shown buffer reach the list, the other buffers count them as unread.
+     */
+    private void applyUpdates(@NotNull List<Object> updates) {
+        var added = new ArrayList<Message>();
+        var counted = new LinkedHashSet<Buffer>();
+        boolean membersChanged = false;
+        int highlights = 0;
+        for (Object update : updates) {
+            final boolean isHighlight = update instanceof Highlight;
+            if (update instanceof Highlight highlight) {
+                highlighted.put(highlight.message(), Boolean.TRUE);
+                highlights++;
+                update = highlight.message();
+            }
+            if (update instanceof Message message) {
+                var buffer = bufferFor(message.target());
+                buffer.append(message);
+                if (buffer == current) {
+                    added.add(message);
+                } else if (isUnread(message)) {
+                    buffer.markUnread(isHighlight);
+                    counted.add(buffer);
+                }
+            } else if (update instanceof ChannelSwitch channelSwitch) {
+                if (channelSwitch.channel() == null)
+                    continue; // Left the channel, its buffer stays until the user picks another one
+                var buffer = bufferFor(channelSwitch.channel());
+                if (buffer.size() == 0) // Otherwise it has had every message of the channel already
+                    buffer.merge(channelSwitch.history());
+                // What was added to the old buffer goes to the list before it's replaced
+                appendToList(added);
+                added.clear();
+                select(buffer);
+            } else if (update instanceof History history) {
+                var buffer = bufferFor(history.target());
+                for (var message : history.highlights())
+                    highlighted.put(message, Boolean.TRUE);
+                if (!buffer.merge(history.messages()))
+                    continue;
+                if (buffer == current) {
+                    added.clear(); // Already in the buffer, the list is rebuilt from it
+                    showWindow(buffer);
+                } else {
+                    buffer.markUnread(!history.highlights().isEmpty());
+                    counted.add(buffer);
+                }
+            } else if (update instanceof MembersChanged changed && current != null && current.isChannel()
+                    && connection.getState().fold(changed.channel()).equals(connection.getState().fold(current.getTarget()))) {
+                membersChanged = true;
+            }
+        }
+        appendToList(added);
+        for (var buffer : counted)
+            buffer.updateTab();
+        if (membersChanged)
+            loadMembers();
+        if (highlights > 0)
+            App.notifyHighlights(highlights);
+    }
+
+    /**
+     * @return the buffer of the target, with a new tab if it's the first message of the target
+     */
+    private Buffer bufferFor(String target) {
+        final String key = target == null ? "" : connection == null ? target : connection.getState().fold(target);
+        var buffer = buffers.get(key);
+        if (buffer == null) {
+            final String title = target != null ? target : connection != null ? connection.getHost() : "Server";
+            buffer = new Buffer(target, title, App.SCROLLBACK_LIMIT);
+            buffers.put(key, buffer);
+            bufferTabs.getTabs().add(buffer.getTab());
+            if (current == null)
+                select(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * The user has closed the buffer's tab
+     */
+    private void forget(@NotNull Buffer buffer) {
+        buffers.values().remove(buffer);
+        if (buffer == current)
+            current = null;
+    }
+
+    private void select(@NotNull Buffer buffer) {
+        if (bufferTabs.getSelectionModel().getSelectedItem() == buffer.getTab())
+            showBuffer(buffer);
+        else
+            bufferTabs.getSelectionModel().select(buffer.getTab()); // Shows it through the listener
+    }
+
+    /**
+     * Puts the buffer into the list and, the first time it's shown, reads its older messages from the log
+     */
+    private void showBuffer(@NotNull Buffer buffer) {
+        current = buffer;
+        buffer.markRead();
+        showWindow(buffer);
+        memberList.setVisible(buffer.isChannel());
+        memberList.getItems().clear();
+        if (buffer.isChannel())
+            loadMembers();
+        if (buffer.getTarget() != null && buffer.size() < App.SCROLLBACK_LIMIT && buffer.takeLogLoad())
+            loadOlder(buffer);
+    }
+
+    /**
+     * Replaces the list with the newest messages of the buffer
+     */
+    private void showWindow(@NotNull Buffer buffer) {
+        var items = messageList.getItems();
+        items.setAll(buffer.window(App.SCROLLBACK_LIMIT));
+        messageList.scrollTo(items.size() - 1);
+    }
+
+    /**
+     * @return whether the message counts as unread in a buffer in the background: what others have said
+     */
+    private static boolean isUnread(@NotNull Message message) {
+        return (message.kind() == Message.Kind.MESSAGE || message.kind() == Message.Kind.NOTICE)
+                && !"YOU".equals(message.sender());
+    }
+
+    /**
+     * @return whether the message mentions the user, every message of a query does
+     */
+    private static boolean isHighlight(@NotNull Highlighter highlighter, @NotNull Message message) {
+        if (!isUnread(message))
+            return false;
+        return message.kind() == Message.Kind.MESSAGE && isQuery(message.target()) || highlighter.matches(message.text());
+    }
+
+    private static boolean isQuery(String target) {
+        return target != null && !target.isEmpty() && target.charAt(0) != '#' && target.charAt(0) != '&';
+    }
+
+    /**
+     * Takes a snapshot of the shown channel's members in the background and shows it.
+     * At most one is taken at a time; changes meanwhile make one more once it's done.
+     */
+    private void loadMembers() {
+        if (membersLoading) {
+            membersStale = true;
+            return;
+        }
+        final Buffer buffer = current;
+        if (buffer == null || !buffer.isChannel())
+            return;
+        membersLoading = true;
+        membersStale = false;
+        final var state = connection.getState();
+        CompletableFuture.supplyAsync(() -> state.getMembers(buffer.getTarget()))
+                .thenAccept(members -> Platform.runLater(() -> {
+                    membersLoading = false;
+                    if (buffer == current)
+                        memberList.getItems().setAll(members);
+                    if (membersStale)
+                        loadMembers();
+                }));
+    }
+
+    /**
+     * Reads the messages sent before the buffer's oldest one from the {@link core.history.ChatLog ChatLog}
+     * in the background and merges them into the buffer.
+     * That's how a buffer gets its history back after a restart or a reconnect.
+     */
+    private void loadOlder(@NotNull Buffer buffer) {
+        final String network = connection.getHost();
+        final long before = buffer.getFirstTimestamp();
+        final int count = App.SCROLLBACK_LIMIT - buffer.size();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return App.getChatLog().readBefore(network, buffer.getTarget(), before, count);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return List.<Message>of();
+            }
+        }).thenAccept(older -> Platform.runLater(() -> {
+            if (buffers.containsValue(buffer) && buffer.merge(older) && buffer == current)
+                showWindow(buffer);
+        }));
+    }
+
+    /**
+     * Looks the query up in the {@link core.history.ChatLog ChatLog} in the background and shows what was found,
+     * each message with the channel and the time it was sent
+     */
+    private void search(@NotNull SearchQuery query) {
+        if (query.isEmpty()) {
+            show(List.of(Message.warning("Usage: /search <WORDS> [#CHANNEL] [from:NICK]")));
+            return;
+        }
+        final String network = connection.getHost();
+        CompletableFuture.supplyAsync(() -> {
+            final long start = System.nanoTime();
+            try {
+                var found = App.getChatLog().search(network, query, SEARCH_LIMIT);
+                var lines = new ArrayList<Message>(found.size() + 1);
+                lines.add(Message.text(MessageFormat.format("{0} messages found in {1} ms", found.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start))));
+                for (var message : found)
+                    lines.add(new Message(message.kind(), message.target(), message.sender(),
+                            "[%s %s] %s".formatted(message.target(),
+                                    SEARCH_TIME_FORMAT.format(Instant.ofEpochMilli(message.timestamp())), message.text()),
+                            message.timestamp()));
+                return lines;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return List.of(Message.error("Couldn't search the log: " + e.getMessage()));
+            }
+        }).thenAccept(lines -> Platform.runLater(() -> show(lines)));
+    }
+
+    /**
+     * Lists, adds or removes highlight keywords and rules; the file is written in the background
+     */
+    private void highlight(@NotNull String[] cmd) {
+        if (cmd.length == 1) {
+            var entries = highlightSettings.list();
+            var lines = new ArrayList<Message>(entries.size() + 1);
+            lines.add(Message.text(entries.isEmpty() ? "Only your nick is highlighted"
+                    : "Highlighted besides your nick:"));
+            for (var entry : entries)
+                lines.add(Message.text(entry.startsWith(HighlightSettings.RULE_PREFIX)
+                        ? "/" + entry.substring(HighlightSettings.RULE_PREFIX.length()) + "/" : entry));
+            show(lines);
+            return;
+        }
+        final String entry = String.join(" ", Arrays.asList(cmd).subList(2, cmd.length)).strip();
+        final boolean add = cmd[1].equals("add");
+        if (!add && !cmd[1].equals("remove") || entry.isEmpty()) {
+            show(List.of(Message.warning("Usage: /highlight [add | remove <WORDS | /REGEX/>]")));
+            return;
+        }
+        final boolean isRule = entry.length() > 2 && entry.startsWith("/") && entry.endsWith("/");
+        final String value = isRule ? entry.substring(1, entry.length() - 1) : entry;
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                if (!add)
+                    return (isRule ? highlightSettings.removeRule(value) : highlightSettings.removeKeyword(value))
+                            ? Message.text("No longer highlighting " + entry) : Message.warning(entry + " isn't highlighted");
+                if (isRule ? highlightSettings.addRule(value) : highlightSettings.addKeyword(value))
+                    return Message.text("Highlighting " + entry);
+                return Message.warning(entry + " is highlighted already");
+            } catch (PatternSyntaxException e) {
+                return Message.error("Not a regular expression: " + e.getDescription());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Message.error("Couldn't save the highlights: " + e.getMessage());
+            }
+        }).thenAccept(message -> Platform.runLater(() -> show(List.of(message))));
+    }
+
+    /**
+     * Lists the ignore rules or adds one; the file is written in the background
+     */
+    private void ignore(@NotNull String[] cmd) {
+        var ignores = App.getIgnores();
+        if (cmd.length == 1) {
+            var rules = ignores.list();
+            var lines = new ArrayList<Message>(rules.size() + 1);
+            lines.add(Message.text(rules.isEmpty() ? "Nothing is ignored" : "Ignored:"));
+            for (int i = 0; i < rules.size(); i++)
+                lines.add(Message.text(MessageFormat.format("{0}. {1} ({2} {2,choice,0#lines|1#line|1<lines} dropped)",
+                        i + 1, rules.get(i), rules.get(i).getHits())));
+            show(lines);
+            return;
+        }
+        final IgnoreRule rule;
+        try {
+            rule = IgnoreRule.parse(Arrays.asList(cmd).subList(1, cmd.length), System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            show(List.of(Message.error(e.getMessage())));
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                ignores.add(rule);
+                return Message.text("Ignoring " + rule);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Message.warning("Ignoring " + rule + " until the client is closed, it couldn't be saved: "
+                        + e.getMessage());
+            }
+        }).thenAccept(message -> Platform.runLater(() -> show(List.of(message))));
+    }
+
+    /**
+     * Removes the rules of a mask, or a rule by its number in the list of /ignore
+     */
+    private void unignore(@NotNull String[] cmd) {
+        if (cmd.length != 2 || cmd[1].isEmpty()) {
+            show(List.of(Message.warning("Usage: /unignore <MASK | NUMBER>")));
+            return;
+        }
+        var ignores = App.getIgnores();
+        final String arg = cmd[1];
+        IgnoreRule numbered = null;
+        if (arg.chars().allMatch(Character::isDigit)) {
+            var rules = ignores.list();
+            final int number = arg.length() > 9 ? 0 : Integer.parseInt(arg);
+            if (number < 1 || number > rules.size()) {
+                show(List.of(Message.warning("There is no rule " + arg + ", /ignore lists them")));
+                return;
+            }
+            numbered = rules.get(number - 1);
+        }
+        final IgnoreRule rule = numbered;
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                if (rule != null)
+                    return ignores.remove(rule) ? Message.text("No longer ignoring " + rule)
+                            : Message.warning(rule + " has expired already");
+                final int removed = ignores.removeMask(arg);
+                return removed > 0
+                        ? Message.text(MessageFormat.format("{0} {0,choice,1#rule|1<rules} of {1} removed", removed,
+                        IgnoreRule.normalizeMask(arg)))
+                        : Message.warning("Nothing is ignored by " + IgnoreRule.normalizeMask(arg));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Message.error("Couldn't save the ignore rules: " + e.getMessage());
+            }
+        }).thenAccept(message -> Platform.runLater(() -> show(List.of(message))));
+    }
+
+    /**
+     * Shows the figures of {@link Metrics} and the lag of the connection
+     */
+    private void showStats() {
+        var lines = new ArrayList<Message>();
+        for (var line : Metrics.getInstance().describe())
+            lines.add(Message.text(line));
+        final long lag = connection.getLagMillis();
+        lines.add(Message.text(lag < 0 ? "Lag: not measured yet" : "Lag: " + lag + " ms"));
+        show(lines);
+    }
+
+    /**
+     * Adds messages of the client itself, e.g. help or search results, to the shown buffer.
+     * Must be called on the FX thread.
+     */
+    private void show(@NotNull Collection<Message> messages) {
+        var buffer = current != null ? current : bufferFor(null);
+        for (var message : messages)
+            buffer.append(message);
+        appendToList(messages);
+    }
+
+    /**
+     * Appends messages to the list, evicting the oldest ones once there are more than
+     * {@link App#SCROLLBACK_LIMIT}, and scrolls to the bottom.
+     * Must be called on the FX thread.
+     */
+    private void appendToList(@NotNull Collection<Message> messages) {
+        var items = messageList.getItems();
+        if (messages.isEmpty())
+            return;
+        items.addAll(messages);
+        int excess = items.size() - App.SCROLLBACK_LIMIT;
+        if (excess > 0)
+            items.remove(0, excess);
+        messageList.scrollTo(items.size() - 1);
     }
 
     @Override
     public void reset() {
+        printBatcher.clear();
+        current = null;
+        buffers.clear();
+        highlighted.clear();
+        bufferTabs.getTabs().clear();
         textField.clear();
-        messageBox.getChildren().clear();
+        sendStatus.setVisible(false);
+        messageList.getItems().clear();
+        memberList.getItems().clear();
+        memberList.setVisible(false);
+        membersStale = false;
+        channelTable.clear();
+        channelPane.setVisible(false);
+    }
+
+    private record ChannelSwitch(String channel, @NotNull List<Message> history) {
+    }
+
+    /**
+     * @param highlights those of the messages which mention the user
+     */
+    private record History(@NotNull String target, @NotNull List<Message> messages, @NotNull List<Message> highlights) {
+    }
+
+    /**
+     * A message which mentions the user
+     */
+    private record Highlight(@NotNull Message message) {
+    }
+
+    private record MembersChanged(@NotNull String channel) {
+    }
+
+    @FXML
+    private void onHideChannels() {
+        channelPane.setVisible(false);
     }
 
     @FXML
@@ -88,34 +650,34 @@ public final class MainController extends Controller {
         if(text.charAt(0) == '/') {
             final String[] cmd = text.substring(1).split(" ");
             if(cmd.length == 0) {
-                Platform.runLater(() -> {
-                    messageBox.getChildren().add(new ErrorLine(MessageFormat.format("Command {0} is not recognized!", text)));
-                    messageBox.getChildren().add(new TextLine(HELP_MSG));
-                });
+                show(List.of(
+                        Message.error(MessageFormat.format("Command {0} is not recognized!", text)),
+                        Message.text(HELP_MSG)));
                 return;
             }
 
-            Runnable action = CLIENT_COMMANDS.get(cmd[0]);
+            var action = CLIENT_COMMANDS.get(cmd[0]);
             if(action != null) {
-                Platform.runLater(action);
+                Platform.runLater(() -> action.accept(cmd));
                 return;
             }
-            if(!ConnectionHandler.sendCommand(cmd)) {
-                Platform.runLater(() -> {
-                    messageBox.getChildren().add(new ErrorLine(MessageFormat.format("Command {0} is not recognized!", text)));
-                    messageBox.getChildren().add(new TextLine(HELP_MSG));
-                });
+            if(!connection.sendCommand(cmd)) {
+                show(List.of(
+                        Message.error(MessageFormat.format("Command {0} is not recognized!", text)),
+                        Message.text(HELP_MSG)));
             }
             return;
         }
-        if(! ConnectionHandler.sendMessage(text)) {
-            messageBox.getChildren().add(new WarningLine("""
-            You haven't joined any channel yet.
+        if (current == null || current.getTarget() == null) {
+            show(List.of(Message.warning("""
+            Messages go to the channel or user of the selected tab, this one is the server's.
             Enter /join <CHANNEL_NAME> to join a channel.
             Enter /m <USER_NAME or #CHANNEL_NAME> to send a direct message.
-            Enter /channels to see all available channels.
-            """));
+            Enter /list to see all available channels.
+            """)));
+            return;
         }
+        connection.sendCommand(new String[]{"m", current.getTarget(), text});
     }
 
 }
@@ -2,6 +2,8 @@ package core.controller;
 
 import core.App;
 import core.ConnectionHandler;
+import core.ExecutionMode;
+import core.TlsConfig;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
@@ -12,6 +14,7 @@ import javafx.scene.layout.VBox;
 import util.TextFieldCharSkipper;
 
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -32,6 +35,11 @@ public final class StartController extends Controller {
     @FXML private PasswordField passField;
     @FXML private Label passwordRepeatLabel;
     @FXML private PasswordField passRepeatField;
+    @FXML private CheckBox tlsBox;
+    @FXML private Label certLabel;
+    @FXML private TextField certField;
+    @FXML private Label certPassLabel;
+    @FXML private PasswordField certPassField;
     @FXML private Button connectButton;
 
     @FXML private VBox loadingPane;
@@ -58,6 +66,18 @@ public final class StartController extends Controller {
                 passRepeatField.setStyle("-fx-border-color: red");
         }));
 
+        // A client certificate only makes sense over TLS
+        certLabel.disableProperty().bind(tlsBox.selectedProperty().not());
+        certField.disableProperty().bind(tlsBox.selectedProperty().not());
+        certPassLabel.disableProperty().bind(certField.disabledProperty().or(certField.textProperty().isEmpty()));
+        certPassField.disableProperty().bind(certPassLabel.disabledProperty());
+        // Switch between the usual ports unless the user has typed another one
+        tlsBox.selectedProperty().addListener((observable, oldValue, secure) -> {
+            final String from = String.valueOf(secure ? ConnectionHandler.DEFAULT_PORT : TlsConfig.DEFAULT_PORT);
+            if (portField.getText().isEmpty() || portField.getText().equals(from))
+                portField.setText(String.valueOf(secure ? TlsConfig.DEFAULT_PORT : ConnectionHandler.DEFAULT_PORT));
+        });
+
         // Make the connect button pressable only if certain conditions are met
         connectButton.disableProperty().bind(
             hostField.textProperty().isEmpty().or(
@@ -91,14 +111,24 @@ public final class StartController extends Controller {
 
         // Starting a new thread for a connection attempt
         // If we don't do that, the window will freeze
-        new Thread(() -> {
+        final boolean secure = tlsBox.isSelected();
+        final TlsConfig tls = !secure ? null : certField.getText().isBlank() ? TlsConfig.DEFAULT
+                : new TlsConfig(Path.of(certField.getText().strip()), certPassField.textProperty().getValueSafe());
+        ExecutionMode.start("Connect-" + hostField.getText(), () -> {
             try {
                 // Try to connect
                 serverListener.set(new ConnectionHandler(hostField.getText(),
-                        portField.getText().isEmpty() ? 6667 : Integer.parseInt(portField.getText()),
+                        portField.getText().isEmpty() ? secure ? TlsConfig.DEFAULT_PORT : ConnectionHandler.DEFAULT_PORT
+                                : Integer.parseInt(portField.getText()),
                         nickField.getText(),
-                        passField.textProperty().getValueSafe()));
-                // If success - start the event loop
+                        passField.textProperty().getValueSafe(),
+                        tls));
+                // If success - start exchanging messages
+                serverListener.get().addListener(App.getChatLog());
+                // Loaded in the background after the first frame, waits for it if that's still going on
+                var main = (MainController) App.getController("main");
+                serverListener.get().addListener(main);
+                main.setConnection(serverListener.get());
                 serverListener.get().start();
                 // Switch to a different scene root
                 Platform.runLater(() -> App.showRoot("main"));
@@ -116,7 +146,7 @@ public final class StartController extends Controller {
                 // Restore the default view if errors were encountered
                 Platform.runLater(() -> inputPane.setVisible(true));
             }
-        }).start();
+        });
     }
 
     @Override
@@ -127,6 +157,7 @@ public final class StartController extends Controller {
                 textField.setStyle("");
             }
         }
+        tlsBox.setSelected(false);
         portField.setText(String.valueOf(ConnectionHandler.DEFAULT_PORT));
         if(App.DEBUG) {
             hostField.setText(ConnectionHandler.DEBUG_HOST);
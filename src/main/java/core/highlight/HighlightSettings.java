@@ -0,0 +1,148 @@
+package core.highlight;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * The keywords and rules the user has asked to be highlighted on, kept in a file:
+ * a keyword per line, or a regular expression after {@value #RULE_PREFIX}. Blank lines are skipped.
+ * <p>
+ * Changes are saved at once. Scanning goes through {@link #highlighter(String)}, which is compiled again
+ * only when the entries or the nick have changed since, so any thread can call it for every line.
+ */
+public final class HighlightSettings {
+    public static final String RULE_PREFIX = "re:";
+
+    private final Path file;
+    // Guarded by this
+    private final LinkedHashSet<String> keywords = new LinkedHashSet<>();
+    private final LinkedHashMap<String, Pattern> rules = new LinkedHashMap<>(); // By their source
+    private volatile Highlighter compiled = null;
+
+    /**
+     * Reads the entries from the file, if there is one
+     */
+    public HighlightSettings(@NotNull Path file) {
+        this.file = file;
+        try {
+            for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                line = line.strip();
+                if (line.isEmpty())
+                    continue;
+                try {
+                    if (line.startsWith(RULE_PREFIX))
+                        rules.put(line.substring(RULE_PREFIX.length()), compile(line.substring(RULE_PREFIX.length())));
+                    else
+                        keywords.add(line);
+                } catch (PatternSyntaxException e) {
+                    getLogger("core.highlight").warning("Skipped rule " + line + " of " + file + ": " + e.getDescription());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing has been added yet
+        } catch (IOException e) {
+            getLogger("core.highlight").warning("Couldn't read highlights from " + file + ": " + e);
+        }
+    }
+
+    /**
+     * @param nick our nick, null for none
+     * @return the highlighter of the current entries and the nick
+     */
+    public Highlighter highlighter(String nick) {
+        var highlighter = compiled;
+        if (highlighter != null && Objects.equals(highlighter.getNick(), nick))
+            return highlighter;
+        synchronized (this) {
+            highlighter = new Highlighter(nick, keywords, rules.values());
+            compiled = highlighter;
+            return highlighter;
+        }
+    }
+
+    /**
+     * @return whether it wasn't there already
+     */
+    public synchronized boolean addKeyword(@NotNull String keyword) throws IOException {
+        keyword = keyword.strip();
+        if (keyword.isEmpty() || !keywords.add(keyword))
+            return false;
+        changed();
+        return true;
+    }
+
+    /**
+     * @param regex found anywhere in a line, in any case
+     * @return whether it wasn't there already
+     * @throws PatternSyntaxException if it isn't a valid regular expression
+     */
+    public synchronized boolean addRule(@NotNull String regex) throws IOException {
+        if (regex.isEmpty() || rules.containsKey(regex))
+            return false;
+        rules.put(regex, compile(regex));
+        changed();
+        return true;
+    }
+
+    private static Pattern compile(@NotNull String regex) {
+        return Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * @return whether it was there
+     */
+    public synchronized boolean removeKeyword(@NotNull String keyword) throws IOException {
+        if (!keywords.remove(keyword.strip()))
+            return false;
+        changed();
+        return true;
+    }
+
+    /**
+     * @param regex as it was added
+     * @return whether it was there
+     */
+    public synchronized boolean removeRule(@NotNull String regex) throws IOException {
+        if (rules.remove(regex) == null)
+            return false;
+        changed();
+        return true;
+    }
+
+    /**
+     * @return the entries as they are saved
+     */
+    public synchronized List<String> list() {
+        var entries = new ArrayList<String>(keywords.size() + rules.size());
+        entries.addAll(keywords);
+        for (var regex : rules.keySet())
+            entries.add(RULE_PREFIX + regex);
+        return entries;
+    }
+
+    /**
+     * Makes the next scan compile the entries again and saves them
+     */
+    private void changed() throws IOException {
+        compiled = null;
+        var entries = list();
+        if (entries.isEmpty() && Files.notExists(file))
+            return;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Files.write(file, entries, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,52 @@
+package core.highlight;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * Tells whether a line mentions the user: by the user's nick or one of the keywords, as whole words
+ * in any case, or by matching one of the regular expressions.
+ * The nick and the keywords share one {@link KeywordAutomaton}, so a line is scanned once however many
+ * keywords there are; only the rules, if there are any, take a pass each.
+ * Immutable, so any thread can use it; {@link HighlightSettings} makes a new one when something changes.
+ */
+public final class Highlighter {
+    private final String nick;
+    private final KeywordAutomaton keywords;
+    private final Pattern[] rules;
+
+    /**
+     * @param nick     our nick, null for none
+     * @param keywords words, or groups of words, which mention the user
+     * @param rules    patterns which mention the user if they're found anywhere in a line
+     */
+    public Highlighter(String nick, @NotNull Collection<String> keywords, @NotNull Collection<Pattern> rules) {
+        this.nick = nick;
+        var words = new ArrayList<String>(keywords.size() + 1);
+        words.addAll(keywords);
+        if (nick != null)
+            words.add(nick);
+        this.keywords = new KeywordAutomaton(words);
+        this.rules = rules.toArray(Pattern[]::new);
+    }
+
+    /**
+     * @return the nick the highlighter was made for, null for none
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    public boolean matches(@NotNull CharSequence text) {
+        if (keywords.matches(text))
+            return true;
+        for (var rule : rules) {
+            if (rule.matcher(text).find())
+                return true;
+        }
+        return false;
+    }
+}
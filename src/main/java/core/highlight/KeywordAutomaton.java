@@ -0,0 +1,173 @@
+package core.highlight;
+
+import core.state.CaseMapping;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton over a set of keywords: finds whether any of them occurs in a text as a whole word
+ * with one pass over the text, however many keywords there are. Case is folded as IRC does for nicks,
+ * and as {@link Character#toLowerCase(char)} does beyond ASCII.
+ * <p>
+ * The trie is flattened into arrays: the edges of a state are sorted by character and looked up by
+ * binary search, except for the root, whose ASCII edges are a table, as most characters of a text lead back to it.
+ * Scanning allocates nothing. Immutable, so any thread can scan.
+ */
+final class KeywordAutomaton {
+    /** The keyword starts / ends with a word character, so a word character may not come before / after it */
+    private static final byte WORD_START = 1, WORD_END = 2;
+
+    private final int[] rootAscii = new int[128];
+    // Edges of state s are edgeChars / edgeTargets [edgeStart[s], edgeStart[s + 1])
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+    private final int[] fail;
+    /** Length of the keyword which ends in the state, 0 if none does */
+    private final int[] matchLength;
+    private final byte[] matchFlags;
+    /** Nearest state on the fail chain in which a keyword ends, 0 if there is none */
+    private final int[] dictionary;
+
+    KeywordAutomaton(@NotNull Collection<String> keywords) {
+        // The trie, states numbered in the order they are made
+        var children = new ArrayList<TreeMap<Character, Integer>>();
+        var lengths = new ArrayList<Integer>();
+        var flags = new ArrayList<Byte>();
+        children.add(new TreeMap<>());
+        lengths.add(0);
+        flags.add((byte) 0);
+        for (var keyword : keywords) {
+            if (keyword.isEmpty())
+                continue;
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                final char c = fold(keyword.charAt(i));
+                Integer next = children.get(state).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.get(state).put(c, next);
+                    children.add(new TreeMap<>());
+                    lengths.add(0);
+                    flags.add((byte) 0);
+                }
+                state = next;
+            }
+            lengths.set(state, keyword.length());
+            flags.set(state, (byte) ((isWordChar(keyword.charAt(0)) ? WORD_START : 0)
+                    | (isWordChar(keyword.charAt(keyword.length() - 1)) ? WORD_END : 0)));
+        }
+
+        final int states = children.size();
+        edgeStart = new int[states + 1];
+        int edges = 0;
+        for (int s = 0; s < states; s++) {
+            edgeStart[s] = edges;
+            edges += children.get(s).size();
+        }
+        edgeStart[states] = edges;
+        edgeChars = new char[edges];
+        edgeTargets = new int[edges];
+        for (int s = 0; s < states; s++) {
+            int edge = edgeStart[s];
+            for (var entry : children.get(s).entrySet()) {
+                edgeChars[edge] = entry.getKey();
+                edgeTargets[edge++] = entry.getValue();
+            }
+        }
+        matchLength = new int[states];
+        matchFlags = new byte[states];
+        for (int s = 0; s < states; s++) {
+            matchLength[s] = lengths.get(s);
+            matchFlags[s] = flags.get(s);
+        }
+        for (char c = 0; c < rootAscii.length; c++)
+            rootAscii[c] = lookup(0, c);
+
+        // Fail and dictionary links, breadth first so that a state's links are known before its children's
+        fail = new int[states];
+        dictionary = new int[states];
+        var queue = new ArrayDeque<Integer>();
+        for (int edge = edgeStart[0]; edge < edgeStart[1]; edge++)
+            queue.add(edgeTargets[edge]);
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            for (int edge = edgeStart[state]; edge < edgeStart[state + 1]; edge++) {
+                final char c = edgeChars[edge];
+                final int child = edgeTargets[edge];
+                int back = fail[state];
+                int target;
+                while ((target = next(back, c)) < 0 && back != 0)
+                    back = fail[back];
+                fail[child] = target < 0 ? 0 : target;
+                dictionary[child] = matchLength[fail[child]] > 0 ? fail[child] : dictionary[fail[child]];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return whether any keyword occurs in the text as a whole word
+     */
+    boolean matches(@NotNull CharSequence text) {
+        return find(text) >= 0;
+    }
+
+    /**
+     * @return index just past the end of the first keyword which occurs in the text as a whole word, or -1
+     */
+    int find(@NotNull CharSequence text) {
+        int state = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = fold(text.charAt(i));
+            int target;
+            while ((target = next(state, c)) < 0 && state != 0)
+                state = fail[state];
+            state = target < 0 ? 0 : target;
+            for (int s = matchLength[state] > 0 ? state : dictionary[state]; s != 0; s = dictionary[s]) {
+                final int start = i + 1 - matchLength[s];
+                if (((matchFlags[s] & WORD_START) == 0 || start == 0 || !isWordChar(text.charAt(start - 1)))
+                        && ((matchFlags[s] & WORD_END) == 0 || i + 1 == length || !isWordChar(text.charAt(i + 1))))
+                    return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int next(int state, char c) {
+        if (state == 0 && c < rootAscii.length)
+            return rootAscii[c];
+        return lookup(state, c);
+    }
+
+    /**
+     * @return the state the edge of the character leads to, -1 if there is no such edge
+     */
+    private int lookup(int state, char c) {
+        int low = edgeStart[state], high = edgeStart[state + 1] - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final char edge = edgeChars[middle];
+            if (edge < c)
+                low = middle + 1;
+            else if (edge > c)
+                high = middle - 1;
+            else
+                return edgeTargets[middle];
+        }
+        return -1;
+    }
+
+    static char fold(char c) {
+        return c < 128 ? CaseMapping.RFC1459.fold(c) : Character.toLowerCase(c);
+    }
+
+    static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+}
@@ -0,0 +1,444 @@
+package core.history;
+
+import core.ConnectionHandler;
+import core.ConnectionListener;
+import core.IrcLine;
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Append-only on-disk log of every message, one {@link TargetLog} per network and channel or query,
+ * laid out as {@code <root>/<network>/<target>/<segment>.log}.
+ * <p>
+ * Listening to a connection only queues the message; a single writer thread takes
+ * everything queued so far, groups it by target and writes each group with one write,
+ * so the receive path never waits for the disk. When the disk can't keep up and the queue
+ * is full the messages are dropped from the log rather than stalling the connection.
+ * Written messages are handed to a {@link SearchIndex}, which can be queried with {@link #search}.
+ * History played back by the server is queued as one entry and written without the messages the log already has.
+ * <p>
+ * Only the writer thread opens logs for writing and closes them, so a directory never has two writers;
+ * reading uses the writer's instance while it's open, or a read only one. The last few read only ones are kept,
+ * so paging back or searching doesn't read the indexes of a log again, until the writer opens that log.
+ */
+public class ChatLog implements ConnectionListener, AutoCloseable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 16384;
+    /** Logs with a file open for writing, the least recently written one is closed after that */
+    public static final int MAX_OPEN_LOGS = 64;
+    /** Logs kept open read only, the least recently read one is dropped after that */
+    public static final int MAX_READ_ONLY_LOGS = 16;
+    private static final int WRITE_BUFFER_LENGTH = 256 * 1024;
+    private static final String SERVER_TARGET = "_server";
+    private static final Entry STOP = new Entry("", null, List.of(), false);
+
+    private final Path root;
+    private final int segmentBytes;
+    private final SearchIndex index;
+    private final BlockingQueue<Entry> queue;
+    private final Thread writer;
+    private final AtomicLong dropped = new AtomicLong();
+    // Put to and evicted from by the writer thread only, guarded by itself for the readers
+    private final LinkedHashMap<Path, TargetLog> logs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, TargetLog> eldest) {
+            if (size() <= MAX_OPEN_LOGS)
+                return false;
+            try {
+                eldest.getValue().close();
+            } catch (IOException e) {
+                getLogger("core.history.ChatLog").warning("Couldn't close " + eldest.getKey() + ": " + e.getMessage());
+            }
+            return true;
+        }
+    };
+    // Guarded by logs; a log is dropped from here when the writer opens it, so the ones here are never behind the files
+    private final LinkedHashMap<Path, TargetLog> readOnlyLogs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, TargetLog> eldest) {
+            return size() > MAX_READ_ONLY_LOGS; // No file is open while a read only log isn't read
+        }
+    };
+    private long writerOpens = 0; // Logs the writer has opened, guarded by logs
+    private volatile boolean running = true;
+
+    public ChatLog(@NotNull Path root) {
+        this(root, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ChatLog(@NotNull Path root, int queueCapacity) {
+        this(root, queueCapacity, TargetLog.SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes size after which a log starts a new segment
+     */
+    ChatLog(@NotNull Path root, int queueCapacity, int segmentBytes) {
+        this.root = root;
+        this.segmentBytes = segmentBytes;
+        index = new SearchIndex(root);
+        index.start(this::unindexed, this::readable);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        writer = new Thread(this::writeLoop, "ChatLog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void onMessage(@NotNull ConnectionHandler connection, @NotNull Message message) {
+        append(connection.getHost(), message);
+    }
+
+    @Override
+    public void onHistory(@NotNull ConnectionHandler connection, @NotNull String target, @NotNull List<Message> messages) {
+        if (!messages.isEmpty() && (!running || !queue.offer(new Entry(connection.getHost(), target, List.copyOf(messages), true))))
+            dropped.addAndGet(messages.size());
+    }
+
+    /**
+     * Queues a message of the network to be written
+     */
+    void append(@NotNull String network, @NotNull Message message) {
+        if (!running || !queue.offer(new Entry(network, message.target(), List.of(message), false)))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * @return number of messages which were left out of the log because the writer fell behind
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return up to {@code count} of the latest messages of the target, oldest first
+     */
+    public List<Message> readLast(@NotNull String network, String target, int count) throws IOException {
+        return readBefore(network, target, Long.MAX_VALUE, count);
+    }
+
+    /**
+     * @return up to {@code count} of the latest messages of the target sent before the timestamp, oldest first
+     */
+    public List<Message> readBefore(@NotNull String network, String target, long timestamp, int count) throws IOException {
+        return readable(network, target).readBefore(timestamp, count);
+    }
+
+    /**
+     * Jumps to a date
+     *
+     * @return up to {@code count} messages of the target sent at the timestamp or later, oldest first
+     */
+    public List<Message> readFrom(@NotNull String network, String target, long timestamp, int count) throws IOException {
+        return readable(network, target).readFrom(timestamp, count);
+    }
+
+    /**
+     * Finds the latest messages matching the query, reading them back from the log
+     *
+     * @param network network to search in, or null to search in all of them
+     * @return found messages, oldest first
+     */
+    public List<Message> search(String network, @NotNull SearchQuery query, int limit) throws IOException {
+        var found = new ArrayList<Message>(Math.min(limit, 1024));
+        // Every log is opened once however many hits it has
+        var opened = new HashMap<List<String>, TargetLog>();
+        int before = Integer.MAX_VALUE;
+        // Another page only when a sender shares the key of the one asked for, which is rare
+        while (found.size() < limit) {
+            final int wanted = limit - found.size();
+            var hits = index.search(network, query, wanted, before);
+            for (var hit : hits) {
+                var key = List.of(hit.network(), hit.target());
+                var log = opened.get(key);
+                if (log == null) {
+                    log = readable(hit.network(), hit.target());
+                    opened.put(key, log);
+                }
+                var message = log.read(hit.location());
+                if (message != null && query.isFrom(message.sender()))
+                    found.add(message);
+            }
+            if (hits.size() < wanted)
+                break;
+            before = hits.get(hits.size() - 1).id();
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * @return number of messages which can be searched for
+     */
+    public int getIndexedCount() {
+        return index.size();
+    }
+
+    /**
+     * Writes whatever is still queued and closes the files
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (!running)
+            return;
+        running = false;
+        if (queue.offer(STOP, 2, TimeUnit.SECONDS))
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        if (writer.isAlive())
+            writer.interrupt();
+        synchronized (logs) {
+            for (var log : logs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            logs.clear();
+            readOnlyLogs.clear();
+        }
+        index.close();
+    }
+
+    /**
+     * Opens the log for writing if it isn't open yet, closing the least recently written one if too many are.
+     * Called on the writer thread only.
+     */
+    private TargetLog log(@NotNull String network, String target) throws IOException {
+        final String name = targetName(target);
+        final Path directory = directory(network, name);
+        synchronized (logs) {
+            var log = logs.get(directory);
+            if (log == null) {
+                // A read only instance wouldn't see what is written from now on
+                readOnlyLogs.remove(directory);
+                writerOpens++;
+                log = new TargetLog(directory, name, false, segmentBytes);
+                logs.put(directory, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * @return the log the writer has open, or else the log opened read only
+     */
+    private TargetLog readable(@NotNull String network, String target) throws IOException {
+        final String name = targetName(target);
+        final Path directory = directory(network, name);
+        final long opens;
+        synchronized (logs) {
+            // Not get(), which would count as a write and keep the log open for longer
+            for (var entry : logs.entrySet()) {
+                if (entry.getKey().equals(directory))
+                    return entry.getValue();
+            }
+            var log = readOnlyLogs.get(directory);
+            if (log != null)
+                return log;
+            opens = writerOpens;
+        }
+        // Read outside of the lock, the writer doesn't wait for it
+        var log = new TargetLog(directory, name, true, segmentBytes);
+        synchronized (logs) {
+            // Unless the writer has opened a log meanwhile, which may have been this one
+            if (writerOpens == opens)
+                readOnlyLogs.put(directory, log);
+        }
+        return log;
+    }
+
+    /**
+     * Opens every log read only for the index to catch up with, called on the indexer thread
+     */
+    private List<SearchIndex.Backlog> unindexed() {
+        // The names the index knows a target by, the directories only have them folded
+        var names = new HashMap<Path, List<String>>();
+        for (var known : index.targets())
+            names.put(directory(known.get(0), known.get(1)), known);
+        var logs = new ArrayList<SearchIndex.Backlog>();
+        if (!Files.isDirectory(root))
+            return logs;
+        try (var networks = Files.list(root)) {
+            for (var network : (Iterable<Path>) networks::iterator) {
+                if (!Files.isDirectory(network))
+                    continue;
+                try (var targets = Files.list(network)) {
+                    for (var directory : (Iterable<Path>) targets::iterator) {
+                        if (!Files.isDirectory(directory))
+                            continue;
+                        var known = names.get(directory);
+                        final String networkName = known != null ? known.get(0) : network.getFileName().toString();
+                        final String target = known != null ? known.get(1) : directory.getFileName().toString();
+                        logs.add(new SearchIndex.Backlog(networkName, target, new TargetLog(directory, target, true, segmentBytes)));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            getLogger("core.history.ChatLog").warning("Couldn't list the logs in " + root + ": " + e.getMessage());
+        }
+        return logs;
+    }
+
+    private Path directory(@NotNull String network, @NotNull String name) {
+        return root.resolve(fileName(network)).resolve(fileName(name));
+    }
+
+    private static String targetName(String target) {
+        return target == null || target.isEmpty() ? SERVER_TARGET : target;
+    }
+
+    /**
+     * Folds the case the way IRC does, so #Channel and #channel share a log,
+     * and replaces characters which aren't safe in file names
+     */
+    private static String fileName(@NotNull String name) {
+        var builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = IrcLine.foldCase(name.charAt(i));
+            builder.append(Character.isLetterOrDigit(c) || "#&.-_".indexOf(c) >= 0 ? c : '_');
+        }
+        // "." and ".." would point outside of the directory
+        return builder.toString().replaceAll("^\\.+$", "_");
+    }
+
+    private void writeLoop() {
+        var logger = getLogger("core.history.ChatLog");
+        var batch = new ArrayList<Entry>();
+        var buffer = ByteBuffer.allocate(WRITE_BUFFER_LENGTH);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            stop = batch.removeIf(entry -> entry == STOP);
+
+            // Keep the order of the messages within a target, targets are written one after another
+            var groups = new LinkedHashMap<Path, List<Message>>();
+            var groupLogs = new LinkedHashMap<Path, Entry>();
+            for (var entry : batch) {
+                var key = Path.of(fileName(entry.network()), fileName(targetName(entry.target())));
+                var group = groups.computeIfAbsent(key, k -> new ArrayList<>());
+                group.addAll(entry.playback() ? missing(entry, group) : entry.messages());
+                groupLogs.putIfAbsent(key, entry);
+            }
+            batch.clear();
+
+            groups.forEach((key, messages) -> {
+                var first = groupLogs.get(key);
+                try {
+                    if (!messages.isEmpty())
+                        write(first.network(), targetName(first.target()), messages, buffer);
+                } catch (IOException e) {
+                    logger.warning("Couldn't write the log of " + key + ": " + e.getMessage());
+                }
+            });
+        }
+        logger.fine("Writer has stopped");
+    }
+
+    /**
+     * @param pending messages of the same target which are about to be written
+     * @return the played back messages which neither the log nor the pending messages have
+     */
+    private List<Message> missing(@NotNull Entry entry, @NotNull List<Message> pending) {
+        final long since = entry.messages().get(0).timestamp();
+        // Compared without the target, it may be spelled differently in the log
+        var known = new HashSet<Message>();
+        try {
+            for (var message : log(entry.network(), entry.target()).readFrom(since, Integer.MAX_VALUE))
+                known.add(withoutTarget(message));
+        } catch (IOException e) {
+            getLogger("core.history.ChatLog").warning("Couldn't read the log of " + entry.target() + ": " + e.getMessage());
+        }
+        for (var message : pending) {
+            if (message.timestamp() >= since)
+                known.add(withoutTarget(message));
+        }
+        var missing = new ArrayList<Message>(entry.messages().size());
+        for (var message : entry.messages()) {
+            if (known.add(withoutTarget(message)))
+                missing.add(message);
+        }
+        return missing;
+    }
+
+    private static Message withoutTarget(@NotNull Message message) {
+        return new Message(message.kind(), null, message.sender(), message.text(), message.timestamp());
+    }
+
+    /**
+     * Writes the messages of one target in as few writes as the buffer allows,
+     * and hands them to the index along with where they were written
+     */
+    private void write(@NotNull String network, @NotNull String target, @NotNull List<Message> messages,
+                       @NotNull ByteBuffer buffer) throws IOException {
+        final TargetLog log = log(network, target);
+        var pending = new ArrayList<Message>(messages.size());
+        var offsets = new int[messages.size()];
+        buffer.clear();
+        for (var message : messages) {
+            final int offset = buffer.position();
+            if (!LogSegment.encode(message, buffer)) {
+                flush(network, target, log, buffer, pending, offsets);
+                if (!LogSegment.encode(message, buffer)) {
+                    // Bigger than the whole buffer, written on its own
+                    var single = ByteBuffer.allocate(LogSegment.HEADER_BYTES + 3 * (message.text().length()
+                            + (message.sender() == null ? 0 : message.sender().length())));
+                    LogSegment.encode(message, single);
+                    offsets[0] = 0;
+                    pending.add(message);
+                    flush(network, target, log, single, pending, offsets);
+                    continue;
+                }
+                offsets[pending.size()] = 0;
+            } else {
+                offsets[pending.size()] = offset;
+            }
+            pending.add(message);
+        }
+        flush(network, target, log, buffer, pending, offsets);
+    }
+
+    private void flush(@NotNull String network, @NotNull String target, @NotNull TargetLog log, @NotNull ByteBuffer buffer,
+                       @NotNull List<Message> pending, int @NotNull [] offsets) throws IOException {
+        if (!pending.isEmpty()) {
+            var timestamps = new ArrayList<Long>(pending.size());
+            for (var message : pending)
+                timestamps.add(message.timestamp());
+            var location = log.append(buffer.flip(), timestamps);
+            var positions = new int[pending.size()];
+            for (int i = 0; i < positions.length; i++)
+                positions[i] = location.position() + offsets[i];
+            index.add(network, target, location.segment(), positions, pending);
+        }
+        buffer.clear();
+        pending.clear();
+    }
+
+    /**
+     * @param playback whether the messages were played back by the server and may be in the log already
+     */
+    private record Entry(@NotNull String network, String target, @NotNull List<Message> messages, boolean playback) {
+    }
+}
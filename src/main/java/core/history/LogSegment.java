@@ -0,0 +1,401 @@
+package core.history;
+
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * One file of a {@link TargetLog}, plus a sparse index next to it.
+ * <p>
+ * The log file is a sequence of records:
+ * <pre>
+ * int   length of the rest of the record
+ * long  timestamp
+ * byte  kind
+ * short sender length in bytes, -1 if there is no sender
+ * UTF-8 sender, UTF-8 text
+ * </pre>
+ * The index file has an entry (long timestamp, int position) for the first record
+ * of the segment and then for the first record after every {@value #INDEX_INTERVAL} bytes,
+ * so any record can be found by reading at most that many bytes.
+ * Searching the index by time only works while the records are in the order of their timestamps,
+ * which history played back by the server breaks: the first record older than the one before it
+ * creates an empty {@value #UNORDERED_SUFFIX} file next to the log, and the segment is read whole from then on.
+ * A record cut short by a crash is dropped when the segment is opened for writing,
+ * and index entries lost with it are rebuilt from the records.
+ * A segment opened {@linkplain #open(Path, long, boolean) read only} leaves the files alone,
+ * so it can be opened while another instance is writing to them.
+ */
+final class LogSegment implements Closeable {
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+    static final String UNORDERED_SUFFIX = ".unordered";
+    static final int INDEX_INTERVAL = 4096;
+    static final int HEADER_BYTES = Integer.BYTES + Long.BYTES + Byte.BYTES + Short.BYTES;
+    private static final int INDEX_ENTRY_BYTES = Long.BYTES + Integer.BYTES;
+    private static final Message.Kind[] KINDS = Message.Kind.values();
+
+    final long number;
+    private final boolean readOnly;
+    private final Path logPath;
+    private final Path indexPath;
+    private final Path unorderedPath;
+    private long[] indexTimestamps = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexCount = 0;
+    private int size;
+    private boolean ordered = true;
+    private long lastTimestamp = Long.MIN_VALUE; // Of the last record, or of the last record before the segment
+    private FileChannel log = null, index = null; // Open only while the segment is written to
+
+    private LogSegment(@NotNull Path directory, long number, boolean readOnly) {
+        this.number = number;
+        this.readOnly = readOnly;
+        logPath = directory.resolve(fileName(number, LOG_SUFFIX));
+        indexPath = directory.resolve(fileName(number, INDEX_SUFFIX));
+        unorderedPath = directory.resolve(fileName(number, UNORDERED_SUFFIX));
+    }
+
+    static String fileName(long number, String suffix) {
+        return "%020d%s".formatted(number, suffix);
+    }
+
+    /**
+     * Opens an existing segment or creates an empty one
+     *
+     * @param readOnly whether the segment is only read, it's never appended to nor repaired then
+     */
+    static LogSegment open(@NotNull Path directory, long number, boolean readOnly) throws IOException {
+        var segment = new LogSegment(directory, number, readOnly);
+        segment.load();
+        return segment;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return indexCount == 0;
+    }
+
+    /**
+     * @return timestamp of the first record, or Long.MAX_VALUE if the segment is empty
+     */
+    synchronized long firstTimestamp() {
+        return indexCount == 0 ? Long.MAX_VALUE : indexTimestamps[0];
+    }
+
+    /**
+     * @return whether no record is older than the one before it, the last one of the previous segment included
+     */
+    synchronized boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * @return timestamp of the last record, Long.MIN_VALUE if none is known
+     */
+    synchronized long lastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Lets an empty segment know the timestamp of the last record before it, so an older first record makes it unordered
+     */
+    synchronized void follow(long previousTimestamp) {
+        if (size == 0)
+            lastTimestamp = previousTimestamp;
+    }
+
+    /**
+     * Encodes a message, without writing it anywhere
+     *
+     * @return false if there isn't enough room in the buffer
+     */
+    static boolean encode(@NotNull Message message, @NotNull ByteBuffer buffer) {
+        final byte[] sender = message.sender() == null ? null : message.sender().getBytes(StandardCharsets.UTF_8);
+        final byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+        final int senderLength = sender == null ? 0 : Math.min(sender.length, Short.MAX_VALUE);
+        final int length = HEADER_BYTES + senderLength + text.length;
+        if (buffer.remaining() < length)
+            return false;
+        buffer.putInt(length - Integer.BYTES)
+                .putLong(message.timestamp())
+                .put((byte) message.kind().ordinal())
+                .putShort((short) (sender == null ? -1 : senderLength));
+        if (sender != null)
+            buffer.put(sender, 0, senderLength);
+        buffer.put(text);
+        return true;
+    }
+
+    /**
+     * Appends already encoded records
+     *
+     * @param records    buffer in read mode holding whole records
+     * @param timestamps timestamp of every record in the buffer, in order
+     * @return position of the first record in the segment
+     */
+    synchronized int append(@NotNull ByteBuffer records, @NotNull List<Long> timestamps) throws IOException {
+        openForWriting();
+        final int start = size;
+        var indexBuffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES * (1 + records.remaining() / INDEX_INTERVAL + timestamps.size() / 64 + 1));
+        int pos = records.position();
+        int lastIndexed = indexCount == 0 ? -INDEX_INTERVAL : indexPositions[indexCount - 1];
+        long previous = lastTimestamp;
+        boolean inOrder = true;
+        for (long timestamp : timestamps) {
+            inOrder &= timestamp >= previous;
+            previous = timestamp;
+            final int filePos = start + pos - records.position();
+            if (filePos - lastIndexed >= INDEX_INTERVAL) {
+                if (indexBuffer.remaining() < INDEX_ENTRY_BYTES)
+                    indexBuffer = ByteBuffer.allocate(indexBuffer.capacity() * 2).put(indexBuffer.flip());
+                indexBuffer.putLong(timestamp).putInt(filePos);
+                addIndexEntry(timestamp, filePos);
+                lastIndexed = filePos;
+            }
+            pos += Integer.BYTES + records.getInt(pos);
+        }
+        // Marked before the records are written, a crash must not leave them unmarked
+        if (!inOrder && ordered)
+            markUnordered();
+        lastTimestamp = previous;
+
+        while (records.hasRemaining())
+            size += log.write(records);
+        indexBuffer.flip();
+        while (indexBuffer.hasRemaining())
+            index.write(indexBuffer);
+        return start;
+    }
+
+    /**
+     * Reads the records whose position is in [from, to)
+     */
+    synchronized void read(int from, int to, @NotNull String target, @NotNull List<Message> sink) throws IOException {
+        read(from, to, target, (message, position) -> sink.add(message));
+    }
+
+    /**
+     * Reads the records whose position is in [from, to), passing each one along with its position
+     */
+    synchronized void read(int from, int to, @NotNull String target, @NotNull ObjIntConsumer<Message> sink) throws IOException {
+        to = Math.min(to, size);
+        if (from >= to)
+            return;
+        var buffer = ByteBuffer.allocate(to - from);
+        try (var channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            readFully(channel, buffer, from);
+        }
+        decode(buffer.flip(), from, target, sink);
+    }
+
+    /**
+     * Reads the single record at the position
+     *
+     * @return null if there is no whole record there
+     */
+    synchronized Message readRecord(int position, @NotNull String target) throws IOException {
+        if (position < 0 || position + HEADER_BYTES > size)
+            return null;
+        try (var channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(Integer.BYTES);
+            readFully(channel, header, position);
+            int length = header.flip().getInt();
+            if (length < HEADER_BYTES - Integer.BYTES || position + Integer.BYTES + (long) length > size)
+                return null;
+            var buffer = ByteBuffer.allocate(Integer.BYTES + length);
+            readFully(channel, buffer, position);
+            var sink = new ArrayList<Message>(1);
+            decode(buffer.flip(), position, target, (message, at) -> sink.add(message));
+            return sink.isEmpty() ? null : sink.get(0);
+        }
+    }
+
+    private static void readFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+        final int start = buffer.position();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position() - start) >= 0) {
+            // Keep reading until the whole range is in
+        }
+    }
+
+    /**
+     * @param offset position in the segment of the start of the buffer
+     */
+    private static void decode(@NotNull ByteBuffer buffer, int offset, @NotNull String target, @NotNull ObjIntConsumer<Message> sink) {
+        while (buffer.remaining() >= HEADER_BYTES) {
+            final int position = offset + buffer.position();
+            final int length = buffer.getInt();
+            if (length < HEADER_BYTES - Integer.BYTES || length > buffer.remaining())
+                break;
+            final int end = buffer.position() + length;
+            final long timestamp = buffer.getLong();
+            final int kind = buffer.get();
+            final int senderLength = buffer.getShort();
+            final String sender = senderLength < 0 ? null
+                    : new String(buffer.array(), buffer.position(), senderLength, StandardCharsets.UTF_8);
+            final int textStart = buffer.position() + Math.max(senderLength, 0);
+            final String text = new String(buffer.array(), textStart, end - textStart, StandardCharsets.UTF_8);
+            sink.accept(new Message(KINDS[Math.floorMod(kind, KINDS.length)], target, sender, text, timestamp), position);
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * @return positions of the index entries, every record starts at one of them or after one
+     */
+    synchronized int[] indexPositions() {
+        return Arrays.copyOf(indexPositions, indexCount);
+    }
+
+    /**
+     * @return position of the last index entry whose timestamp is before the given one, or 0
+     */
+    synchronized int positionBefore(long timestamp) {
+        int low = 0, high = indexCount - 1, found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (indexTimestamps[mid] < timestamp) {
+                found = indexPositions[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Stops writing to the segment, it can still be read
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (log != null)
+                log.close();
+        } finally {
+            if (index != null)
+                index.close();
+            log = index = null;
+        }
+    }
+
+    private void openForWriting() throws IOException {
+        if (readOnly)
+            throw new IllegalStateException(logPath + " is open read only");
+        if (log != null)
+            return;
+        log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.position(size);
+        index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        index.position((long) indexCount * INDEX_ENTRY_BYTES);
+    }
+
+    private void markUnordered() throws IOException {
+        ordered = false;
+        if (!readOnly && Files.notExists(unorderedPath))
+            Files.createFile(unorderedPath);
+    }
+
+    private void addIndexEntry(long timestamp, int position) {
+        if (indexCount == indexPositions.length) {
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+        }
+        indexTimestamps[indexCount] = timestamp;
+        indexPositions[indexCount++] = position;
+    }
+
+    /**
+     * Reads the index and finds the end of the last whole record, indexing the records the index is missing.
+     * Unless read only, whatever follows the last whole record is cut off and the missing index entries are written.
+     */
+    private void load() throws IOException {
+        ordered = Files.notExists(unorderedPath);
+        long fileSize = Files.exists(logPath) ? Files.size(logPath) : 0;
+        long indexSize = Files.exists(indexPath) ? Files.size(indexPath) : 0;
+        if (indexSize > 0) {
+            var entries = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+            while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+                long timestamp = entries.getLong();
+                int position = entries.getInt();
+                if (position >= fileSize)
+                    break; // The record it points to was never written
+                addIndexEntry(timestamp, position);
+            }
+        }
+
+        // Walk the records after the last index entry to find where the last whole one ends.
+        // The index is written after the records, so after a crash it may lack the last entries, or all of them.
+        int end = indexCount == 0 ? 0 : indexPositions[indexCount - 1];
+        int lastIndexed = indexCount == 0 ? -INDEX_INTERVAL : end;
+        int kept = indexCount;
+        if (fileSize > end) {
+            try (var channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+                var header = ByteBuffer.allocate(Integer.BYTES + Long.BYTES);
+                while (true) {
+                    header.clear();
+                    readFully(channel, header, end);
+                    if (header.hasRemaining())
+                        break;
+                    int length = header.flip().getInt();
+                    long timestamp = header.getLong();
+                    if (length < HEADER_BYTES - Integer.BYTES || end + Integer.BYTES + (long) length > fileSize)
+                        break;
+                    if (timestamp < lastTimestamp && ordered)
+                        markUnordered();
+                    lastTimestamp = timestamp;
+                    if (end - lastIndexed >= INDEX_INTERVAL) {
+                        addIndexEntry(timestamp, end);
+                        lastIndexed = end;
+                    }
+                    end += Integer.BYTES + length;
+                }
+            }
+        }
+        if (kept > 0 && indexPositions[kept - 1] >= end) {
+            // Points to the record which was cut short
+            indexCount = --kept;
+        }
+        size = end;
+        if (readOnly)
+            return;
+
+        var logger = getLogger("core.history.LogSegment");
+        if (fileSize > size) {
+            logger.warning("Dropping an unfinished record at the end of " + logPath);
+            try (var channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+        }
+        if (indexCount > kept || indexSize != (long) kept * INDEX_ENTRY_BYTES) {
+            if (indexCount > kept)
+                logger.warning("Rebuilding " + (indexCount - kept) + " missing index entries of " + logPath);
+            var entries = ByteBuffer.allocate((indexCount - kept) * INDEX_ENTRY_BYTES);
+            for (int i = kept; i < indexCount; i++)
+                entries.putLong(indexTimestamps[i]).putInt(indexPositions[i]);
+            try (var channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                channel.truncate((long) kept * INDEX_ENTRY_BYTES);
+                entries.flip();
+                while (entries.hasRemaining())
+                    channel.write(entries, (long) kept * INDEX_ENTRY_BYTES + entries.position());
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package core.history;
+
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Fixed-capacity history of one channel or query.
+ * Messages are kept encoded: sender and text as UTF-8 in one circular byte arena,
+ * everything else in primitive arrays indexed by slot, so a retained message costs
+ * its UTF-8 bytes plus {@value #SLOT_BYTES} bytes instead of three objects.
+ * Appending is O(1); once the message or byte limit is reached the oldest messages are evicted.
+ * The arrays start small and grow up to the limits as messages come in.
+ */
+public class Scrollback {
+    public static final int DEFAULT_CAPACITY = 5000;
+    public static final int DEFAULT_MAX_BYTES = 1 << 20;
+    /** Bytes of the primitive arrays per slot: timestamp, offset, length, sender length and kind */
+    public static final int SLOT_BYTES = Long.BYTES + Integer.BYTES + Integer.BYTES + Short.BYTES + Byte.BYTES;
+
+    private static final int INITIAL_SLOTS = 64;
+    private static final int INITIAL_BYTES = 8 << 10;
+    private static final Message.Kind[] KINDS = Message.Kind.values();
+
+    private final String target;
+    private final int capacity;
+    private final int maxBytes;
+    private long[] timestamps = new long[INITIAL_SLOTS];
+    private int[] offsets = new int[INITIAL_SLOTS];
+    private int[] lengths = new int[INITIAL_SLOTS];
+    private short[] senderLengths = new short[INITIAL_SLOTS]; // -1 if there is no sender
+    private byte[] kinds = new byte[INITIAL_SLOTS];
+    private byte[] arena;
+    private int head = 0; // Slot of the oldest message
+    private int count = 0;
+    private int writePos = 0; // Where the newest message ends in the arena
+    private long firstSequence = 0; // Sequence number of the oldest message
+
+    public Scrollback(String target) {
+        this(target, DEFAULT_CAPACITY, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param target   target of the messages, given back by {@link #get(int)}
+     * @param capacity most messages kept
+     * @param maxBytes most bytes the encoded senders and texts may take
+     */
+    public Scrollback(String target, int capacity, int maxBytes) {
+        if (capacity <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Capacity and byte limit must be positive");
+        this.target = target;
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        arena = new byte[Math.min(INITIAL_BYTES, maxBytes)];
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Appends a message, evicting the oldest ones if there's no room.
+     * A text which doesn't fit into the byte limit is cut.
+     */
+    public synchronized void append(@NotNull Message message) {
+        final byte[] sender = message.sender() == null ? null : message.sender().getBytes(StandardCharsets.UTF_8);
+        final byte[] text = message.text().getBytes(StandardCharsets.UTF_8);
+        final int senderLength = sender == null ? -1 : Math.min(sender.length, Math.min(Short.MAX_VALUE, maxBytes));
+        final int senderBytes = Math.max(senderLength, 0);
+        final int textLength = Math.min(text.length, maxBytes - senderBytes);
+        final int length = senderBytes + textLength;
+
+        if (count == capacity)
+            evictOldest();
+        if (count == offsets.length)
+            growSlots();
+        final int pos = reserve(length);
+        if (sender != null)
+            System.arraycopy(sender, 0, arena, pos, senderBytes);
+        System.arraycopy(text, 0, arena, pos + senderBytes, textLength);
+
+        final int slot = (head + count) % offsets.length;
+        timestamps[slot] = message.timestamp();
+        offsets[slot] = pos;
+        lengths[slot] = length;
+        senderLengths[slot] = (short) senderLength;
+        kinds[slot] = (byte) message.kind().ordinal();
+        count++;
+        writePos = pos + length;
+    }
+
+    /**
+     * Appends the messages which aren't kept already, as one change.
+     * Only the kept messages sent at the time of the first given one or later are compared.
+     *
+     * @param messages messages of this target, oldest first, e.g. played back by the server
+     * @return the messages which were appended
+     */
+    public synchronized List<Message> appendMissing(@NotNull List<Message> messages) {
+        if (messages.isEmpty())
+            return List.of();
+        final long since = messages.get(0).timestamp();
+        var kept = new HashSet<Message>();
+        for (int i = count - 1; i >= 0 && timestamps[(head + i) % offsets.length] >= since; i--)
+            kept.add(get(i));
+        var appended = new ArrayList<Message>(messages.size());
+        for (var message : messages) {
+            var own = target == null || target.equals(message.target()) ? message
+                    : new Message(message.kind(), target, message.sender(), message.text(), message.timestamp());
+            if (kept.add(own)) {
+                append(own);
+                appended.add(message);
+            }
+        }
+        return appended;
+    }
+
+    /**
+     * @param wanted kinds of messages to look at, e.g. only the ones from the server
+     * @return timestamp of the newest message of one of the kinds, or -1 if there is none
+     */
+    public synchronized long lastTimestamp(@NotNull Message.Kind... wanted) {
+        for (int i = count - 1; i >= 0; i--) {
+            final int slot = (head + i) % offsets.length;
+            for (var kind : wanted) {
+                if (kinds[slot] == kind.ordinal())
+                    return timestamps[slot];
+            }
+        }
+        return -1;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @param index 0 for the oldest message kept
+     */
+    public synchronized Message get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Message " + index + " of " + count);
+        final int slot = (head + index) % offsets.length;
+        final int senderLength = senderLengths[slot];
+        final int senderBytes = Math.max(senderLength, 0);
+        final String sender = senderLength < 0 ? null
+                : new String(arena, offsets[slot], senderLength, StandardCharsets.UTF_8);
+        final String text = new String(arena, offsets[slot] + senderBytes, lengths[slot] - senderBytes, StandardCharsets.UTF_8);
+        return new Message(KINDS[kinds[slot]], target, sender, text, timestamps[slot]);
+    }
+
+    /**
+     * @return the newest messages, at most maxCount of them, oldest first
+     */
+    public synchronized List<Message> last(int maxCount) {
+        final int from = Math.max(0, count - maxCount);
+        var messages = new ArrayList<Message>(count - from);
+        for (int i = from; i < count; i++)
+            messages.add(get(i));
+        return messages;
+    }
+
+    /**
+     * @return sequence number of the oldest message kept; every appended message gets the next one
+     */
+    public synchronized long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * @return how many bytes the arrays holding the messages take
+     */
+    public synchronized long getRetainedBytes() {
+        return arena.length + (long) offsets.length * SLOT_BYTES;
+    }
+
+    /**
+     * @return retained bytes divided by the number of messages, 0 if there are none
+     */
+    public synchronized double getBytesPerMessage() {
+        return count == 0 ? 0 : (double) getRetainedBytes() / count;
+    }
+
+    /**
+     * Finds a place for a record of the given length, growing the arena
+     * or evicting the oldest messages if necessary
+     */
+    private int reserve(int length) {
+        while (true) {
+            if (count == 0) {
+                writePos = 0;
+                if (arena.length < length)
+                    growArena(length);
+                return 0;
+            }
+            final int pos = writePos + length <= arena.length ? writePos : 0;
+            if (!overlaps(pos, length))
+                return pos;
+            if (arena.length < maxBytes)
+                growArena(length);
+            else
+                evictOldest();
+        }
+    }
+
+    /**
+     * @return whether the range would overwrite a message which is kept
+     */
+    private boolean overlaps(int pos, int length) {
+        final int oldest = offsets[head];
+        final int end = pos + length;
+        if (oldest < writePos) // Kept messages are in [oldest, writePos)
+            return pos < writePos && end > oldest;
+        // Kept messages wrap around: [oldest, arena end) and [0, writePos)
+        return end > oldest || pos < writePos;
+    }
+
+    private void evictOldest() {
+        head = (head + 1) % offsets.length;
+        count--;
+        firstSequence++;
+        if (count == 0) {
+            head = 0;
+            writePos = 0;
+        }
+    }
+
+    /**
+     * Doubles the slot arrays up to the capacity, moving the oldest message to slot 0
+     */
+    private void growSlots() {
+        final int slots = offsets.length;
+        final int size = Math.min(capacity, slots * 2);
+        timestamps = linearize(timestamps, new long[size], slots);
+        offsets = linearize(offsets, new int[size], slots);
+        lengths = linearize(lengths, new int[size], slots);
+        senderLengths = linearize(senderLengths, new short[size], slots);
+        kinds = linearize(kinds, new byte[size], slots);
+        head = 0;
+    }
+
+    private <T> T linearize(T from, T to, int slots) {
+        final int firstPart = Math.min(count, slots - head);
+        System.arraycopy(from, head, to, 0, firstPart);
+        System.arraycopy(from, 0, to, firstPart, count - firstPart);
+        return to;
+    }
+
+    /**
+     * Doubles the arena until the kept messages plus the new record fit (up to the byte limit)
+     * and packs the kept messages at its start
+     */
+    private void growArena(int extra) {
+        long used = extra;
+        for (int i = 0; i < count; i++)
+            used += lengths[(head + i) % offsets.length];
+        int size = arena.length;
+        while (size < used && size < maxBytes)
+            size = (int) Math.min(maxBytes, size * 2L);
+        if (size == arena.length)
+            size = (int) Math.min(maxBytes, size * 2L);
+
+        final byte[] packed = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            final int slot = (head + i) % offsets.length;
+            System.arraycopy(arena, offsets[slot], packed, pos, lengths[slot]);
+            offsets[slot] = pos;
+            pos += lengths[slot];
+        }
+        arena = packed;
+        writePos = pos;
+    }
+}
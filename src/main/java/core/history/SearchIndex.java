@@ -0,0 +1,548 @@
+package core.history;
+
+import core.IrcLine;
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static java.util.logging.Logger.getLogger;
+
+/**
+ * Inverted index over the {@link ChatLog}: every term points to the ids of the messages which contain it.
+ * Ids are given out in the order messages are logged, so a posting list is sorted and is kept
+ * as variable-length deltas, mostly a byte per posting. The index only remembers where each message
+ * is in the log; the messages themselves are read back from the log when they are found.
+ * <p>
+ * Messages are indexed by a single low priority thread which sleeps between batches so that
+ * it takes at most {@value #CPU_SHARE} of a core; it never runs on the receive path.
+ * The index is saved next to the logs every few minutes and when it is closed, along with the last message
+ * it covers in every target. When the indexer starts it first reads whatever the logs have after those,
+ * so messages logged since the last save, or while there was no index, can be found too.
+ * Messages at or before the last covered one are never indexed twice, whichever way they arrive.
+ * <p>
+ * The log writer never waits for the indexer: when the queue is full the messages are dropped from it,
+ * and the indexer reads them back from the log of their target before it indexes any more of that target.
+ */
+final class SearchIndex implements AutoCloseable {
+    static final String FILE_NAME = "search.index";
+    static final double CPU_SHARE = 0.25;
+    static final int MIN_TERM_LENGTH = 2;
+    static final int MAX_TERM_LENGTH = 64;
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long SAVE_INTERVAL = TimeUnit.MINUTES.toNanos(5);
+    /** Shortest rest, shorter sleeps would mostly measure the scheduler */
+    private static final long MIN_REST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAGIC = 0x49524358; // "IRCX"
+    private static final int VERSION = 2;
+    private static final Batch STOP = new Batch(-1, 0, new int[0], List.of());
+
+    private final Path file;
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread indexer;
+    private long rest = 0; // Used on the indexer thread only
+
+    // Guarded by this
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    private final ArrayList<String[]> targets = new ArrayList<>(); // {network, target} of every target id
+    private final HashMap<List<String>, Integer> targetIds = new HashMap<>();
+    private final ArrayList<TargetLog.Location> covered = new ArrayList<>(); // Last indexed message of every target id
+    private final HashSet<Integer> behind = new HashSet<>(); // Target ids whose messages were dropped from the queue
+    private int[] docTargets = new int[1024];
+    private long[] docSegments = new long[1024];
+    private int[] docPositions = new int[1024];
+    private int[] docSenders = new int[1024];
+    private int docCount = 0;
+    private boolean dirty = false;
+    private volatile Supplier<List<Backlog>> backlog = List::of;
+    private volatile Opener opener = null;
+
+    /**
+     * Loads the index, it doesn't take messages until it's {@link #start started}
+     */
+    SearchIndex(@NotNull Path directory) {
+        file = directory.resolve(FILE_NAME);
+        try {
+            load();
+        } catch (IOException e) {
+            getLogger("core.history.SearchIndex").warning("Starting with an empty index, couldn't read " + file + ": " + e);
+            clear();
+        }
+        indexer = new Thread(this::indexLoop, "SearchIndex");
+        indexer.setDaemon(true);
+        indexer.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Starts indexing, first the messages of the logs which the index doesn't cover
+     *
+     * @param logs   every log, listed on the indexer thread
+     * @param opener opens the log of a target whose messages were dropped from the queue, on the indexer thread
+     */
+    void start(@NotNull Supplier<List<Backlog>> logs, @NotNull Opener opener) {
+        backlog = logs;
+        this.opener = opener;
+        indexer.start();
+    }
+
+    /**
+     * @return {network, target} of every target which has been indexed
+     */
+    synchronized List<List<String>> targets() {
+        var names = new ArrayList<List<String>>(targets.size());
+        for (var target : targets)
+            names.add(List.of(target[0], target[1]));
+        return names;
+    }
+
+    /**
+     * Queues messages which were just written to the log, without waiting.
+     * If the indexer is too far behind they are left for it to read back from the log.
+     *
+     * @param positions position of every message in the segment
+     */
+    void add(@NotNull String network, @NotNull String target, long segment, int @NotNull [] positions, @NotNull List<Message> messages) {
+        int targetId;
+        synchronized (this) {
+            targetId = targetId(network, target);
+        }
+        if (!queue.offer(new Batch(targetId, segment, positions, List.copyOf(messages)))) {
+            synchronized (this) {
+                if (behind.add(targetId))
+                    getLogger("core.history.SearchIndex").fine("Indexer is behind, " + target + " will be read from the log");
+            }
+        }
+    }
+
+    synchronized int size() {
+        return docCount;
+    }
+
+    /**
+     * Finds the latest messages which have every term of the query.
+     * The sender is only compared by its {@link IrcLine#key(CharSequence) key}, which another nick may share,
+     * so the messages read back for the hits have to be checked with {@link SearchQuery#isFrom(String)}.
+     *
+     * @param network network to search in, or null to search in all of them
+     * @param before  only messages older than the hit with this id are found, Integer.MAX_VALUE for any
+     * @return hits, newest first
+     */
+    List<Hit> search(String network, @NotNull SearchQuery query, int limit, int before) {
+        var words = new ArrayList<String>();
+        for (var term : query.terms())
+            tokenize(term, words::add);
+        if (words.isEmpty() && query.channel() == null && query.sender() == null)
+            return List.of();
+        final int sender = query.sender() == null ? 0 : IrcLine.key(query.sender());
+
+        synchronized (this) {
+            // Intersect starting from the shortest list, the result can only get shorter
+            var lists = new ArrayList<Postings>();
+            for (var word : words) {
+                var postings = terms.get(word);
+                if (postings == null)
+                    return List.of();
+                lists.add(postings);
+            }
+            lists.sort(Comparator.comparingInt(postings -> postings.count));
+            int[] ids = lists.isEmpty() ? null : lists.get(0).decode();
+            int idCount = ids == null ? docCount : ids.length;
+            for (int i = 1; i < lists.size() && idCount > 0; i++)
+                idCount = intersect(ids, idCount, lists.get(i).decode());
+
+            // Newest are the highest ids
+            var hits = new ArrayList<Hit>(Math.min(limit, idCount));
+            for (int i = idCount - 1; i >= 0 && hits.size() < limit; i--) {
+                final int id = ids == null ? i : ids[i];
+                if (id >= before)
+                    continue;
+                final String[] docTarget = targets.get(docTargets[id]);
+                if (network != null && !network.equalsIgnoreCase(docTarget[0]))
+                    continue;
+                if (!query.isIn(docTarget[1]))
+                    continue;
+                if (query.sender() != null && docSenders[id] != sender)
+                    continue;
+                hits.add(new Hit(id, docTarget[0], docTarget[1], new TargetLog.Location(docSegments[id], docPositions[id])));
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * Stops indexing and saves the index
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (queue.offer(STOP, 2, TimeUnit.SECONDS))
+            indexer.join(TimeUnit.SECONDS.toMillis(5));
+        if (indexer.isAlive())
+            indexer.interrupt();
+        save();
+    }
+
+    /**
+     * Splits text into lower case terms of letters and digits
+     */
+    static void tokenize(@NotNull String text, @NotNull Consumer<String> sink) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            final boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH)
+                    sink.accept(text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Keeps the ids which are in both sorted arrays, in place
+     *
+     * @return number of ids which are left at the start of {@code ids}
+     */
+    private static int intersect(int @NotNull [] ids, int count, int @NotNull [] other) {
+        int kept = 0;
+        for (int i = 0, j = 0; i < count && j < other.length; ) {
+            if (ids[i] < other[j]) {
+                i++;
+            } else if (ids[i] > other[j]) {
+                j++;
+            } else {
+                ids[kept++] = ids[i++];
+                j++;
+            }
+        }
+        return kept;
+    }
+
+    private void indexLoop() {
+        var logger = getLogger("core.history.SearchIndex");
+        try {
+            for (var log : backlog.get())
+                catchUp(log);
+        } catch (InterruptedException e) {
+            return;
+        }
+        save();
+        long lastSave = System.nanoTime();
+        var batches = new ArrayList<Batch>();
+        boolean stop = false;
+        while (!stop) {
+            try {
+                var first = queue.poll(SAVE_INTERVAL, TimeUnit.NANOSECONDS);
+                if (first != null)
+                    batches.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batches, 1024);
+            stop = batches.removeIf(batch -> batch == STOP);
+
+            final long start = System.nanoTime();
+            for (var batch : batches)
+                index(batch);
+            batches.clear();
+            final long end = System.nanoTime();
+            try {
+                if (!stop)
+                    catchUpBehind();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (end - lastSave >= SAVE_INTERVAL) {
+                save();
+                lastSave = System.nanoTime();
+            }
+            try {
+                if (!stop)
+                    rest(end - start);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        logger.fine("Indexer has stopped");
+    }
+
+    /**
+     * Owes enough rest for the work to be {@value #CPU_SHARE} of the time, and rests once enough is owed
+     */
+    private void rest(long workNanos) throws InterruptedException {
+        rest += (long) (workNanos * (1 - CPU_SHARE) / CPU_SHARE);
+        if (rest >= MIN_REST) {
+            TimeUnit.NANOSECONDS.sleep(rest);
+            rest = 0;
+        }
+    }
+
+    /**
+     * Reads back the messages which were dropped from the queue, from the logs of their targets
+     */
+    private void catchUpBehind() throws InterruptedException {
+        while (true) {
+            final int targetId;
+            final String[] target;
+            synchronized (this) {
+                if (behind.isEmpty())
+                    return;
+                targetId = behind.iterator().next();
+                // Before the log is read, so messages dropped while it's read make it fall behind again
+                behind.remove(targetId);
+                target = targets.get(targetId);
+            }
+            try {
+                catchUp(new Backlog(target[0], target[1], opener.open(target[0], target[1])));
+            } catch (IOException e) {
+                getLogger("core.history.SearchIndex").warning("Couldn't open the log of " + target[1] + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Indexes the messages of the log after the last one the index covers
+     */
+    private void catchUp(@NotNull Backlog log) throws InterruptedException {
+        final int targetId;
+        final TargetLog.Location after;
+        synchronized (this) {
+            targetId = targetId(log.network(), log.target());
+            after = covered.get(targetId);
+        }
+        final int before = size();
+        try {
+            log.log().readAfter(after, chunk -> {
+                final long start = System.nanoTime();
+                index(new Batch(targetId, chunk.segment(), chunk.positions(), chunk.messages()));
+                try {
+                    rest(System.nanoTime() - start);
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            });
+        } catch (IOException e) {
+            getLogger("core.history.SearchIndex").warning("Couldn't read the log of " + log.target() + ": " + e.getMessage());
+        }
+        if (size() > before)
+            getLogger("core.history.SearchIndex").info("Indexed " + (size() - before) + " messages of " + log.target() + " which weren't");
+        if (Thread.interrupted())
+            throw new InterruptedException();
+    }
+
+    private void index(@NotNull Batch batch) {
+        var words = new ArrayList<String>();
+        synchronized (this) {
+            if (behind.contains(batch.target()))
+                return; // Read from the log instead, all of it after the last covered message
+            var after = covered.get(batch.target());
+            for (int m = 0; m < batch.messages().size(); m++) {
+                final int position = batch.positions()[m];
+                if (after != null && (batch.segment() < after.segment()
+                        || batch.segment() == after.segment() && position <= after.position()))
+                    continue; // Caught up with already
+                var message = batch.messages().get(m);
+                final int id = addDoc(batch.target(), batch.segment(), position,
+                        message.sender() == null ? 0 : IrcLine.key(message.sender()));
+                words.clear();
+                tokenize(message.text(), words::add);
+                for (var word : words)
+                    terms.computeIfAbsent(word, w -> new Postings()).add(id);
+                after = new TargetLog.Location(batch.segment(), position);
+            }
+            covered.set(batch.target(), after);
+            dirty = true;
+        }
+    }
+
+    private int addDoc(int target, long segment, int position, int sender) {
+        if (docCount == docTargets.length) {
+            final int capacity = docCount * 2;
+            docTargets = Arrays.copyOf(docTargets, capacity);
+            docSegments = Arrays.copyOf(docSegments, capacity);
+            docPositions = Arrays.copyOf(docPositions, capacity);
+            docSenders = Arrays.copyOf(docSenders, capacity);
+        }
+        docTargets[docCount] = target;
+        docSegments[docCount] = segment;
+        docPositions[docCount] = position;
+        docSenders[docCount] = sender;
+        return docCount++;
+    }
+
+    private int targetId(@NotNull String network, @NotNull String target) {
+        return targetIds.computeIfAbsent(List.of(network, target), key -> {
+            targets.add(new String[]{network, target});
+            covered.add(null);
+            return targets.size() - 1;
+        });
+    }
+
+    private synchronized void clear() {
+        terms.clear();
+        targets.clear();
+        targetIds.clear();
+        covered.clear();
+        docCount = 0;
+    }
+
+    /**
+     * Writes the index to a temporary file and then moves it over the old one,
+     * so a crash while saving leaves the previous index intact
+     */
+    private synchronized void save() {
+        if (!dirty)
+            return;
+        var temporary = file.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(targets.size());
+                for (int i = 0; i < targets.size(); i++) {
+                    out.writeUTF(targets.get(i)[0]);
+                    out.writeUTF(targets.get(i)[1]);
+                    var last = covered.get(i);
+                    out.writeLong(last == null ? -1 : last.segment());
+                    out.writeInt(last == null ? -1 : last.position());
+                }
+                out.writeInt(docCount);
+                for (int i = 0; i < docCount; i++) {
+                    out.writeInt(docTargets[i]);
+                    out.writeLong(docSegments[i]);
+                    out.writeInt(docPositions[i]);
+                    out.writeInt(docSenders[i]);
+                }
+                out.writeInt(terms.size());
+                for (var entry : terms.entrySet()) {
+                    var postings = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(postings.count);
+                    out.writeInt(postings.last);
+                    out.writeInt(postings.length);
+                    out.write(postings.data, 0, postings.length);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            getLogger("core.history.SearchIndex").warning("Couldn't save the index: " + e.getMessage());
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        if (!Files.exists(file))
+            return;
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not an index of this version");
+            final int targetCount = in.readInt();
+            for (int i = 0; i < targetCount; i++) {
+                final int id = targetId(in.readUTF(), in.readUTF());
+                final long segment = in.readLong();
+                final int position = in.readInt();
+                covered.set(id, segment < 0 ? null : new TargetLog.Location(segment, position));
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                addDoc(in.readInt(), in.readLong(), in.readInt(), in.readInt());
+            final int termCount = in.readInt();
+            for (int i = 0; i < termCount; i++) {
+                var term = in.readUTF();
+                var postings = new Postings();
+                postings.count = in.readInt();
+                postings.last = in.readInt();
+                postings.length = in.readInt();
+                postings.data = new byte[Math.max(8, postings.length)];
+                in.readFully(postings.data, 0, postings.length);
+                terms.put(term, postings);
+            }
+        }
+    }
+
+    /**
+     * Where a found message is
+     */
+    record Hit(int id, @NotNull String network, @NotNull String target, @NotNull TargetLog.Location location) {
+    }
+
+    /**
+     * A log to catch up with, and whose messages it is
+     */
+    record Backlog(@NotNull String network, @NotNull String target, @NotNull TargetLog log) {
+    }
+
+    /**
+     * Opens the log of a target for reading
+     */
+    interface Opener {
+        TargetLog open(@NotNull String network, @NotNull String target) throws IOException;
+    }
+
+    private record Batch(int target, long segment, int[] positions, List<Message> messages) {
+    }
+
+    /**
+     * Sorted ids, each one stored as a varint of the difference from the previous one
+     */
+    private static final class Postings {
+        private byte[] data = new byte[8];
+        private int length = 0;
+        private int count = 0;
+        private int last = -1;
+
+        private void add(int id) {
+            if (id == last)
+                return; // The term is in the message more than once
+            if (length + 5 > data.length)
+                data = Arrays.copyOf(data, data.length * 2);
+            int delta = id - last;
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) (delta & 0x7F | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        private int[] decode() {
+            int[] ids = new int[count];
+            int id = -1;
+            for (int i = 0, p = 0; i < count; i++) {
+                int delta = 0;
+                for (int shift = 0; ; shift += 7) {
+                    final byte b = data[p++];
+                    delta |= (b & 0x7F) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                ids[i] = id += delta;
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package core.history;
+
+import core.IrcLine;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What to look for in the {@link ChatLog}
+ *
+ * @param terms   words which must all be in the message
+ * @param channel channel the message was sent to, or null for any
+ * @param sender  nick of the sender, or null for anyone
+ */
+public record SearchQuery(@NotNull List<String> terms, String channel, String sender) {
+    public static final String SENDER_PREFIX = "from:";
+
+    /**
+     * Parses the arguments of {@code /search <terms> [#channel] [from:nick]}
+     */
+    public static SearchQuery parse(@NotNull List<String> args) {
+        var terms = new ArrayList<String>();
+        String channel = null, sender = null;
+        for (var arg : args) {
+            if (arg.isEmpty())
+                continue;
+            if (arg.charAt(0) == '#' || arg.charAt(0) == '&')
+                channel = arg;
+            else if (arg.startsWith(SENDER_PREFIX) && arg.length() > SENDER_PREFIX.length())
+                sender = arg.substring(SENDER_PREFIX.length());
+            else
+                terms.add(arg);
+        }
+        return new SearchQuery(List.copyOf(terms), channel, sender);
+    }
+
+    /**
+     * @param sender nick of a message's sender, null if it has none
+     * @return whether the sender is the one asked for, in any case, or any sender was asked for
+     */
+    public boolean isFrom(String sender) {
+        return this.sender == null || sender != null && sameName(sender, this.sender);
+    }
+
+    /**
+     * @param channel target a message was sent to
+     * @return whether it's the channel asked for, in any case, or any channel was asked for
+     */
+    public boolean isIn(@NotNull String channel) {
+        return this.channel == null || sameName(channel, this.channel);
+    }
+
+    public boolean isEmpty() {
+        return terms.isEmpty() && channel == null && sender == null;
+    }
+
+    private static boolean sameName(@NotNull String a, @NotNull String b) {
+        if (a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); i++) {
+            if (IrcLine.foldCase(a.charAt(i)) != IrcLine.foldCase(b.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
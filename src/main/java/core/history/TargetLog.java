@@ -0,0 +1,286 @@
+package core.history;
+
+import core.records.Message;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Log of a single channel or query, split into {@link LogSegment}s of about {@value #SEGMENT_BYTES} bytes.
+ * Only the last segment is written to; the older ones are never touched again,
+ * so they can be archived or deleted while the client runs.
+ * Reading by time searches the segments' indexes while every record is at least as new as the ones before it,
+ * and reads every record once one isn't.
+ * At most one instance per directory may be writable; any number of read only ones can be open next to it.
+ */
+final class TargetLog implements Closeable {
+    static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final String target;
+    private final boolean readOnly;
+    private final int segmentBytes;
+    private final ArrayList<LogSegment> segments = new ArrayList<>();
+
+    /**
+     * Opens the log in the directory, creating the directory if needed unless read only
+     *
+     * @param target   target of the messages read back from the log
+     * @param readOnly whether the log is only read, its files are left as they are then
+     */
+    TargetLog(@NotNull Path directory, @NotNull String target, boolean readOnly) throws IOException {
+        this(directory, target, readOnly, SEGMENT_BYTES);
+    }
+
+    /**
+     * @param segmentBytes size after which a new segment is started
+     */
+    TargetLog(@NotNull Path directory, @NotNull String target, boolean readOnly, int segmentBytes) throws IOException {
+        this.directory = readOnly ? directory : Files.createDirectories(directory);
+        this.target = target;
+        this.readOnly = readOnly;
+        this.segmentBytes = segmentBytes;
+        if (readOnly && !Files.isDirectory(directory))
+            return; // Nothing has been written yet
+        var numbers = new ArrayList<Long>();
+        try (var files = Files.list(directory)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                var name = file.getFileName().toString();
+                if (!name.endsWith(LogSegment.LOG_SUFFIX))
+                    continue;
+                try {
+                    numbers.add(Long.parseLong(name, 0, name.length() - LogSegment.LOG_SUFFIX.length(), 10));
+                } catch (NumberFormatException ignored) {
+                    // Not a segment
+                }
+            }
+        }
+        Collections.sort(numbers);
+        for (long number : numbers) {
+            var segment = LogSegment.open(directory, number, readOnly);
+            if (!segments.isEmpty())
+                segment.follow(segments.get(segments.size() - 1).lastTimestamp());
+            segments.add(segment);
+        }
+        if (segments.isEmpty() && !readOnly)
+            segments.add(LogSegment.open(directory, 0, false));
+    }
+
+    /**
+     * Appends encoded records, starting a new segment first if the last one is full
+     *
+     * @return number of the segment the records went to and the position of the first one in it
+     * @see LogSegment#append(ByteBuffer, List)
+     */
+    synchronized Location append(@NotNull ByteBuffer records, @NotNull List<Long> timestamps) throws IOException {
+        if (readOnly)
+            throw new IllegalStateException(directory + " is open read only");
+        var last = segments.get(segments.size() - 1);
+        if (last.size() >= segmentBytes) {
+            last.close();
+            final long lastTimestamp = last.lastTimestamp();
+            last = LogSegment.open(directory, last.number + 1, false);
+            last.follow(lastTimestamp);
+            segments.add(last);
+        }
+        return new Location(last.number, last.append(records, timestamps));
+    }
+
+    /**
+     * @return the message at the location, or null if there is none
+     */
+    synchronized Message read(@NotNull Location location) throws IOException {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            var segment = segments.get(s);
+            if (segment.number == location.segment())
+                return segment.readRecord(location.position(), target);
+            if (segment.number < location.segment())
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * @return up to {@code count} of the latest messages sent before the timestamp, oldest first
+     */
+    synchronized List<Message> readBefore(long timestamp, int count) throws IOException {
+        if (!isOrdered())
+            return scan(message -> message.timestamp() < timestamp, count, true);
+        var result = new ArrayList<Message>();
+        var chunk = new ArrayList<Message>();
+        // Walk the index intervals backwards, each one is at most a few KiB to read
+        for (int s = segments.size() - 1; s >= 0 && result.size() < count; s--) {
+            var segment = segments.get(s);
+            if (segment.isEmpty() || segment.firstTimestamp() >= timestamp)
+                continue;
+            int[] positions = segment.indexPositions();
+            int end = segment.size();
+            // Skip the intervals which start after the timestamp without reading them
+            int i = positions.length - 1;
+            final int startPosition = segment.positionBefore(timestamp);
+            while (i > 0 && positions[i] > startPosition)
+                end = positions[i--];
+
+            for (; i >= 0 && result.size() < count; i--) {
+                chunk.clear();
+                segment.read(positions[i], end, target, chunk);
+                chunk.removeIf(message -> message.timestamp() >= timestamp);
+                // Newest first while collecting, reversed at the end
+                for (int j = chunk.size() - 1; j >= 0 && result.size() < count; j--)
+                    result.add(chunk.get(j));
+                end = positions[i];
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * @return up to {@code count} of the earliest messages sent at the timestamp or later, oldest first
+     */
+    synchronized List<Message> readFrom(long timestamp, int count) throws IOException {
+        if (!isOrdered())
+            return scan(message -> message.timestamp() >= timestamp, count, false);
+        var result = new ArrayList<Message>();
+        // The last segment that starts before the timestamp may still have messages after it
+        int first = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            if (segments.get(s).firstTimestamp() < timestamp)
+                first = s;
+        }
+
+        var chunk = new ArrayList<Message>();
+        for (int s = first; s < segments.size() && result.size() < count; s++) {
+            var segment = segments.get(s);
+            int[] positions = segment.indexPositions();
+            final int startPosition = segment.positionBefore(timestamp);
+            for (int i = 0; i < positions.length && result.size() < count; i++) {
+                if (i + 1 < positions.length && positions[i + 1] <= startPosition)
+                    continue;
+                chunk.clear();
+                segment.read(positions[i], i + 1 < positions.length ? positions[i + 1] : segment.size(), target, chunk);
+                for (var message : chunk) {
+                    if (message.timestamp() >= timestamp && result.size() < count)
+                        result.add(message);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes the records after the location to the sink, an index interval at a time, in the order they were written
+     *
+     * @param after location of the last record to leave out, null to pass every record
+     * @param sink   returns whether to go on
+     */
+    synchronized void readAfter(Location after, @NotNull Predicate<Chunk> sink) throws IOException {
+        for (var segment : segments) {
+            if (after != null && segment.number < after.segment())
+                continue;
+            final int skipTo = after != null && segment.number == after.segment() ? after.position() : -1;
+            int[] positions = segment.indexPositions();
+            for (int i = 0; i < positions.length; i++) {
+                final int end = i + 1 < positions.length ? positions[i + 1] : segment.size();
+                if (end <= skipTo)
+                    continue;
+                var messages = new ArrayList<Message>();
+                var found = new ArrayList<Integer>();
+                segment.read(positions[i], end, target, (message, position) -> {
+                    if (position > skipTo) {
+                        messages.add(message);
+                        found.add(position);
+                    }
+                });
+                if (messages.isEmpty())
+                    continue;
+                var chunkPositions = new int[found.size()];
+                for (int j = 0; j < chunkPositions.length; j++)
+                    chunkPositions[j] = found.get(j);
+                if (!sink.test(new Chunk(segment.number, chunkPositions, messages)))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Records read together from one segment
+     *
+     * @param positions position of every message in the segment
+     */
+    record Chunk(long segment, int @NotNull [] positions, @NotNull List<Message> messages) {
+    }
+
+    private boolean isOrdered() {
+        for (var segment : segments) {
+            if (!segment.isOrdered())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads every record, for when their timestamps aren't in order and the indexes can't be searched
+     *
+     * @param latest whether to keep the matching messages with the latest timestamps, or else the earliest
+     * @return up to {@code count} of the matching messages, oldest first
+     */
+    private List<Message> scan(@NotNull Predicate<Message> filter, int count, boolean latest) throws IOException {
+        // Ties are broken by the order the messages were written in
+        final Comparator<Found> order = Comparator.comparingLong((Found found) -> found.message().timestamp())
+                .thenComparingLong(Found::order);
+        // The message to drop first is at the head
+        var kept = new PriorityQueue<>(latest ? order : order.reversed());
+        var chunk = new ArrayList<Message>();
+        long written = 0;
+        for (var segment : segments) {
+            int[] positions = segment.indexPositions();
+            for (int i = 0; i < positions.length; i++) {
+                chunk.clear();
+                segment.read(positions[i], i + 1 < positions.length ? positions[i + 1] : segment.size(), target, chunk);
+                for (var message : chunk) {
+                    final long sequence = written++;
+                    if (!filter.test(message))
+                        continue;
+                    kept.add(new Found(message, sequence));
+                    if (kept.size() > count)
+                        kept.poll();
+                }
+            }
+        }
+        var found = new ArrayList<>(kept);
+        found.sort(order);
+        var result = new ArrayList<Message>(found.size());
+        for (var entry : found)
+            result.add(entry.message());
+        return result;
+    }
+
+    private record Found(@NotNull Message message, long order) {
+    }
+
+    /**
+     * Where a record is in the log
+     */
+    record Location(long segment, int position) {
+    }
+
+    /**
+     * Closes the segment which is written to, the log can still be read and written after that
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!segments.isEmpty())
+            segments.get(segments.size() - 1).close();
+    }
+}
@@ -0,0 +1,196 @@
+package core.lines;
+
+import core.history.Scrollback;
+import core.records.Message;
+import javafx.scene.control.Tab;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * What the user has seen and not seen yet of one target: the server, a channel or a query.
+ * A buffer in the background has no nodes besides its tab; its messages are kept encoded in a
+ * {@link Scrollback} and only decoded when the buffer is shown, together with the counts of
+ * unread messages and of highlights, which its tab shows.
+ * Used on the FX thread only.
+ */
+public final class Buffer {
+    private static final String UNREAD_CLASS = "buffer-unread";
+    private static final String HIGHLIGHT_CLASS = "buffer-highlight";
+
+    private final String target;
+    private final String title;
+    private final int capacity;
+    private final Tab tab;
+    private Scrollback history;
+    private int unread = 0;
+    private int highlights = 0;
+    private boolean tabStale = false;
+    private boolean logLoaded = false;
+
+    /**
+     * @param target   channel or nick, null for the server
+     * @param title    shown on the tab
+     * @param capacity most messages kept
+     */
+    public Buffer(String target, @NotNull String title, int capacity) {
+        this.target = target;
+        this.title = title;
+        this.capacity = capacity;
+        this.history = new Scrollback(target, capacity, Scrollback.DEFAULT_MAX_BYTES);
+        tab = new Tab(title);
+        tab.setUserData(this);
+        // A query can be closed, it's back with the next message; channels and the server stay
+        tab.setClosable(isQuery());
+    }
+
+    /**
+     * @return channel or nick, or null for the server
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    public Tab getTab() {
+        return tab;
+    }
+
+    public boolean isChannel() {
+        return target != null && !target.isEmpty() && (target.charAt(0) == '#' || target.charAt(0) == '&');
+    }
+
+    public boolean isQuery() {
+        return target != null && !isChannel();
+    }
+
+    public int size() {
+        return history.size();
+    }
+
+    public int getUnread() {
+        return unread;
+    }
+
+    public int getHighlights() {
+        return highlights;
+    }
+
+    /**
+     * @return timestamp of the oldest message kept, or Long.MAX_VALUE if there is none
+     */
+    public long getFirstTimestamp() {
+        return history.size() == 0 ? Long.MAX_VALUE : history.get(0).timestamp();
+    }
+
+    /**
+     * Marks the buffer as having its older messages asked for from the log
+     *
+     * @return true if they weren't asked for yet
+     */
+    public boolean takeLogLoad() {
+        final boolean first = !logLoaded;
+        logLoaded = true;
+        return first;
+    }
+
+    public void append(@NotNull Message message) {
+        history.append(message);
+    }
+
+    /**
+     * Counts a message which has arrived while the buffer was in the background
+     *
+     * @param highlight whether it mentions the user
+     */
+    public void markUnread(boolean highlight) {
+        unread++;
+        if (highlight)
+            highlights++;
+        tabStale = true;
+    }
+
+    /**
+     * The user is looking at the buffer
+     */
+    public void markRead() {
+        if (unread == 0 && highlights == 0)
+            return;
+        unread = highlights = 0;
+        tabStale = true;
+        updateTab();
+    }
+
+    /**
+     * Shows the counts on the tab if they have changed since it was last updated
+     */
+    public void updateTab() {
+        if (!tabStale)
+            return;
+        tabStale = false;
+        tab.setText(unread == 0 ? title
+                : highlights == 0 ? title + " (" + unread + ")"
+                : title + " (" + unread + ", " + highlights + " for you)");
+        var styleClass = tab.getStyleClass();
+        styleClass.removeAll(UNREAD_CLASS, HIGHLIGHT_CLASS);
+        if (highlights > 0)
+            styleClass.add(HIGHLIGHT_CLASS);
+        else if (unread > 0)
+            styleClass.add(UNREAD_CLASS);
+    }
+
+    /**
+     * @return the newest messages, at most maxCount of them, oldest first
+     */
+    public List<Message> window(int maxCount) {
+        return history.last(maxCount);
+    }
+
+    /**
+     * Merges messages into the buffer by the time they were sent, leaving out the ones it has already,
+     * e.g. played back by the server or read from the log. The history is rebuilt in one go.
+     *
+     * @param older messages of this target, oldest first
+     * @return false if there was nothing new
+     */
+    public boolean merge(@NotNull List<Message> older) {
+        if (older.isEmpty())
+            return false;
+        var kept = history.last(capacity);
+        final long since = older.get(0).timestamp();
+        var shown = new HashSet<Message>();
+        for (var message : kept) {
+            if (message.timestamp() >= since)
+                shown.add(withoutTarget(message));
+        }
+        var merged = new ArrayList<Message>(kept.size() + older.size());
+        int next = 0;
+        for (var message : older) {
+            if (!shown.add(withoutTarget(message)))
+                continue;
+            while (next < kept.size() && kept.get(next).timestamp() <= message.timestamp())
+                merged.add(kept.get(next++));
+            merged.add(message);
+        }
+        if (merged.size() == next)
+            return false;
+        merged.addAll(kept.subList(next, kept.size()));
+        history = new Scrollback(target, capacity, Scrollback.DEFAULT_MAX_BYTES);
+        for (var message : merged.subList(Math.max(0, merged.size() - capacity), merged.size()))
+            history.append(message);
+        return true;
+    }
+
+    /**
+     * @return the message without its target, the same message may be addressed to #Channel or #channel
+     */
+    private static Message withoutTarget(@NotNull Message message) {
+        return new Message(message.kind(), null, message.sender(), message.text(), message.timestamp());
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+}
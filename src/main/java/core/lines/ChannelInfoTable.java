@@ -1,55 +1,192 @@
 package core.lines;
 
-import core.records.Channel;
-import javafx.collections.ListChangeListener;
+import core.records.ChannelInfo;
+import javafx.beans.Observable;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
 import javafx.scene.control.Label;
-import javafx.scene.layout.ColumnConstraints;
-import javafx.scene.layout.GridPane;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
-import javafx.scene.layout.RowConstraints;
+import javafx.scene.layout.VBox;
 import org.jetbrains.annotations.NotNull;
+import util.FrameBatcher;
+import util.TextFieldCharSkipper;
 
-import java.text.MessageFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sortable table of the server's channels which can be filtered by name, user count and topic.
+ * Entries stream in while the server is still sending the list and are added once per frame.
+ * When the list is received again, known channels are updated in place and
+ * the ones the server didn't send this time are removed at the end.
+ */
+public class ChannelInfoTable extends VBox {
+    /** Marks the start and the end of a list among the entries waiting for the next frame */
+    private static final ChannelInfo BEGIN = new ChannelInfo("", 0, ""), END = new ChannelInfo("", 0, "");
+
+    private final ObservableList<ChannelInfo> channels = FXCollections.observableArrayList();
+    private final FilteredList<ChannelInfo> filteredChannels = new FilteredList<>(channels);
+    private final HashMap<String, Integer> indexByName = new HashMap<>();
+    private final HashMap<String, Integer> seenByName = new HashMap<>();
+    private final FrameBatcher<ChannelInfo> batcher = new FrameBatcher<>(2000, this::apply);
+    private final TableView<ChannelInfo> table = new TableView<>();
+    private final TextField nameFilter = new TextField();
+    private final TextField minUsersFilter = new TextField();
+    private final TextField topicFilter = new TextField();
+    private final Label countLabel = new Label();
+    private int generation = 0;
 
-public class ChannelInfoTable extends GridPane {
     public ChannelInfoTable() {
-        var column0 = new ColumnConstraints(60, 60, 100);
-        var column1 = new ColumnConstraints(60, 60, 100);
-        var column2 = new ColumnConstraints();
-        column2.setHgrow(Priority.SOMETIMES);
-        getColumnConstraints().addAll(column0, column1, column2);
-        getRowConstraints().addListener((ListChangeListener<? super RowConstraints>) change -> {
-            change.getAddedSubList().forEach(row -> row.setVgrow(Priority.SOMETIMES));
-        });
-    }
-    
-    public ChannelInfoTable(@NotNull Collection<Channel> channels) {
-        this();
-        setChannels(channels);
-    }
-    
-    public void setChannels(@NotNull Collection<Channel> channels) {
-        if (getChildren().size() > 0) {
-            getChildren().clear();
-            getRowConstraints().clear();
-        }
-        int i = 0;
-        for (var channel : channels) {
-            var nameLabel = new Label(MessageFormat.format("<{0}>", channel.name()));
-            nameLabel.setStyle("-fx-text-fill: darkgreen; -fx-wrap-text: true; -fx-text-alignment: center;");
-    
-            var userLabel = new Label();
-            if (channel.users() > 0) {
-                userLabel.setText(String.format("[%d users]", channel.users()));
-                userLabel.setStyle("-fx-text-fill: coral; -fx-wrap-text: true; -fx-text-alignment: center;");
+        super(5);
+        var nameColumn = new TableColumn<ChannelInfo, String>("Channel");
+        nameColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().name()));
+        nameColumn.setPrefWidth(140);
+        var usersColumn = new TableColumn<ChannelInfo, Integer>("Users");
+        usersColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().users()));
+        usersColumn.setPrefWidth(70);
+        usersColumn.setSortType(TableColumn.SortType.DESCENDING);
+        var topicColumn = new TableColumn<ChannelInfo, String>("Topic");
+        topicColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(cell.getValue().topic()));
+        topicColumn.prefWidthProperty().bind(table.widthProperty().subtract(nameColumn.widthProperty())
+                .subtract(usersColumn.widthProperty()).subtract(20));
+
+        table.getColumns().addAll(List.of(nameColumn, usersColumn, topicColumn));
+        table.getSortOrder().add(usersColumn);
+        table.setPlaceholder(new Label("No channels"));
+        var sortedChannels = new SortedList<>(filteredChannels);
+        sortedChannels.comparatorProperty().bind(table.comparatorProperty());
+        table.setItems(sortedChannels);
+
+        nameFilter.setPromptText("Name");
+        minUsersFilter.setPromptText("Min. users");
+        minUsersFilter.setPrefColumnCount(6);
+        minUsersFilter.setOnKeyTyped(new TextFieldCharSkipper(9, "\\D"));
+        topicFilter.setPromptText("Topic");
+        HBox.setHgrow(topicFilter, Priority.SOMETIMES);
+        nameFilter.textProperty().addListener(observable -> updateFilter());
+        minUsersFilter.textProperty().addListener(observable -> updateFilter());
+        topicFilter.textProperty().addListener(observable -> updateFilter());
+        filteredChannels.addListener((Observable observable) -> updateCount());
+
+        var filterBox = new HBox(5, nameFilter, minUsersFilter, topicFilter, countLabel);
+        VBox.setVgrow(table, Priority.ALWAYS);
+        getChildren().addAll(filterBox, table);
+        updateCount();
+    }
+
+    /**
+     * The server has started sending the list. Can be called from any thread.
+     */
+    public void begin() {
+        batcher.add(BEGIN);
+    }
+
+    /**
+     * Adds or updates an entry with the next frame. Can be called from any thread.
+     */
+    public void add(@NotNull ChannelInfo info) {
+        batcher.add(info);
+    }
+
+    /**
+     * The server has finished sending the list. Can be called from any thread.
+     */
+    public void end() {
+        batcher.add(END);
+    }
+
+    /**
+     * Removes every entry. Must be called on the FX thread.
+     */
+    public void clear() {
+        batcher.clear();
+        channels.clear();
+        indexByName.clear();
+        seenByName.clear();
+    }
+
+    private void apply(@NotNull List<ChannelInfo> batch) {
+        var added = new ArrayList<ChannelInfo>();
+        for (var info : batch) {
+            if (info == BEGIN) {
+                generation++;
+            } else if (info == END) {
+                flush(added);
+                removeUnseen();
+            } else {
+                Integer index = indexByName.get(info.name());
+                if (index != null && index < channels.size()) {
+                    channels.set(index, info);
+                } else if (index != null) { // Listed twice within this batch
+                    added.set(index - channels.size(), info);
+                } else {
+                    indexByName.put(info.name(), channels.size() + added.size());
+                    added.add(info);
+                }
+                seenByName.put(info.name(), generation);
             }
-    
-            var descLabel = new Label(channel.desc());
-            descLabel.setWrapText(true);
-    
-            addRow(i++, nameLabel, userLabel, descLabel);
         }
+        flush(added);
+    }
+
+    private void flush(@NotNull List<ChannelInfo> added) {
+        if (!added.isEmpty()) {
+            channels.addAll(added);
+            added.clear();
+        }
+    }
+
+    /**
+     * Removes the channels which weren't in the list that has just ended
+     */
+    private void removeUnseen() {
+        var kept = new ArrayList<ChannelInfo>(channels.size());
+        for (var info : channels)
+            if (seenByName.get(info.name()) == generation)
+                kept.add(info);
+        if (kept.size() == channels.size())
+            return;
+        indexByName.clear();
+        seenByName.clear();
+        for (int i = 0; i < kept.size(); i++) {
+            indexByName.put(kept.get(i).name(), i);
+            seenByName.put(kept.get(i).name(), generation);
+        }
+        channels.setAll(kept);
+    }
+
+    private void updateFilter() {
+        final String name = nameFilter.getText().strip().toLowerCase(Locale.ROOT);
+        final String topic = topicFilter.getText().strip().toLowerCase(Locale.ROOT);
+        final String minUsersText = minUsersFilter.getText().strip();
+        int minUsers;
+        try {
+            minUsers = minUsersText.isEmpty() ? 0 : Integer.parseInt(minUsersText);
+        } catch (NumberFormatException e) { // Pasted something which isn't a number
+            minUsers = 0;
+        }
+        final int minUserCount = minUsers;
+        if (name.isEmpty() && topic.isEmpty() && minUserCount == 0) {
+            filteredChannels.setPredicate(null);
+            return;
+        }
+        filteredChannels.setPredicate(info -> info.users() >= minUserCount
+                && (name.isEmpty() || info.name().toLowerCase(Locale.ROOT).contains(name))
+                && (topic.isEmpty() || info.topic().toLowerCase(Locale.ROOT).contains(topic)));
+    }
+
+    private void updateCount() {
+        countLabel.setText(filteredChannels.size() == channels.size()
+                ? channels.size() + " channels"
+                : filteredChannels.size() + " of " + channels.size() + " channels");
     }
-    
 }
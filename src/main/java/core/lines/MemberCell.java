@@ -0,0 +1,29 @@
+package core.lines;
+
+import core.state.Member;
+import javafx.scene.control.ListCell;
+
+/**
+ * Recyclable cell of the member list: the nick with its highest prefix, greyed out if the member is away.
+ * Looks are defined in styles.css.
+ */
+public class MemberCell extends ListCell<Member> {
+    private static final String AWAY_CLASS = "member-away";
+
+    public MemberCell() {
+        getStyleClass().add("member-cell");
+    }
+
+    @Override
+    protected void updateItem(Member member, boolean empty) {
+        super.updateItem(member, empty);
+        getStyleClass().remove(AWAY_CLASS);
+        if (empty || member == null) {
+            setText(null);
+            return;
+        }
+        setText(member.toString());
+        if (member.away())
+            getStyleClass().add(AWAY_CLASS);
+    }
+}
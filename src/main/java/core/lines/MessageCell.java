@@ -0,0 +1,64 @@
+package core.lines;
+
+import core.records.Message;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.Region;
+import org.jetbrains.annotations.NotNull;
+
+import java.text.MessageFormat;
+import java.util.function.Predicate;
+
+/**
+ * Recyclable cell of the message list. The list only creates as many
+ * cells as there are visible rows and reuses them while scrolling.
+ * Looks of each {@link Message.Kind kind}, and of highlighted messages, are defined in styles.css.
+ */
+public class MessageCell extends ListCell<Message> {
+    private static final String SENDER_CLASS = "sender";
+    private static final String HIGHLIGHT_CLASS = "message-highlight";
+
+    private final Label senderLabel = new Label();
+    private final Label messageLabel = new Label();
+    private final HBox box = new HBox(10, senderLabel, messageLabel);
+    private final Predicate<Message> highlighted;
+
+    /**
+     * @param highlighted whether a message mentions the user
+     */
+    public MessageCell(@NotNull Predicate<Message> highlighted) {
+        this.highlighted = highlighted;
+        getStyleClass().add("message-cell");
+        senderLabel.getStyleClass().add(SENDER_CLASS);
+        senderLabel.setMinWidth(Region.USE_PREF_SIZE);
+        messageLabel.setWrapText(true);
+        HBox.setHgrow(senderLabel, Priority.NEVER);
+        HBox.setHgrow(messageLabel, Priority.SOMETIMES);
+        // Don't let long lines widen the list, wrap them instead
+        setPrefWidth(0);
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(Message message, boolean empty) {
+        super.updateItem(message, empty);
+        box.getStyleClass().removeIf(styleClass -> styleClass.startsWith("message-"));
+        if (empty || message == null) {
+            setGraphic(null);
+            return;
+        }
+
+        boolean hasSender = message.sender() != null;
+        senderLabel.setVisible(hasSender);
+        senderLabel.setManaged(hasSender);
+        senderLabel.setText(hasSender ? MessageFormat.format("<{0}>", message.sender()) : null);
+        messageLabel.setText(message.text());
+        box.getStyleClass().add("message-" + message.kind().name().toLowerCase());
+        if (highlighted.test(message))
+            box.getStyleClass().add(HIGHLIGHT_CLASS);
+        setGraphic(box);
+    }
+}
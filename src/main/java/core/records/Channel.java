@@ -1,14 +1,16 @@
 package core.records;
 
-import java.util.ArrayList;
-import java.util.List;
+import core.history.Scrollback;
+import org.jetbrains.annotations.NotNull;
 
-public record Channel(String name, int users, String options, String desc, List<Message> messages) {
-    public Channel(String name) {
-        this(name, 0, null, null, new ArrayList<>());
-    }
-    
-    public Channel(String name, int users, String options, String desc) {
-        this(name, users, options, desc, new ArrayList<>());
+/**
+ * A channel the user has joined
+ *
+ * @param name    channel name, including the leading '#'
+ * @param history messages of the channel
+ */
+public record Channel(@NotNull String name, @NotNull Scrollback history) {
+    public Channel(@NotNull String name) {
+        this(name, new Scrollback(name));
     }
 }
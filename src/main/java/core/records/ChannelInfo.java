@@ -0,0 +1,13 @@
+package core.records;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * One entry of the server's channel list
+ *
+ * @param name  channel name without the leading '#'
+ * @param users user count, or -1 if the server didn't tell
+ * @param topic channel topic, without the [modes] block some servers put in front of it
+ */
+public record ChannelInfo(@NotNull String name, int users, @NotNull String topic) {
+}
@@ -1,4 +1,68 @@
 package core.records;
 
-public record Message(String sender, String text) {
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An immutable line to be shown to the user
+ *
+ * @param target    channel or query the line belongs to, or null if it belongs to the server / the client itself
+ * @param sender    who the line is from, or null if it isn't from anyone in particular
+ * @param timestamp when the line was sent according to the server (IRCv3 server-time), or otherwise
+ *                  when it was received, in milliseconds since the epoch
+ */
+public record Message(@NotNull Kind kind, String target, String sender, @NotNull String text, long timestamp) {
+    public enum Kind {
+        /** Plain text, e.g. help */
+        TEXT,
+        /** Usual message from a user */
+        MESSAGE,
+        /** Important message from a user or the server */
+        NOTICE,
+        /** Something the user should pay attention to */
+        WARNING,
+        ERROR
+    }
+
+    public Message(@NotNull Kind kind, String target, String sender, @NotNull String text) {
+        this(kind, target, sender, text, System.currentTimeMillis());
+    }
+
+    public static Message text(@NotNull String text) {
+        return new Message(Kind.TEXT, null, null, text);
+    }
+
+    /**
+     * @return an empty line, used to skip a line
+     */
+    public static Message empty() {
+        return text("");
+    }
+
+    public static Message message(String target, @NotNull String sender, @NotNull String text) {
+        return new Message(Kind.MESSAGE, target, sender, text);
+    }
+
+    public static Message message(String target, @NotNull String sender, @NotNull String text, long timestamp) {
+        return new Message(Kind.MESSAGE, target, sender, text, timestamp);
+    }
+
+    public static Message notice(String target, @NotNull String sender, @NotNull String text) {
+        return new Message(Kind.NOTICE, target, sender, text);
+    }
+
+    public static Message notice(String target, @NotNull String sender, @NotNull String text, long timestamp) {
+        return new Message(Kind.NOTICE, target, sender, text, timestamp);
+    }
+
+    public static Message warning(@NotNull String text) {
+        return warning(null, text);
+    }
+
+    public static Message warning(String target, @NotNull String text) {
+        return new Message(Kind.WARNING, target, null, text);
+    }
+
+    public static Message error(@NotNull String text) {
+        return new Message(Kind.ERROR, null, null, text);
+    }
 }
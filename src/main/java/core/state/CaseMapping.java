@@ -0,0 +1,56 @@
+package core.state;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * How the server compares nicks and channel names, as announced by the CASEMAPPING token of 005.
+ * Servers which don't announce one use rfc1459.
+ */
+public enum CaseMapping {
+    /** Only A-Z are folded */
+    ASCII('Z'),
+    /** A-Z and {@code []\^} are folded, the last being the upper case versions of <code>{}|~</code> */
+    RFC1459('^'),
+    /** Like rfc1459, except that '^' and '~' are different */
+    STRICT_RFC1459(']');
+
+    private final char lastUpper;
+
+    CaseMapping(char lastUpper) {
+        this.lastUpper = lastUpper;
+    }
+
+    /**
+     * @param token value of the CASEMAPPING token
+     * @return the mapping, rfc1459 if it's unknown
+     */
+    public static CaseMapping of(@NotNull String token) {
+        return switch (token.toLowerCase()) {
+            case "ascii" -> ASCII;
+            case "strict-rfc1459" -> STRICT_RFC1459;
+            default -> RFC1459;
+        };
+    }
+
+    public char fold(char c) {
+        if (c >= 'A' && c <= lastUpper)
+            return (char) (c + ('a' - 'A'));
+        return c;
+    }
+
+    /**
+     * @return the folded name, the same instance if nothing had to be folded
+     */
+    public String fold(@NotNull String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (fold(c) != c) {
+                var folded = name.toCharArray();
+                for (int j = i; j < folded.length; j++)
+                    folded[j] = fold(folded[j]);
+                return new String(folded);
+            }
+        }
+        return name;
+    }
+}
@@ -0,0 +1,156 @@
+package core.state;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Members of one channel and their prefix modes.
+ * Members are kept in an open addressing table keyed by {@link User} identity, with the modes
+ * as a bit set per slot in a parallel byte array, so a member costs a reference and a byte
+ * (plus the free slots) rather than a map entry; the user itself is shared with every other channel.
+ * Guarded by the lock of the {@link NetworkState}.
+ */
+final class ChannelState {
+    private static final int INITIAL_SLOTS = 16;
+
+    String name; // As the server has sent it on our JOIN
+    /** Incremented on every change, so a snapshot knows whether it's still current */
+    long version = 0;
+    /** A NAMES reply is coming in; its first line starts the member list over */
+    boolean receivingNames = false;
+    Snapshot snapshot = null; // Last one handed out, still current if its version is
+    private User[] users = new User[INITIAL_SLOTS];
+    private byte[] modes = new byte[INITIAL_SLOTS];
+    private int size = 0;
+
+    ChannelState(@NotNull String name) {
+        this.name = name;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the member's prefix modes, or -1 if the user isn't a member
+     */
+    int modes(@NotNull User user) {
+        final int slot = find(user);
+        return users[slot] == null ? -1 : modes[slot] & 0xFF;
+    }
+
+    /**
+     * Adds the member or replaces its modes
+     *
+     * @return false if the member had these modes already
+     */
+    boolean put(@NotNull User user, int memberModes) {
+        int slot = find(user);
+        if (users[slot] == null) {
+            if ((size + 1) * 4 > users.length * 3) { // Above 3/4 full
+                resize(users.length * 2);
+                slot = find(user);
+            }
+            users[slot] = user;
+            size++;
+        } else if ((modes[slot] & 0xFF) == memberModes) {
+            return false;
+        }
+        modes[slot] = (byte) memberModes;
+        version++;
+        return true;
+    }
+
+    /**
+     * @return false if the user wasn't a member
+     */
+    boolean remove(@NotNull User user) {
+        int slot = find(user);
+        if (users[slot] == null)
+            return false;
+        // Moves later entries of the probe sequence back, so lookups need no tombstones
+        final int mask = users.length - 1;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            final User moved = users[next];
+            if (moved == null)
+                break;
+            final int home = moved.hash & mask;
+            // Moves it only if its home slot isn't between the hole and its current slot
+            if (slot <= next ? slot >= home || home > next : slot >= home && home > next) {
+                users[slot] = moved;
+                modes[slot] = modes[next];
+                slot = next;
+            }
+        }
+        users[slot] = null;
+        modes[slot] = 0;
+        size--;
+        version++;
+        if (users.length > INITIAL_SLOTS && size * 8 < users.length) // Below 1/8 full
+            resize(users.length / 2);
+        return true;
+    }
+
+    /**
+     * Removes every member, who must already have forgotten the channel
+     */
+    void clear() {
+        users = new User[INITIAL_SLOTS];
+        modes = new byte[INITIAL_SLOTS];
+        size = 0;
+        version++;
+    }
+
+    /**
+     * Calls the action for every member
+     */
+    void forEach(@NotNull MemberAction action) {
+        for (int i = 0; i < users.length; i++)
+            if (users[i] != null)
+                action.accept(users[i], modes[i] & 0xFF);
+    }
+
+    @FunctionalInterface
+    interface MemberAction {
+        void accept(@NotNull User user, int modes);
+    }
+
+    /**
+     * @return the slot of the user, or the free slot where it would go
+     */
+    private int find(@NotNull User user) {
+        final int mask = users.length - 1;
+        int slot = user.hash & mask;
+        while (users[slot] != null && users[slot] != user)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void resize(int slots) {
+        final User[] oldUsers = users;
+        final byte[] oldModes = modes;
+        users = new User[slots];
+        modes = new byte[slots];
+        for (int i = 0; i < oldUsers.length; i++) {
+            if (oldUsers[i] != null) {
+                final int slot = find(oldUsers[i]);
+                users[slot] = oldUsers[i];
+                modes[slot] = oldModes[i];
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + " members)";
+    }
+
+    /**
+     * Sorted members as of a version of the channel
+     */
+    record Snapshot(long version, @NotNull List<Member> members) {
+    }
+}
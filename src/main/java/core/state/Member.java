@@ -0,0 +1,24 @@
+package core.state;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A member of a channel as of a snapshot
+ *
+ * @param nick     the member's nick
+ * @param prefixes symbols of the member's prefix modes, highest first, e.g. "@+"; empty if there are none
+ * @param away     whether the server has told us the member is away
+ */
+public record Member(@NotNull String nick, @NotNull String prefixes, boolean away) {
+    /**
+     * @return the symbol of the highest prefix mode, e.g. '@', or ' ' if there is none
+     */
+    public char prefix() {
+        return prefixes.isEmpty() ? ' ' : prefixes.charAt(0);
+    }
+
+    @Override
+    public String toString() {
+        return prefixes.isEmpty() ? nick : prefixes.charAt(0) + nick;
+    }
+}
@@ -0,0 +1,482 @@
+package core.state;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Who is in which of our channels on one network, with their prefix modes (op, voice, ...).
+ * <p>
+ * There is one {@link User} per nick, shared by every channel the user is in, and each user knows
+ * its channels, so a QUIT or NICK touches only the user's own channels however many there are.
+ * Users are looked up by their nick folded with the server's {@link CaseMapping}; a user who
+ * leaves the last channel we share is forgotten.
+ * <p>
+ * Changes are applied by the connection, in the order the server has sent them.
+ * Readers get immutable {@link #getMembers(String) snapshots}: the lock is only held to copy the members,
+ * sorting and whatever the reader does with them happen outside it, and an unchanged channel
+ * hands out the same snapshot again.
+ */
+public final class NetworkState {
+    /** What servers which don't announce PREFIX use */
+    public static final String DEFAULT_PREFIX = "(ov)@+";
+    /** What servers which don't announce CHANMODES use */
+    public static final String DEFAULT_CHANNEL_MODES = "beI,k,l,imnpst";
+    /** Prefix modes beyond this many are ignored, the modes of a member are kept in a byte */
+    public static final int MAX_PREFIX_MODES = 8;
+
+    private final HashMap<String, User> users = new HashMap<>(); // By folded nick
+    private final HashMap<String, ChannelState> channels = new HashMap<>(); // By folded name
+    private volatile CaseMapping caseMapping = CaseMapping.RFC1459;
+    private final User self;
+    private String prefixModes = "";
+    private String prefixSymbols = "";
+    private String[] prefixStrings; // Symbols of every combination of prefix modes, by bit set
+    private String listModes = "";      // Type A of CHANMODES, always have a parameter
+    private String parameterModes = ""; // Type B, always have a parameter
+    private String setParameterModes = ""; // Type C, have a parameter only when set
+
+    /**
+     * @param nick our own nick
+     */
+    public NetworkState(@NotNull String nick) {
+        self = new User(nick);
+        users.put(fold(nick), self);
+        setPrefix(DEFAULT_PREFIX);
+        setChannelModes(DEFAULT_CHANNEL_MODES);
+    }
+
+    public CaseMapping getCaseMapping() {
+        return caseMapping;
+    }
+
+    /**
+     * @return the name folded with the server's case mapping, for comparing names
+     */
+    public String fold(@NotNull String name) {
+        return caseMapping.fold(name);
+    }
+
+    /**
+     * Changes the case mapping, normally before any channel is joined
+     */
+    public synchronized void setCaseMapping(@NotNull CaseMapping mapping) {
+        if (mapping == caseMapping)
+            return;
+        caseMapping = mapping;
+        var oldUsers = new ArrayList<>(users.values());
+        users.clear();
+        for (var user : oldUsers)
+            users.put(fold(user.nick), user);
+        var oldChannels = new ArrayList<>(channels.values());
+        channels.clear();
+        for (var channel : oldChannels)
+            channels.put(fold(channel.name), channel);
+    }
+
+    /**
+     * Takes the prefix modes from the PREFIX token of 005, e.g. "(qaohv)~&@%+"; malformed tokens are ignored.
+     * Existing members lose their modes, normally there are none yet.
+     */
+    public synchronized void setPrefix(@NotNull String token) {
+        final int close = token.indexOf(')');
+        if (!token.startsWith("(") || close < 0 || token.length() - close - 1 != close - 1)
+            return;
+        final int count = Math.min(close - 1, MAX_PREFIX_MODES);
+        prefixModes = token.substring(1, 1 + count);
+        prefixSymbols = token.substring(close + 1, close + 1 + count);
+        prefixStrings = new String[1 << count];
+        var symbols = new StringBuilder(count);
+        for (int modes = 0; modes < prefixStrings.length; modes++) {
+            symbols.setLength(0);
+            for (int bit = 0; bit < count; bit++)
+                if ((modes & 1 << bit) != 0)
+                    symbols.append(prefixSymbols.charAt(bit));
+            prefixStrings[modes] = symbols.toString();
+        }
+        for (var channel : channels.values())
+            channel.forEach((user, modes) -> channel.put(user, 0));
+    }
+
+    /**
+     * Takes the channel mode types from the CHANMODES token of 005, e.g. "beI,k,l,imnpst",
+     * to know which modes of a MODE line have a parameter
+     */
+    public synchronized void setChannelModes(@NotNull String token) {
+        final String[] types = token.split(",", -1);
+        listModes = types[0];
+        parameterModes = types.length > 1 ? types[1] : "";
+        setParameterModes = types.length > 2 ? types[2] : "";
+    }
+
+    /**
+     * Forgets every channel and user but ourselves, e.g. when the connection is lost
+     */
+    public synchronized void clear() {
+        for (var channel : channels.values())
+            channel.clear();
+        channels.clear();
+        users.clear();
+        self.clearChannels();
+        users.put(fold(self.nick), self);
+    }
+
+    /**
+     * Someone has joined a channel. If it's us, the channel is tracked from now on.
+     *
+     * @param user ident of the user, or null if unknown
+     * @param host host of the user, or null if unknown
+     * @return true if the members of a tracked channel have changed
+     */
+    public synchronized boolean join(@NotNull String channel, @NotNull String nick, String user, String host) {
+        final String key = fold(channel);
+        var state = channels.get(key);
+        final boolean isSelf = users.get(fold(nick)) == self;
+        if (state == null) {
+            if (!isSelf)
+                return false;
+            state = new ChannelState(channel);
+            channels.put(key, state);
+        }
+        var joined = intern(nick);
+        if (user != null) {
+            joined.user = user;
+            joined.host = host;
+        }
+        joined.addChannel(state);
+        return state.put(joined, Math.max(0, state.modes(joined)));
+    }
+
+    /**
+     * Someone has left a channel or was kicked from it. If it's us, the channel is no longer tracked.
+     *
+     * @return true if the members of a tracked channel have changed
+     */
+    public synchronized boolean part(@NotNull String channel, @NotNull String nick) {
+        final String key = fold(channel);
+        var state = channels.get(key);
+        var user = users.get(fold(nick));
+        if (state == null || user == null)
+            return false;
+        if (user == self) {
+            channels.remove(key);
+            state.forEach((member, modes) -> leave(member, state));
+            state.clear();
+            return true;
+        }
+        if (!state.remove(user))
+            return false;
+        leave(user, state);
+        return true;
+    }
+
+    /**
+     * Someone has quit the network
+     *
+     * @return names of the channels the user was in, empty if we don't share any
+     */
+    public synchronized List<String> quit(@NotNull String nick) {
+        final String key = fold(nick);
+        var user = users.get(key);
+        if (user == null || user == self)
+            return List.of();
+        users.remove(key);
+        return forget(user);
+    }
+
+    /**
+     * Someone, possibly us, is known by another nick from now on
+     *
+     * @return names of the channels the user is in, empty if we don't share any
+     */
+    public synchronized List<String> rename(@NotNull String oldNick, @NotNull String newNick) {
+        final String oldKey = fold(oldNick);
+        final String newKey = fold(newNick);
+        var user = users.get(oldKey);
+        if (user == null)
+            return List.of();
+        if (!oldKey.equals(newKey)) {
+            users.remove(oldKey);
+            var stale = users.put(newKey, user);
+            if (stale != null && stale != user) // We've missed the stale one's QUIT
+                forget(stale);
+        }
+        user.nick = newNick;
+        var names = new ArrayList<String>(user.channelCount());
+        for (int i = 0; i < user.channelCount(); i++) {
+            var channel = user.channel(i);
+            channel.version++; // Same members, but the snapshots have the old nick
+            names.add(channel.name);
+        }
+        return names;
+    }
+
+    /**
+     * Takes one line of a NAMES reply (353), e.g. "@op +voiced plain".
+     * The first line of a reply starts the member list over, it's complete with {@link #endOfNames}.
+     * With multi-prefix a nick may have several prefixes, with userhost-in-names the nick may be
+     * followed by {@code !user@host}.
+     */
+    public synchronized void names(@NotNull String channel, @NotNull String names) {
+        var state = channels.get(fold(channel));
+        if (state == null)
+            return; // NAMES of a channel we're not in
+        if (!state.receivingNames) {
+            state.receivingNames = true;
+            state.forEach((member, modes) -> leave(member, state));
+            state.clear();
+        }
+        final int length = names.length();
+        int start = 0;
+        while (start < length) {
+            int end = names.indexOf(' ', start);
+            if (end < 0)
+                end = length;
+            int modes = 0;
+            int i = start;
+            int bit;
+            while (i < end && (bit = prefixSymbols.indexOf(names.charAt(i))) >= 0) {
+                modes |= 1 << bit;
+                i++;
+            }
+            final int bang = names.indexOf('!', i);
+            final int nickEnd = bang >= 0 && bang < end ? bang : end;
+            if (nickEnd > i) {
+                var user = intern(names.substring(i, nickEnd));
+                final int at = bang >= 0 && bang < end ? names.indexOf('@', bang) : -1;
+                if (at >= 0 && at < end) {
+                    user.user = names.substring(bang + 1, at);
+                    user.host = names.substring(at + 1, end);
+                }
+                user.addChannel(state);
+                state.put(user, modes);
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * The NAMES reply (366) has ended
+     *
+     * @return true if the channel is tracked
+     */
+    public synchronized boolean endOfNames(@NotNull String channel) {
+        var state = channels.get(fold(channel));
+        if (state == null)
+            return false;
+        state.receivingNames = false;
+        return true;
+    }
+
+    /**
+     * Applies the prefix modes of a channel MODE line, e.g. "+ov-b" with "alice", "bob", "*!*@spam";
+     * the other modes are only needed to know which argument belongs to which mode
+     *
+     * @param arguments parameters after the mode string
+     * @return true if a member's prefix modes have changed
+     */
+    public synchronized boolean mode(@NotNull String channel, @NotNull String modeString, @NotNull List<String> arguments) {
+        var state = channels.get(fold(channel));
+        if (state == null)
+            return false;
+        boolean changed = false;
+        boolean adding = true;
+        int argument = 0;
+        for (int i = 0; i < modeString.length(); i++) {
+            final char mode = modeString.charAt(i);
+            if (mode == '+' || mode == '-') {
+                adding = mode == '+';
+                continue;
+            }
+            final int bit = prefixModes.indexOf(mode);
+            if (bit >= 0) {
+                if (argument >= arguments.size())
+                    break;
+                var user = users.get(fold(arguments.get(argument++)));
+                final int modes = user == null ? -1 : state.modes(user);
+                if (modes >= 0)
+                    changed |= state.put(user, adding ? modes | 1 << bit : modes & ~(1 << bit));
+            } else if (listModes.indexOf(mode) >= 0 || parameterModes.indexOf(mode) >= 0
+                    || adding && setParameterModes.indexOf(mode) >= 0) {
+                argument++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Takes one line of a WHO reply (352)
+     *
+     * @param flags 'H' (here) or 'G' (gone), maybe '*' for an operator, then the prefix symbols in the channel
+     * @return true if the members of a tracked channel have changed
+     */
+    public synchronized boolean who(@NotNull String channel, @NotNull String nick, @NotNull String user,
+                                    @NotNull String host, @NotNull String flags) {
+        var known = users.get(fold(nick));
+        if (known == null)
+            return false;
+        known.user = user;
+        known.host = host;
+        boolean changed = false;
+        final boolean away = flags.startsWith("G");
+        if (known.away != away) {
+            known.away = away;
+            for (int i = 0; i < known.channelCount(); i++)
+                known.channel(i).version++;
+            changed = true;
+        }
+        var state = channels.get(fold(channel));
+        if (state != null && state.modes(known) >= 0) {
+            int modes = 0;
+            for (int i = 1; i < flags.length(); i++) {
+                final int bit = prefixSymbols.indexOf(flags.charAt(i));
+                if (bit >= 0)
+                    modes |= 1 << bit;
+            }
+            changed |= state.put(known, modes);
+        }
+        return changed;
+    }
+
+    /**
+     * @return whether we are in the channel
+     */
+    public synchronized boolean isJoined(@NotNull String channel) {
+        return channels.containsKey(fold(channel));
+    }
+
+    /**
+     * @return number of members of the channel, 0 if we're not in it
+     */
+    public synchronized int getMemberCount(@NotNull String channel) {
+        var state = channels.get(fold(channel));
+        return state == null ? 0 : state.size();
+    }
+
+    /**
+     * @return number of distinct users in all our channels, ourselves included
+     */
+    public synchronized int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return names of our channels the user is in
+     */
+    public synchronized List<String> getChannels(@NotNull String nick) {
+        var user = users.get(fold(nick));
+        if (user == null)
+            return List.of();
+        var names = new ArrayList<String>(user.channelCount());
+        for (int i = 0; i < user.channelCount(); i++)
+            names.add(user.channel(i).name);
+        return names;
+    }
+
+    /**
+     * Members of the channel as they are now, sorted by their highest prefix mode and then by nick.
+     * The list never changes, a later change of the channel makes a new one.
+     *
+     * @return the members, empty if we're not in the channel
+     */
+    public List<Member> getMembers(@NotNull String channel) {
+        final ChannelState state;
+        final long version;
+        final String[] nicks;
+        final byte[] modes;
+        final boolean[] away;
+        final String[] prefixes;
+        final String symbols;
+        synchronized (this) {
+            state = channels.get(fold(channel));
+            if (state == null)
+                return List.of();
+            var current = state.snapshot;
+            if (current != null && current.version() == state.version)
+                return current.members();
+            // Only what has to be read under the lock
+            version = state.version;
+            nicks = new String[state.size()];
+            modes = new byte[nicks.length];
+            away = new boolean[nicks.length];
+            var count = new int[1];
+            state.forEach((user, memberModes) -> {
+                nicks[count[0]] = user.nick;
+                modes[count[0]] = (byte) memberModes;
+                away[count[0]++] = user.away;
+            });
+            prefixes = prefixStrings;
+            symbols = prefixSymbols;
+        }
+
+        // Folded once per member rather than on every comparison
+        final CaseMapping mapping = caseMapping;
+        var sorting = new Sorting[nicks.length];
+        for (int i = 0; i < sorting.length; i++) {
+            final int memberModes = modes[i] & 0xFF;
+            final int rank = memberModes == 0 ? symbols.length() : Integer.numberOfTrailingZeros(memberModes);
+            sorting[i] = new Sorting(rank, mapping.fold(nicks[i]), new Member(nicks[i], prefixes[memberModes], away[i]));
+        }
+        Arrays.sort(sorting);
+        var members = new Member[sorting.length];
+        for (int i = 0; i < members.length; i++)
+            members[i] = sorting[i].member();
+        var list = Collections.unmodifiableList(Arrays.asList(members));
+        synchronized (this) {
+            var current = state.snapshot;
+            if (current == null || current.version() < version)
+                state.snapshot = new ChannelState.Snapshot(version, list);
+        }
+        return list;
+    }
+
+    /**
+     * @return the user, added to the table if it's new
+     */
+    private User intern(@NotNull String nick) {
+        final String key = fold(nick);
+        var user = users.get(key);
+        if (user == null) {
+            // The key is the nick itself unless it had to be folded
+            user = new User(nick);
+            users.put(key, user);
+        }
+        return user;
+    }
+
+    /**
+     * The user is no longer in the channel, and is forgotten if it was the last one we shared
+     */
+    private void leave(@NotNull User user, @NotNull ChannelState channel) {
+        user.removeChannel(channel);
+        if (user.channelCount() == 0 && user != self)
+            users.remove(fold(user.nick));
+    }
+
+    /**
+     * Removes the user from all its channels
+     *
+     * @return names of the channels
+     */
+    private List<String> forget(@NotNull User user) {
+        var names = new ArrayList<String>(user.channelCount());
+        for (int i = 0; i < user.channelCount(); i++) {
+            var channel = user.channel(i);
+            channel.remove(user);
+            names.add(channel.name);
+        }
+        user.clearChannels();
+        return names;
+    }
+
+    private record Sorting(int rank, @NotNull String key, @NotNull Member member) implements Comparable<Sorting> {
+        @Override
+        public int compareTo(@NotNull Sorting other) {
+            return rank != other.rank ? Integer.compare(rank, other.rank) : key.compareTo(other.key);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package core.state;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * A user the client shares at least one channel with. There is one instance per user and network,
+ * every channel refers to the same one, so a nick change touches a single object.
+ * Guarded by the lock of the {@link NetworkState}.
+ */
+final class User {
+    private static final ChannelState[] NO_CHANNELS = new ChannelState[0];
+
+    /** Identity hash for the member tables, stable across nick changes */
+    final int hash;
+    String nick;
+    String user; // null until the server has told
+    String host;
+    boolean away;
+    private ChannelState[] channels = NO_CHANNELS;
+    private int channelCount = 0;
+
+    User(@NotNull String nick) {
+        this.nick = nick;
+        hash = System.identityHashCode(this);
+    }
+
+    int channelCount() {
+        return channelCount;
+    }
+
+    ChannelState channel(int index) {
+        return channels[index];
+    }
+
+    void addChannel(@NotNull ChannelState channel) {
+        for (int i = 0; i < channelCount; i++)
+            if (channels[i] == channel)
+                return;
+        if (channelCount == channels.length)
+            channels = Arrays.copyOf(channels, Math.max(2, channelCount * 2));
+        channels[channelCount++] = channel;
+    }
+
+    void removeChannel(@NotNull ChannelState channel) {
+        for (int i = 0; i < channelCount; i++) {
+            if (channels[i] == channel) {
+                channels[i] = channels[--channelCount];
+                channels[channelCount] = null;
+                return;
+            }
+        }
+    }
+
+    void clearChannels() {
+        channels = NO_CHANNELS;
+        channelCount = 0;
+    }
+}
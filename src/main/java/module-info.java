@@ -6,6 +6,8 @@ module IRC.client.main {
 
     requires static org.jetbrains.annotations;
     requires java.logging;
+    requires java.management;
+    requires jdk.jfr;
 
     opens core.controller to javafx.fxml;
     exports core;
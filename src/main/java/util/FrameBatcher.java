@@ -0,0 +1,129 @@
+package util;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Collects items from any thread and hands them to the FX thread in batches,
+ * at most one batch per frame.
+ * Instead of one {@link Platform#runLater(Runnable)} per item there is a single
+ * {@link AnimationTimer} which runs only while there is something to hand over.
+ * A batch is capped at a number of items so that a flood can't take up a whole frame;
+ * the rest waits for the next frames.
+ * <p>
+ * Items may come with a stamp, e.g. when what they show was read from the socket; once a batch is handed over
+ * the oldest stamp among the items waiting until then is passed on, to measure how long it took to show them.
+ */
+public class FrameBatcher<T> {
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong oldestStamp = new AtomicLong(Long.MAX_VALUE);
+    private final Consumer<List<T>> consumer;
+    private final LongConsumer onShown;
+    private final int maxBatch;
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drain();
+        }
+    };
+
+    public FrameBatcher(@NotNull Consumer<List<T>> consumer) {
+        this(DEFAULT_MAX_BATCH, consumer);
+    }
+
+    /**
+     * @param maxBatch most items handed to the consumer in one frame
+     * @param consumer called on the FX thread with every batch
+     */
+    public FrameBatcher(int maxBatch, @NotNull Consumer<List<T>> consumer) {
+        this(maxBatch, consumer, stamp -> {});
+    }
+
+    /**
+     * @param onShown called on the FX thread after a batch with the oldest stamp of the items waiting for it
+     */
+    public FrameBatcher(int maxBatch, @NotNull Consumer<List<T>> consumer, @NotNull LongConsumer onShown) {
+        if (maxBatch <= 0)
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatch);
+        this.maxBatch = maxBatch;
+        this.consumer = consumer;
+        this.onShown = onShown;
+    }
+
+    /**
+     * Queues an item for the next frame. Can be called from any thread.
+     */
+    public void add(@NotNull T item) {
+        add(item, 0);
+    }
+
+    /**
+     * Queues an item for the next frame. Can be called from any thread.
+     *
+     * @param stamp nanoTime the item counts from, 0 for none
+     */
+    public void add(@NotNull T item, long stamp) {
+        if (stamp != 0 && stamp < oldestStamp.get())
+            oldestStamp.accumulateAndGet(stamp, Math::min);
+        queue.add(item);
+        pending.incrementAndGet();
+        if (scheduled.compareAndSet(false, true))
+            Platform.runLater(timer::start);
+    }
+
+    /**
+     * @return items waiting for a frame
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Forgets the items which weren't handed over yet
+     */
+    public void clear() {
+        while (queue.poll() != null)
+            pending.decrementAndGet();
+        oldestStamp.set(Long.MAX_VALUE);
+    }
+
+    private void drain() {
+        // Taken first: an item added meanwhile waits for the next frame at the latest, its stamp with it
+        final long oldest = oldestStamp.getAndSet(Long.MAX_VALUE);
+        var batch = new ArrayList<T>(Math.min(maxBatch, 64));
+        T item;
+        while (batch.size() < maxBatch && (item = queue.poll()) != null)
+            batch.add(item);
+        pending.addAndGet(-batch.size());
+        if (!batch.isEmpty())
+            consumer.accept(batch);
+        if (oldest != Long.MAX_VALUE) {
+            onShown.accept(oldest);
+            if (!queue.isEmpty()) // What is left isn't older, counting it from the same stamp errs on the safe side
+                oldestStamp.accumulateAndGet(oldest, Math::min);
+        }
+
+        if (queue.isEmpty()) {
+            // Stop pulsing while there's nothing to do. If something was added in the meantime,
+            // whoever added it either sees scheduled = false and restarts the timer, or we do.
+            timer.stop();
+            scheduled.set(false);
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true))
+                timer.start();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CapabilitiesTest {
+    private final List<String> sent = new ArrayList<>();
+    private final IrcLine line = new IrcLine();
+
+    @Test
+    void requestsWhatBothSidesSupportAcrossAMultiLineList() {
+        var caps = new Capabilities(sent::add, false);
+        caps.start();
+        receive(caps, ":server CAP * LS * :batch away-notify");
+        receive(caps, ":server CAP * LS :server-time=yes sasl=EXTERNAL");
+        assertEquals(List.of("CAP LS 302", "CAP REQ :batch server-time"), taken());
+
+        receive(caps, ":server CAP * ACK :batch server-time");
+        assertEquals(List.of("CAP END"), taken());
+        assertTrue(caps.isEnabled("server-time"));
+        assertFalse(caps.isEnabled("sasl"));
+    }
+
+    @Test
+    void endsRightAwayWhenThereIsNothingToAskFor() {
+        var caps = new Capabilities(sent::add, false);
+        caps.start();
+        receive(caps, ":server CAP * LS :away-notify");
+        assertEquals(List.of("CAP LS 302", "CAP END"), taken());
+    }
+
+    @Test
+    void endsWhenTheRequestIsRefused() {
+        var caps = new Capabilities(sent::add, false);
+        caps.start();
+        receive(caps, ":server CAP * LS :batch");
+        receive(caps, ":server CAP * NAK :batch");
+        assertEquals(List.of("CAP LS 302", "CAP REQ :batch", "CAP END"), taken());
+        assertFalse(caps.isEnabled("batch"));
+    }
+
+    @Test
+    void holdsTheEndBackUntilSaslIsOver() {
+        var caps = new Capabilities(sent::add, true);
+        caps.start();
+        receive(caps, ":server CAP * LS :sasl=EXTERNAL,PLAIN batch");
+        receive(caps, ":server CAP * ACK :batch sasl");
+        assertEquals(List.of("CAP LS 302", "CAP REQ :batch sasl", "AUTHENTICATE EXTERNAL"), taken());
+        caps.onAuthenticated();
+        assertEquals(List.of("CAP END"), taken());
+    }
+
+    @Test
+    void followsCapabilitiesAddedAndRemovedLater() {
+        var caps = new Capabilities(sent::add, false);
+        caps.start();
+        receive(caps, ":server CAP * LS :batch");
+        receive(caps, ":server CAP me ACK :batch");
+        taken();
+
+        receive(caps, ":server CAP me NEW :draft/chathistory sasl");
+        assertEquals(List.of("CAP REQ :draft/chathistory"), taken());
+        receive(caps, ":server CAP me ACK :draft/chathistory");
+        assertTrue(caps.hasChatHistory());
+        // Registration is over, no second CAP END
+        assertEquals(List.of(), taken());
+
+        receive(caps, ":server CAP me DEL :draft/chathistory");
+        assertFalse(caps.hasChatHistory());
+        receive(caps, ":server CAP me ACK :-batch");
+        assertFalse(caps.isEnabled("batch"));
+    }
+
+    @Test
+    void aNewLoginStartsOver() {
+        var caps = new Capabilities(sent::add, false);
+        caps.start();
+        receive(caps, ":server CAP * LS :batch");
+        receive(caps, ":server CAP * ACK :batch");
+        caps.start();
+        assertFalse(caps.isEnabled("batch"));
+        receive(caps, ":server CAP * LS :echo-message");
+        assertEquals(List.of("CAP LS 302", "CAP REQ :batch", "CAP END", "CAP LS 302", "CAP REQ :echo-message"), taken());
+    }
+
+    private void receive(Capabilities caps, String text) {
+        assertTrue(line.parse(text));
+        caps.onCap(line);
+    }
+
+    private List<String> taken() {
+        var lines = List.copyOf(sent);
+        sent.clear();
+        return lines;
+    }
+}
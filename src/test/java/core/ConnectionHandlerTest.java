@@ -0,0 +1,54 @@
+package core;
+
+import core.records.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionHandlerTest {
+    private ServerSocket server;
+    private ConnectionHandler handler;
+    private final List<Message> messages = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void connect() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        handler = new ConnectionHandler("localhost", server.getLocalPort(), "me");
+        handler.addListener((connection, message) -> messages.add(message));
+    }
+
+    @AfterEach
+    void disconnect() throws IOException {
+        handler.setAutoReconnect(false);
+        handler.disconnect();
+        server.close();
+    }
+
+    @Test
+    void showsLinesWithoutTheParametersTheirCommandNeedsAsTheyAre() {
+        for (var line : List.of(":op!u@h KICK #c", ":op!u@h KICK", ":me!u@h JOIN", ":other!u@h PART", ":me!u@h PRIVMSG")) {
+            messages.clear();
+            handler.interpretServerCommand(line);
+            assertEquals(List.of(line), messages.stream().map(Message::text).toList(), line);
+            assertEquals("SERVER", messages.get(0).sender());
+        }
+    }
+
+    @Test
+    void stillActsOnWholeLines() {
+        handler.interpretServerCommand(":op!u@h KICK #c other :bye");
+        handler.interpretServerCommand(":other!u@h PART #c :later");
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0).text().contains("other was kicked by op"));
+        assertTrue(messages.get(1).text().contains("(later)"));
+    }
+}
@@ -0,0 +1,73 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FloodControlTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void letsABurstThroughThenPacesLines() {
+        var flood = new FloodControl(3, 1, 10_000, 10_000);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, flood.tryAcquire(10, start));
+        final long wait = flood.tryAcquire(10, start);
+        assertTrue(wait > SECOND * 9 / 10 && wait <= SECOND, String.valueOf(wait));
+        // Asking again doesn't take anything
+        assertEquals(wait, flood.tryAcquire(10, start));
+        assertEquals(0, flood.tryAcquire(10, start + SECOND));
+        assertTrue(flood.tryAcquire(10, start + SECOND) > 0);
+    }
+
+    @Test
+    void refillsNoFurtherThanTheBurst() {
+        var flood = new FloodControl(2, 1, 10_000, 10_000);
+        final long start = System.nanoTime();
+        final long later = start + 60 * SECOND;
+        assertEquals(0, flood.tryAcquire(10, later));
+        assertEquals(0, flood.tryAcquire(10, later));
+        assertTrue(flood.tryAcquire(10, later) > 0);
+        // Time going backwards doesn't refill or drain anything
+        assertTrue(flood.tryAcquire(10, start) > 0);
+    }
+
+    @Test
+    void countsBytesToo() {
+        var flood = new FloodControl(100, 100, 100, 10);
+        final long start = System.nanoTime();
+        assertEquals(0, flood.tryAcquire(60, start));
+        // 40 bytes left, 20 more come in two seconds
+        final long wait = flood.tryAcquire(60, start);
+        assertTrue(wait > SECOND * 19 / 10 && wait <= 2 * SECOND, String.valueOf(wait));
+        assertEquals(0, flood.tryAcquire(60, start + 2 * SECOND));
+    }
+
+    @Test
+    void aLineLongerThanTheByteBurstNeedsAFullBucket() {
+        var flood = new FloodControl(100, 100, 100, 10);
+        final long start = System.nanoTime();
+        assertEquals(0, flood.tryAcquire(500, start));
+        assertTrue(flood.tryAcquire(500, start + 5 * SECOND) > 0);
+        assertEquals(0, flood.tryAcquire(500, start + 10 * SECOND));
+    }
+
+    @Test
+    void estimatesTheDelayOfQueuedLines() {
+        var flood = new FloodControl(5, 2, 10_000, 10_000);
+        assertEquals(0, flood.estimateDelayMillis(5));
+        final long delay = flood.estimateDelayMillis(15);
+        assertTrue(delay > 4900 && delay <= 5000, String.valueOf(delay));
+    }
+
+    @Test
+    void rejectsLimitsWhichArentPositive() {
+        assertThrows(IllegalArgumentException.class, () -> new FloodControl(0, 1, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new FloodControl(1, 1, 1, 0));
+    }
+}
@@ -0,0 +1,54 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GlobTest {
+    @Test
+    void literalMatchesOnlyTheWholeText() {
+        var glob = new Glob("nick!user@host");
+        assertTrue(glob.matches("nick!user@host"));
+        assertFalse(glob.matches("nick!user@host2"));
+        assertFalse(glob.matches("nick!user@hos"));
+    }
+
+    @Test
+    void starStandsForAnyNumberOfCharacters() {
+        var glob = new Glob("*!*@*.example.org");
+        assertTrue(glob.matches("spammer!~spam@a.b.example.org"));
+        assertTrue(glob.matches("!@.example.org"));
+        assertFalse(glob.matches("spammer!~spam@example.org"));
+        assertTrue(new Glob("*").matches(""));
+        assertTrue(new Glob("**a**").matches("a"));
+    }
+
+    @Test
+    void starBacktracksToTheLastPossibleMatch() {
+        assertTrue(new Glob("*ab*ab").matches("xabyabab"));
+        assertFalse(new Glob("*ab*ab").matches("xabyaba"));
+    }
+
+    @Test
+    void questionMarkStandsForExactlyOneCharacter() {
+        var glob = new Glob("n?ck");
+        assertTrue(glob.matches("nick"));
+        assertTrue(glob.matches("neck"));
+        assertFalse(glob.matches("nck"));
+        assertFalse(glob.matches("niick"));
+    }
+
+    @Test
+    void comparesInTheRfc1459CaseMapping() {
+        assertTrue(new Glob("NICK[away]!*@*").matches("nick{AWAY}!u@h"));
+        assertTrue(new Glob("a\\b^").matches("A|B~"));
+    }
+
+    @Test
+    void matchesAPartOfTheText() {
+        var line = ":spammer!~spam@host PRIVMSG #c :hi";
+        assertTrue(new Glob("spammer!*@*").matches(line, 1, line.indexOf(' ')));
+        assertFalse(new Glob("spammer!*@*").matches(line, 0, line.indexOf(' ')));
+    }
+}
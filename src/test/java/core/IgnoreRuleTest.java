@@ -0,0 +1,94 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IgnoreRuleTest {
+    private static final long NOW = Instant.parse("2021-06-01T12:00:00Z").toEpochMilli();
+
+    @Test
+    void readsBackWhatItWrites() {
+        for (var spec : List.of("spammer", "*!*@*.example.org PARTS,JOINS #Chan 2h",
+                "user@host CTCP until=2030-01-01T00:00:00Z", "bot!*@* messages,notices /buy (cheap|now)/")) {
+            var rule = parse(spec);
+            var again = parse(rule.toString());
+            assertEquals(rule.toString(), again.toString(), spec);
+            assertEquals(rule.getTypes(), again.getTypes());
+            assertEquals(rule.getExpiresAt(), again.getExpiresAt());
+        }
+        assertEquals("*!*@*.example.org JOINS,PARTS #Chan until=2021-06-01T14:00:00Z",
+                parse("*!*@*.example.org PARTS,JOINS #Chan 2h").toString());
+        assertEquals("bot!*@* MESSAGES,NOTICES /buy (cheap|now)/",
+                parse("bot!*@* messages,notices /buy (cheap|now)/").toString());
+    }
+
+    @Test
+    void completesTheMaskAndTypes() {
+        var nick = parse("spammer");
+        assertEquals("spammer!*@*", nick.getMask());
+        assertEquals(EnumSet.allOf(IgnoreRule.Type.class), nick.getTypes());
+        assertEquals("spammer!*@* ALL", nick.toString());
+        assertEquals("*!~u@host", parse("~u@host").getMask());
+        assertEquals(EnumSet.of(IgnoreRule.Type.CTCPS, IgnoreRule.Type.QUITS), parse("x ctcp,QUIT").getTypes());
+    }
+
+    @Test
+    void expiresAfterItsDuration() {
+        var rule = parse("spammer 90m");
+        assertEquals(NOW + Duration.ofMinutes(90).toMillis(), rule.getExpiresAt());
+        assertFalse(rule.isExpired(rule.getExpiresAt() - 1));
+        assertTrue(rule.isExpired(rule.getExpiresAt()));
+        assertFalse(parse("spammer").isExpired(Long.MAX_VALUE));
+    }
+
+    @Test
+    void rejectsWhatIsntARule() {
+        assertThrows(IllegalArgumentException.class, () -> parse(""));
+        assertThrows(IllegalArgumentException.class, () -> parse("spammer SHOUTS"));
+        assertThrows(IllegalArgumentException.class, () -> parse("spammer until=tomorrow"));
+        assertThrows(IllegalArgumentException.class, () -> parse("spammer /unclosed"));
+        assertThrows(IllegalArgumentException.class, () -> parse("spammer /(/"));
+    }
+
+    @Test
+    void matchesTheSenderChannelAndText() {
+        var rule = parse("Spam[bot]!*@* #chan /buy/");
+        var line = new IrcLine();
+        line.parse(":spam{BOT}!u@h PRIVMSG #CHAN :BUY now");
+        assertTrue(rule.matches(line, null));
+        line.parse(":spam{BOT}!u@h PRIVMSG #other :buy now");
+        assertFalse(rule.matches(line, null));
+        assertTrue(rule.matches(line, "#Chan"));
+        line.parse(":spam{BOT}!u@h PRIVMSG #chan :hello");
+        assertFalse(rule.matches(line, null));
+        line.parse(":someone!u@h PRIVMSG #chan :buy");
+        assertFalse(rule.matches(line, null));
+        assertEquals(2, rule.getHits());
+    }
+
+    @Test
+    void typesOfLines() {
+        var line = new IrcLine();
+        line.parse(":n!u@h NOTICE me :\u0001VERSION\u0001");
+        assertEquals(IgnoreRule.Type.CTCPS, IgnoreRule.Type.of(line));
+        line.parse(":n!u@h JOIN #c");
+        assertEquals(IgnoreRule.Type.JOINS, IgnoreRule.Type.of(line));
+        line.parse(":server 001 me :Welcome");
+        assertNull(IgnoreRule.Type.of(line));
+    }
+
+    private static IgnoreRule parse(String spec) {
+        return IgnoreRule.parse(Arrays.asList(spec.split(" ")), NOW);
+    }
+}
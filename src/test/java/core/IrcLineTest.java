@@ -0,0 +1,138 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IrcLineTest {
+    private final IrcLine line = new IrcLine();
+
+    @Test
+    void parsesEveryPart() {
+        assertTrue(line.parse("@time=2021-01-01T00:00:00.000Z;+draft/reply=1 :nick!~user@host PRIVMSG #channel :hello there"));
+        assertEquals("time=2021-01-01T00:00:00.000Z;+draft/reply=1", line.tags());
+        assertEquals("nick!~user@host", line.prefix());
+        assertEquals("nick", line.nick());
+        assertEquals("~user", line.user());
+        assertEquals("host", line.host());
+        assertEquals("PRIVMSG", line.command());
+        assertTrue(line.isCommand("privmsg"));
+        assertFalse(line.isNumeric());
+        assertEquals(2, line.paramCount());
+        assertEquals("#channel", line.param(0));
+        assertTrue(line.isChannel(0));
+        assertEquals("hello there", line.trailing());
+        assertTrue(line.hasTrailing());
+    }
+
+    @Test
+    void parsesNumericsAndLinesWithoutPrefix() {
+        assertTrue(line.parse(":irc.example.org 433 * nick :Nickname is already in use"));
+        assertTrue(line.isNumeric());
+        assertEquals(433, line.numeric());
+        assertEquals("irc.example.org", line.nick());
+        assertNull(line.user());
+
+        assertTrue(line.parse("PING :irc.example.org"));
+        assertFalse(line.hasPrefix());
+        assertNull(line.nick());
+        assertEquals("irc.example.org", line.trailing());
+
+        assertTrue(line.parse("1234 x"));
+        assertFalse(line.isNumeric());
+    }
+
+    @Test
+    void rejectsLinesWithoutCommand() {
+        assertFalse(line.parse(""));
+        assertFalse(line.parse(":prefix.only"));
+        assertFalse(line.parse("@a=b"));
+    }
+
+    @Test
+    void forgetsThePreviousLine() {
+        line.parse("@a=b :nick!u@h JOIN #c");
+        line.parse("QUIT");
+        assertFalse(line.hasTags());
+        assertFalse(line.hasPrefix());
+        assertEquals(0, line.paramCount());
+        assertEquals("", line.trailing());
+        assertThrows(IndexOutOfBoundsException.class, () -> line.param(0));
+    }
+
+    @Test
+    void collapsesRepeatedSpacesBetweenParameters() {
+        line.parse(":nick!u@h   MODE  #c   +o  other");
+        assertEquals("MODE", line.command());
+        assertEquals(3, line.paramCount());
+        assertEquals("other", line.param(2));
+        assertFalse(line.hasTrailing());
+    }
+
+    @Test
+    void lastParameterTakesTheRestPastTheLimit() {
+        var params = new StringBuilder("CMD");
+        for (int i = 0; i < IrcLine.MAX_PARAMS + 2; i++)
+            params.append(" p").append(i);
+        line.parse(params.toString());
+        assertEquals(IrcLine.MAX_PARAMS, line.paramCount());
+        assertEquals("p14 p15 p16", line.trailing());
+    }
+
+    @Test
+    void unescapesTagValues() {
+        line.parse("@a=one\\stwo\\:three\\\\;b;c=x\\ :n PRIVMSG #c :hi");
+        assertEquals("one two;three\\", line.tag("a"));
+        assertEquals("", line.tag("b"));
+        assertEquals("x", line.tag("c"));
+        assertNull(line.tag("d"));
+        assertNull(line.tag("on"));
+    }
+
+    @Test
+    void comparesNicksAndParametersInAnyCase() {
+        line.parse(":Nick[away]!u@h PART #Chan\\nel");
+        assertTrue(line.nickEquals("nick{AWAY}"));
+        assertFalse(line.nickEquals("nick"));
+        assertTrue(line.paramEquals(0, "#chan|NEL"));
+        assertFalse(line.paramEquals(1, "#chan|nel"));
+        assertEquals(IrcLine.key("NICK{away}"), line.nickKey());
+        assertEquals(IrcLine.key("#CHAN|nel"), line.paramKey(0));
+    }
+
+    @Test
+    void readsNumbersWithoutThrowing() {
+        line.parse(":s 005 me 42 x -1 99999999999");
+        assertEquals(42, line.intParam(1, -7));
+        assertEquals(-7, line.intParam(2, -7));
+        assertEquals(-7, line.intParam(3, -7));
+        assertEquals(-7, line.intParam(4, -7));
+        assertEquals(-7, line.intParam(9, -7));
+    }
+
+    @Test
+    void recognisesCtcp() {
+        line.parse(":n!u@h PRIVMSG #c :\u0001ACTION waves\u0001");
+        assertTrue(line.isCtcp());
+        line.parse(":n!u@h PRIVMSG #c :waves");
+        assertFalse(line.isCtcp());
+        line.parse(":n!u@h PRIVMSG #c :");
+        assertFalse(line.isCtcp());
+    }
+
+    @Test
+    void copyOutlivesTheNextParse() {
+        line.parse("@a=1 :nick!u@h PRIVMSG #c :first");
+        var copy = line.copy();
+        line.parse(":other!u@h NOTICE me x y :second");
+        assertEquals("nick", copy.nick());
+        assertEquals("first", copy.trailing());
+        assertEquals(2, copy.paramCount());
+        assertEquals("1", copy.tag("a"));
+        assertEquals("other", line.nick());
+    }
+}
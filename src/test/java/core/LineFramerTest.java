@@ -0,0 +1,110 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LineFramerTest {
+    @Test
+    void framesCrlfAndBareLfLines() {
+        var lines = frame(new LineFramer(), "PING :a\r\nPING :b\nPING :c\r\n");
+        assertEquals(List.of("PING :a", "PING :b", "PING :c"), lines);
+    }
+
+    @Test
+    void keepsAnUnfinishedLineForTheNextRead() {
+        var framer = new LineFramer();
+        assertEquals(List.of("one"), frame(framer, "one\r\ntw"));
+        assertEquals(List.of(), frame(framer, "o\r"));
+        assertEquals(List.of("two", "three"), frame(framer, "\nthree\n"));
+        assertEquals(0, framer.buffer().position());
+    }
+
+    @Test
+    void joinsCharactersSplitAcrossReads() {
+        var bytes = "PRIVMSG #c :\u0444\u6f22\ud83d\ude00\r\n".getBytes(StandardCharsets.UTF_8);
+        // Every split point, including inside the multibyte characters and between CR and LF
+        for (int split = 0; split <= bytes.length; split++) {
+            var framer = new LineFramer();
+            var channel = new ChunkedChannel(List.of(slice(bytes, 0, split), slice(bytes, split, bytes.length)));
+            var lines = new ArrayList<String>();
+            try {
+                while (framer.readFrom(channel) >= 0)
+                    framer.drain(lines::add);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            assertEquals(List.of("PRIVMSG #c :\u0444\u6f22\ud83d\ude00"), lines, "split at " + split);
+        }
+    }
+
+    @Test
+    void skipsEmptyLines() {
+        assertEquals(List.of("a", "b"), frame(new LineFramer(), "\r\n\na\r\n\r\nb\n"));
+    }
+
+    @Test
+    void passesOnALineWhichFillsTheBuffer() {
+        var framer = new LineFramer(8);
+        assertEquals(List.of("12345678"), frame(framer, "12345678"));
+        assertEquals(List.of("9"), frame(framer, "9\r\n"));
+    }
+
+    @Test
+    void forgetsTheUnfinishedLineWhenCleared() {
+        var framer = new LineFramer();
+        frame(framer, "stale");
+        framer.clear();
+        assertEquals(List.of("fresh"), frame(framer, "fresh\n"));
+    }
+
+    private static List<String> frame(LineFramer framer, String text) {
+        var lines = new ArrayList<String>();
+        framer.buffer().put(text.getBytes(StandardCharsets.UTF_8));
+        assertEquals(framer.drain(lines::add), lines.size());
+        return lines;
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        var slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    /**
+     * Gives one chunk per read, then the end of the stream
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+        private final ArrayDeque<byte[]> chunks;
+
+        ChunkedChannel(List<byte[]> chunks) {
+            this.chunks = new ArrayDeque<>(chunks);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            var chunk = chunks.poll();
+            if (chunk == null)
+                return -1;
+            dst.put(chunk);
+            return chunk.length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageSplitterTest {
+    @Test
+    void keepsTextWhichFits() {
+        assertEquals(List.of("short"), MessageSplitter.split("short", 5));
+        assertEquals(List.of(""), MessageSplitter.split("", 5));
+    }
+
+    @Test
+    void neverCutsInsideAUtf8Character() {
+        // Two, three and four bytes a character, cut at every possible limit
+        for (var text : List.of("\u0444".repeat(50), "\u6f22".repeat(50), "\ud83d\ude00".repeat(50), "a\u0444\u6f22\ud83d\ude00".repeat(20))) {
+            for (int maxBytes = 4; maxBytes <= 40; maxBytes++) {
+                var pieces = MessageSplitter.split(text, maxBytes);
+                for (var piece : pieces) {
+                    final byte[] bytes = piece.getBytes(StandardCharsets.UTF_8);
+                    assertTrue(bytes.length <= maxBytes, piece);
+                    assertTrue(bytes.length > 0);
+                    assertEquals(bytes.length, MessageSplitter.utf8Length(piece));
+                    // A cut surrogate pair or byte sequence would come back as U+FFFD
+                    assertEquals(-1, piece.indexOf('\ufffd'), piece);
+                }
+                assertEquals(text, String.join("", pieces));
+            }
+        }
+    }
+
+    @Test
+    void prefersToBreakAtASpace() {
+        var pieces = MessageSplitter.split("aaaa bbbb cccc dddd", 12);
+        assertEquals(List.of("aaaa bbbb ", "cccc dddd"), pieces);
+    }
+
+    @Test
+    void breaksInsideAWordRatherThanWastingTheLine() {
+        var pieces = MessageSplitter.split("a " + "b".repeat(30), 12);
+        assertEquals("a " + "b".repeat(10), pieces.get(0));
+        assertEquals("a " + "b".repeat(30), String.join("", pieces));
+    }
+
+    @Test
+    void countsUtf8LengthWithoutEncoding() {
+        assertEquals(0, MessageSplitter.utf8Length(""));
+        assertEquals(1 + 2 + 3 + 4, MessageSplitter.utf8Length("a\u0444\u6f22\ud83d\ude00"));
+        // A lone surrogate is replaced when it's encoded, never by more bytes than counted
+        assertTrue(MessageSplitter.utf8Length("\ud83d") >= "\ud83d".getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void linesFitWithThePrefixTheServerAdds() {
+        var lines = MessageSplitter.split("PRIVMSG", "#channel", "nick", "\u6f22\u5b57 ".repeat(400));
+        assertTrue(lines.size() > 1);
+        for (var line : lines) {
+            assertTrue(line.startsWith("PRIVMSG #channel :"));
+            final int bytes = MessageSplitter.utf8Length(line) + MessageSplitter.PREFIX_RESERVE + MessageSplitter.utf8Length("nick");
+            assertTrue(bytes <= MessageSplitter.MAX_LINE_BYTES, line);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+    @Test
+    void rejectsLinesOnceFull() {
+        var queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.REJECT, () -> {});
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals(List.of("a", "b"), drainNormal(queue));
+    }
+
+    @Test
+    void dropsTheOldestLinesOnceFull() {
+        var queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {});
+        for (var line : List.of("a", "b", "c", "d"))
+            assertTrue(queue.offer(line));
+        assertEquals(List.of("c", "d"), drainNormal(queue));
+    }
+
+    @Test
+    void queuesAllPiecesOrNoneWhenRejecting() {
+        var queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.REJECT, () -> {});
+        assertTrue(queue.offer("a"));
+        assertFalse(queue.offerAll(List.of("b", "c", "d")));
+        assertEquals(1, queue.normalSize());
+        assertTrue(queue.offerAll(List.of("b", "c")));
+        assertEquals(List.of("a", "b", "c"), drainNormal(queue));
+
+        var dropping = new OutboundQueue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST, () -> {});
+        dropping.offer("a");
+        assertTrue(dropping.offerAll(List.of("b", "c", "d")));
+        assertEquals(List.of("b", "c", "d"), drainNormal(dropping));
+    }
+
+    @Test
+    void priorityLaneIsUnboundedAndSeparate() {
+        var queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.REJECT, () -> {});
+        assertTrue(queue.offer("PRIVMSG #c :hi"));
+        for (int i = 0; i < 10; i++)
+            assertTrue(queue.offerPriority("PONG :" + i));
+        assertEquals(11, queue.size());
+        assertEquals(1, queue.normalSize());
+        assertEquals("PONG :0", queue.pollPriority());
+        queue.clearPriority();
+        assertNull(queue.pollPriority());
+        assertEquals("PRIVMSG #c :hi", queue.pollNormal());
+        assertNull(queue.pollNormal());
+    }
+
+    @Test
+    void tellsAboutAcceptedLinesOnly() {
+        var offers = new AtomicInteger();
+        var queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.REJECT, offers::incrementAndGet);
+        queue.offer("a");
+        queue.offer("b");
+        queue.offerPriority("p");
+        queue.offerAll(List.of());
+        assertEquals(2, offers.get());
+    }
+
+    @Test
+    void closedQueueRefusesLinesButGivesOutQueuedOnes() {
+        var queue = new OutboundQueue();
+        queue.offer("a");
+        queue.offerPriority("p");
+        queue.close();
+        assertFalse(queue.offer("b"));
+        assertFalse(queue.offerAll(List.of("b")));
+        assertFalse(queue.offerPriority("q"));
+        assertEquals("p", queue.pollPriority());
+        assertEquals("a", queue.pollNormal());
+    }
+
+    @Test
+    void rejectsACapacityWhichIsntPositive() {
+        assertThrows(IllegalArgumentException.class, () -> new OutboundQueue(0, OutboundQueue.OverflowPolicy.REJECT, () -> {}));
+    }
+
+    private static List<String> drainNormal(OutboundQueue queue) {
+        var lines = new ArrayList<String>();
+        for (String line; (line = queue.pollNormal()) != null; )
+            lines.add(line);
+        return lines;
+    }
+}
@@ -0,0 +1,108 @@
+package core.highlight;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeywordAutomatonTest {
+    @Test
+    void matchesWholeWordsOnly() {
+        var automaton = new KeywordAutomaton(List.of("nick"));
+        assertTrue(automaton.matches("nick"));
+        assertTrue(automaton.matches("hey nick, look"));
+        assertTrue(automaton.matches("@nick!"));
+        assertFalse(automaton.matches("nicknames"));
+        assertFalse(automaton.matches("mynick"));
+        assertFalse(automaton.matches("nick_"));
+        assertFalse(automaton.matches("ni ck"));
+    }
+
+    @Test
+    void keywordsEdgedWithOtherCharactersMatchInsideWords() {
+        var automaton = new KeywordAutomaton(List.of("c++", "#go"));
+        assertTrue(automaton.matches("I like c++"));
+        assertFalse(automaton.matches("I like objc++"));
+        assertTrue(automaton.matches("join #go!"));
+        assertFalse(automaton.matches("join #gonuts"));
+    }
+
+    @Test
+    void foldsCaseAsIrcAndUnicodeDo() {
+        var automaton = new KeywordAutomaton(List.of("Nick[away]", "\u0424\u0438\u043b"));
+        assertTrue(automaton.matches("NICK{AWAY} is here"));
+        assertTrue(automaton.matches("hi \u0444\u0418\u041b!"));
+        assertFalse(automaton.matches("nick[awa"));
+    }
+
+    @Test
+    void findsASuffixKeywordWhenTheLongerOneIsntAWholeWord() {
+        var automaton = new KeywordAutomaton(List.of("a-b-c", "b-c"));
+        // a-b-c starts inside a word here, b-c is found through the dictionary links
+        assertEquals(6, automaton.find("za-b-c"));
+        assertEquals(5, automaton.find("a-b-c"));
+        // Falls back from a-b- and finds b-c later
+        assertEquals(9, automaton.find("a-b-x b-c"));
+        assertEquals(-1, automaton.find("a-b-x"));
+    }
+
+    @Test
+    void matchesNothingWithoutKeywords() {
+        assertFalse(new KeywordAutomaton(List.of()).matches("anything"));
+        assertFalse(new KeywordAutomaton(List.of("")).matches(""));
+    }
+
+    @Test
+    void agreesWithScanningForEveryKeyword() {
+        var random = new Random(42);
+        final String alphabet = "abAB -";
+        for (int round = 0; round < 2000; round++) {
+            var keywords = new ArrayList<String>();
+            for (int k = random.nextInt(4) + 1; k > 0; k--)
+                keywords.add(randomText(random, alphabet, 1 + random.nextInt(4)));
+            final String text = randomText(random, alphabet, random.nextInt(20));
+            assertEquals(naiveFind(keywords, text), new KeywordAutomaton(keywords).find(text),
+                    () -> keywords + " in \"" + text + '"');
+        }
+    }
+
+    private static String randomText(Random random, String alphabet, int length) {
+        var text = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return text.toString();
+    }
+
+    /**
+     * @return end of the first whole-word occurrence of any keyword, by where it ends
+     */
+    private static int naiveFind(List<String> keywords, String text) {
+        for (int end = 1; end <= text.length(); end++) {
+            for (var keyword : keywords) {
+                final int start = end - keyword.length();
+                if (start < 0 || !foldedEquals(text, start, keyword))
+                    continue;
+                final boolean startOk = !KeywordAutomaton.isWordChar(keyword.charAt(0))
+                        || start == 0 || !KeywordAutomaton.isWordChar(text.charAt(start - 1));
+                final boolean endOk = !KeywordAutomaton.isWordChar(keyword.charAt(keyword.length() - 1))
+                        || end == text.length() || !KeywordAutomaton.isWordChar(text.charAt(end));
+                if (startOk && endOk)
+                    return end;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean foldedEquals(String text, int start, String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            if (KeywordAutomaton.fold(text.charAt(start + i)) != KeywordAutomaton.fold(keyword.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+package core.history;
+
+import core.records.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChatLogTest {
+    private static final int SEGMENT_BYTES = 2048;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void searchesEverySegmentOfALog() throws Exception {
+        var written = new ArrayList<Message>();
+        // Closed after every round so each one is written and indexed before the next
+        for (int round = 0; round < 6; round++) {
+            try (var log = new ChatLog(root, 1024, SEGMENT_BYTES)) {
+                for (int i = 0; i < 150; i++) {
+                    var message = message(i % 2 == 0 ? "#one" : "#Two", "nick" + i % 5,
+                            "round" + round + " line " + i + (i % 50 == 7 ? " needle" : ""), round * 1000L + i);
+                    log.append("net", message);
+                    written.add(message);
+                }
+            }
+        }
+        assertTrue(segmentCount(root.resolve("net").resolve("#one")) > 3);
+
+        try (var log = new ChatLog(root, 1024, SEGMENT_BYTES)) {
+            var needles = written.stream().filter(message -> message.text().endsWith("needle")).toList();
+            assertEquals(needles, log.search("net", query("needle"), 1000));
+            assertEquals(needles.subList(needles.size() - 5, needles.size()), log.search(null, query("needle"), 5));
+            assertEquals(written.stream().filter(message -> message.target().equals("#Two")).toList(),
+                    log.search("net", SearchQuery.parse(List.of("line", "#two")), 1000));
+            // In the order they were written, which groups the messages of a batch by channel
+            var fromNick3 = new ArrayList<>(log.search("net", query("round4", "from:NICK3"), 1000));
+            fromNick3.sort(Comparator.comparingLong(Message::timestamp));
+            assertEquals(written.stream().filter(message -> message.sender().equals("nick3")
+                    && message.text().startsWith("round4 ")).toList(), fromNick3);
+            assertEquals(List.of(), log.search("other", query("needle"), 1000));
+        }
+    }
+
+    @Test
+    void readsWhatTheWriterAppendsAfterALogWasReadOnly() throws Exception {
+        try (var log = new ChatLog(root, 1024, SEGMENT_BYTES)) {
+            log.append("net", message("#c", "a", "first", 1));
+        }
+        try (var log = new ChatLog(root, 1024, SEGMENT_BYTES)) {
+            assertEquals(List.of("first"), texts(log.readLast("net", "#c", 10)));
+            // The writer opens the log, the one read so far must not be used any more
+            log.append("net", message("#c", "b", "second", 2));
+            final long deadline = System.nanoTime() + 10_000_000_000L;
+            while (log.readLast("net", "#c", 10).size() < 2 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(List.of("first", "second"), texts(log.readLast("net", "#C", 10)));
+            assertEquals(List.of("first"), texts(log.readBefore("net", "#c", 2, 10)));
+
+            // Once the writer has closed it again it's read from the files, all of it
+            for (int i = 0; i <= ChatLog.MAX_OPEN_LOGS; i++)
+                log.append("net", message("#other" + i, "c", "text", 3));
+            final String lastOther = "#other" + ChatLog.MAX_OPEN_LOGS;
+            while (log.readLast("net", lastOther, 10).isEmpty() && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(List.of("first", "second"), texts(log.readLast("net", "#c", 10)));
+        }
+    }
+
+    private static Message message(String target, String sender, String text, long timestamp) {
+        return new Message(Message.Kind.MESSAGE, target, sender, text, timestamp);
+    }
+
+    private static SearchQuery query(String... args) {
+        return SearchQuery.parse(List.of(args));
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        return messages.stream().map(Message::text).toList();
+    }
+
+    private static long segmentCount(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(LogSegment.LOG_SUFFIX)).count();
+        }
+    }
+}
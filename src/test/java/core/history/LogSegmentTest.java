@@ -0,0 +1,197 @@
+package core.history;
+
+import core.records.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogSegmentTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        var messages = messages(500, 1000);
+        int[] positions;
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            positions = append(segment, messages);
+            assertEquals(messages, readAll(segment));
+            assertEquals(messages.get(42), segment.readRecord(positions[42], "#c"));
+            assertNull(segment.readRecord(segment.size(), "#c"));
+        }
+        // One entry for the first record and then about one every INDEX_INTERVAL bytes
+        var segment = LogSegment.open(directory, 0, false);
+        assertEquals(0, segment.indexPositions()[0]);
+        assertTrue(segment.indexPositions().length >= segment.size() / LogSegment.INDEX_INTERVAL);
+        assertEquals(messages, readAll(segment));
+        assertEquals(positions[0], segment.positionBefore(messages.get(0).timestamp()));
+        assertEquals(1000, segment.firstTimestamp());
+        assertTrue(segment.isOrdered());
+    }
+
+    @Test
+    void dropsARecordCutShortByACrash() throws IOException {
+        var messages = messages(300, 1000);
+        final int whole;
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            append(segment, messages);
+            whole = segment.size();
+        }
+        // Half of another record made it to the disk, its index entry too
+        var cut = ByteBuffer.allocate(256);
+        LogSegment.encode(message(1, 5000), cut);
+        appendBytes(logFile(), cut.flip().limit(cut.limit() / 2));
+        var entry = ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(5000).putInt(whole).flip();
+        appendBytes(indexFile(), entry);
+
+        // Read only, it's left as it is
+        var readOnly = LogSegment.open(directory, 0, true);
+        assertEquals(whole, readOnly.size());
+        assertEquals(messages, readAll(readOnly));
+        assertTrue(Files.size(logFile()) > whole);
+        assertThrows(IllegalStateException.class, () -> append(readOnly, List.of(message(2, 6000))));
+
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            assertEquals(whole, segment.size());
+            assertEquals(whole, Files.size(logFile()));
+            assertFalse(contains(segment.indexPositions(), whole));
+            append(segment, List.of(message(2, 6000)));
+            var expected = new ArrayList<>(messages);
+            expected.add(message(2, 6000));
+            assertEquals(expected, readAll(segment));
+        }
+    }
+
+    @Test
+    void rebuildsLostIndexEntries() throws IOException {
+        var messages = messages(2000, 1000);
+        int[] indexed;
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            append(segment, messages);
+            indexed = segment.indexPositions();
+        }
+        assertTrue(indexed.length > 3);
+
+        // Only the first two entries were written, then nothing at all
+        try (var channel = FileChannel.open(indexFile(), StandardOpenOption.WRITE)) {
+            channel.truncate(2 * (Long.BYTES + Integer.BYTES));
+        }
+        var segment = LogSegment.open(directory, 0, false);
+        assertArrayEquals(indexed, segment.indexPositions());
+        assertEquals(messages, readAll(segment));
+
+        Files.delete(indexFile());
+        assertArrayEquals(indexed, LogSegment.open(directory, 0, true).indexPositions());
+        assertFalse(Files.exists(indexFile()));
+        assertArrayEquals(indexed, LogSegment.open(directory, 0, false).indexPositions());
+        assertArrayEquals(indexed, LogSegment.open(directory, 0, true).indexPositions());
+    }
+
+    @Test
+    void marksItselfUnorderedByAnOlderRecord() throws IOException {
+        var unordered = directory.resolve(LogSegment.fileName(0, LogSegment.UNORDERED_SUFFIX));
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            append(segment, List.of(message(0, 100), message(1, 100), message(2, 200)));
+            assertTrue(segment.isOrdered());
+            assertFalse(Files.exists(unordered));
+            append(segment, List.of(message(3, 150)));
+            assertFalse(segment.isOrdered());
+            assertTrue(Files.exists(unordered));
+        }
+        assertFalse(LogSegment.open(directory, 0, true).isOrdered());
+
+        // Older than the last record of the previous segment
+        try (var next = LogSegment.open(directory, 1, false)) {
+            next.follow(200);
+            append(next, List.of(message(4, 199)));
+            assertFalse(next.isOrdered());
+        }
+    }
+
+    @Test
+    void keepsTheSenderAndKind() throws IOException {
+        var messages = List.of(new Message(Message.Kind.ERROR, "#c", null, "no sender", 1),
+                new Message(Message.Kind.NOTICE, "#c", "", "", 2),
+                new Message(Message.Kind.MESSAGE, "#c", "n\u00efck", "\u6f22\u5b57 \ud83d\ude00", 3));
+        try (var segment = LogSegment.open(directory, 0, false)) {
+            append(segment, messages);
+            assertEquals(messages, readAll(segment));
+        }
+    }
+
+    static Message message(int i, long timestamp) {
+        return new Message(Message.Kind.MESSAGE, "#c", "nick" + i % 13, "message number " + i + " " + "x".repeat(i % 40), timestamp);
+    }
+
+    /**
+     * @return messages sent a few milliseconds apart, some at the same time
+     */
+    static List<Message> messages(int count, long start) {
+        var messages = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++)
+            messages.add(message(i, start + i / 3 * 7L));
+        return messages;
+    }
+
+    /**
+     * @return position of every message
+     */
+    private static int[] append(LogSegment segment, List<Message> messages) throws IOException {
+        var buffer = ByteBuffer.allocate(1 << 20);
+        var timestamps = new ArrayList<Long>();
+        var offsets = new int[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            offsets[i] = buffer.position();
+            assertTrue(LogSegment.encode(messages.get(i), buffer));
+            timestamps.add(messages.get(i).timestamp());
+        }
+        final int start = segment.append(buffer.flip(), timestamps);
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] += start;
+        return offsets;
+    }
+
+    private static List<Message> readAll(LogSegment segment) throws IOException {
+        var messages = new ArrayList<Message>();
+        segment.read(0, segment.size(), "#c", messages);
+        return messages;
+    }
+
+    private static void appendBytes(Path file, ByteBuffer bytes) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+        }
+    }
+
+    private static boolean contains(int[] positions, int position) {
+        for (int p : positions) {
+            if (p == position)
+                return true;
+        }
+        return false;
+    }
+
+    private Path logFile() {
+        return directory.resolve(LogSegment.fileName(0, LogSegment.LOG_SUFFIX));
+    }
+
+    private Path indexFile() {
+        return directory.resolve(LogSegment.fileName(0, LogSegment.INDEX_SUFFIX));
+    }
+}
@@ -0,0 +1,113 @@
+package core.history;
+
+import core.records.Message;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScrollbackTest {
+    @Test
+    void evictsTheOldestMessagesPastTheCapacity() {
+        var scrollback = new Scrollback("#c", 100, Scrollback.DEFAULT_MAX_BYTES);
+        var appended = new ArrayList<Message>();
+        // Past the initial slots and around the ring a few times
+        for (int i = 0; i < 350; i++) {
+            var message = message("nick" + i % 7, "text " + i, i);
+            scrollback.append(message);
+            appended.add(message);
+            final int kept = Math.min(i + 1, 100);
+            assertEquals(kept, scrollback.size());
+            assertEquals(i + 1 - kept, scrollback.getFirstSequence());
+        }
+        assertEquals(appended.subList(250, 350), scrollback.last(1000));
+        assertEquals(appended.get(250), scrollback.get(0));
+        assertEquals(appended.subList(340, 350), scrollback.last(10));
+        assertThrows(IndexOutOfBoundsException.class, () -> scrollback.get(100));
+    }
+
+    @Test
+    void keepsTheNewestMessagesWithinTheByteLimit() {
+        final int maxBytes = 1000;
+        var random = new Random(3);
+        var scrollback = new Scrollback("#c", 10_000, maxBytes);
+        var appended = new ArrayList<Message>();
+        for (int i = 0; i < 5000; i++) {
+            var message = message("n" + random.nextInt(10), "x".repeat(random.nextInt(120)), i);
+            scrollback.append(message);
+            appended.add(message);
+
+            // Kept messages are the newest ones, in order, and the sequence numbers follow them
+            var kept = scrollback.last(Integer.MAX_VALUE);
+            assertEquals(appended.subList(appended.size() - kept.size(), appended.size()), kept);
+            assertEquals(appended.size() - kept.size(), scrollback.getFirstSequence());
+            assertTrue(bytes(kept) <= maxBytes);
+        }
+        // Wrapping around the arena may waste its end, but not more than a record or so
+        assertTrue(bytes(scrollback.last(Integer.MAX_VALUE)) > maxBytes - 2 * 130);
+    }
+
+    @Test
+    void cutsATextLongerThanTheByteLimit() {
+        var scrollback = new Scrollback("#c", 10, 16);
+        scrollback.append(message("first", "short", 1));
+        scrollback.append(message("nick", "a".repeat(40), 2));
+        assertEquals(1, scrollback.size());
+        assertEquals(message("nick", "a".repeat(12), 2), scrollback.get(0));
+        assertEquals(1, scrollback.getFirstSequence());
+    }
+
+    @Test
+    void keepsKindsAndMissingSenders() {
+        var scrollback = new Scrollback("#c", 10, 100);
+        scrollback.append(new Message(Message.Kind.ERROR, "#c", null, "oops", 5));
+        scrollback.append(new Message(Message.Kind.NOTICE, "#c", "", "empty sender", 6));
+        scrollback.append(message("nick", "", 7));
+        assertNull(scrollback.get(0).sender());
+        assertEquals(Message.Kind.ERROR, scrollback.get(0).kind());
+        assertEquals("", scrollback.get(1).sender());
+        assertEquals("", scrollback.get(2).text());
+        assertEquals(6, scrollback.lastTimestamp(Message.Kind.NOTICE, Message.Kind.ERROR));
+        assertEquals(-1, scrollback.lastTimestamp(Message.Kind.WARNING));
+    }
+
+    @Test
+    void appendsOnlyTheMissingMessages() {
+        var scrollback = new Scrollback("#c", 10, 1000);
+        scrollback.append(message("a", "one", 1));
+        scrollback.append(message("b", "two", 2));
+        var playback = List.of(message("b", "two", 2), message("c", "three", 3),
+                new Message(Message.Kind.MESSAGE, "#C", "d", "four", 4));
+        assertEquals(List.of(playback.get(1), playback.get(2)), scrollback.appendMissing(playback));
+        assertEquals(4, scrollback.size());
+        assertEquals("#c", scrollback.get(3).target());
+        assertEquals(List.of(), scrollback.appendMissing(playback));
+    }
+
+    @Test
+    void rejectsLimitsWhichArentPositive() {
+        assertThrows(IllegalArgumentException.class, () -> new Scrollback("#c", 0, 10));
+        assertThrows(IllegalArgumentException.class, () -> new Scrollback("#c", 10, 0));
+    }
+
+    private static Message message(String sender, String text, long timestamp) {
+        return new Message(Message.Kind.MESSAGE, "#c", sender, text, timestamp);
+    }
+
+    private static int bytes(List<Message> messages) {
+        int bytes = 0;
+        for (var message : messages) {
+            if (message.sender() != null)
+                bytes += message.sender().getBytes(StandardCharsets.UTF_8).length;
+            bytes += message.text().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,180 @@
+package core.history;
+
+import core.IrcLine;
+import core.records.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTest {
+    @TempDir
+    Path root;
+
+    @Test
+    void splitsTextIntoLowerCaseTerms() {
+        var terms = new ArrayList<String>();
+        SearchIndex.tokenize("Hello, WORLD! a b2 x" + "y".repeat(100) + " \u041f\u0440\u0438\u0432\u0435\u0442", terms::add);
+        assertEquals(List.of("hello", "world", "b2", "x" + "y".repeat(SearchIndex.MAX_TERM_LENGTH - 1),
+                "\u043f\u0440\u0438\u0432\u0435\u0442"), terms);
+    }
+
+    @Test
+    void findsTheLatestMessagesWithEveryTerm() throws Exception {
+        var log = new TargetLog(root.resolve("net").resolve("#c"), "#c", false);
+        var index = new SearchIndex(root);
+        index.start(List::of, (network, target) -> log);
+        // Far apart ids take several bytes in a posting list
+        var messages = new ArrayList<Message>();
+        for (int i = 0; i < 40_000; i++) {
+            final String text = (i % 3 == 0 ? "fizz " : "") + (i % 5 == 0 ? "buzz " : "") + (i % 16_411 == 0 ? "rare" : "common");
+            messages.add(new Message(Message.Kind.MESSAGE, "#c", "nick" + i % 7, text, i));
+        }
+        for (int i = 0; i < messages.size(); i += 1000)
+            append(index, log, "net", "#c", messages.subList(i, i + 1000));
+        awaitSize(index, messages.size());
+
+        assertEquals(List.of(32_822, 16_411, 0), ids(index.search(null, query("rare"), 10, Integer.MAX_VALUE)));
+        assertEquals(List.of(39_990, 39_975, 39_960), ids(index.search("NET", query("fizz", "BUZZ"), 3, Integer.MAX_VALUE)));
+        // The next page starts before the last hit
+        assertEquals(List.of(39_945, 39_930), ids(index.search("net", query("fizz", "buzz"), 2, 39_960)));
+        assertEquals(List.of(39_994, 39_987), ids(index.search("net", query("common", "from:NICK3"), 2, Integer.MAX_VALUE)));
+        assertEquals(List.of(), index.search("other", query("rare"), 10, Integer.MAX_VALUE));
+        assertEquals(List.of(), index.search(null, query("rare", "missing"), 10, Integer.MAX_VALUE));
+
+        var hit = index.search(null, query("rare"), 1, Integer.MAX_VALUE).get(0);
+        assertEquals(messages.get(32_822), log.read(hit.location()));
+        index.close();
+
+        // Saved and loaded again
+        var loaded = new SearchIndex(root);
+        assertEquals(messages.size(), loaded.size());
+        assertEquals(List.of(32_822, 16_411, 0), ids(loaded.search(null, query("rare"), 10, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    void catchesUpWithWhatTheLogHasAfterTheSavedIndex() throws Exception {
+        var directory = root.resolve("net").resolve("#c");
+        var log = new TargetLog(directory, "#c", false);
+        var index = new SearchIndex(root);
+        index.start(List::of, (network, target) -> log);
+        append(index, log, "net", "#c", messages(0, 100));
+        awaitSize(index, 100);
+        index.close();
+        // Logged while there was no index
+        log.append(encode(messages(100, 50)), timestamps(messages(100, 50)));
+        log.close();
+
+        var caughtUp = new SearchIndex(root);
+        var backlog = List.of(new SearchIndex.Backlog("net", "#c", readOnly(directory)));
+        caughtUp.start(() -> backlog, (network, target) -> readOnly(directory));
+        awaitSize(caughtUp, 150);
+        assertEquals(150, caughtUp.search(null, query("message"), 1000, Integer.MAX_VALUE).size());
+        caughtUp.close();
+
+        // Nothing is indexed twice
+        var again = new SearchIndex(root);
+        again.start(() -> backlog, (network, target) -> readOnly(directory));
+        Thread.sleep(200);
+        assertEquals(150, again.size());
+        again.close();
+    }
+
+    @Test
+    void neverHoldsTheWriterBackAndReadsDroppedMessagesFromTheLog() throws Exception {
+        var directory = root.resolve("net").resolve("#c");
+        var log = new TargetLog(directory, "#c", false);
+        var index = new SearchIndex(root);
+        // Not started yet, so nothing is taken from the queue
+        final int batches = 5000;
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            for (int i = 0; i < batches; i++)
+                append(index, log, "net", "#c", messages(i, 1));
+        });
+        index.start(List::of, (network, target) -> log);
+        awaitSize(index, batches);
+        Thread.sleep(200);
+        assertEquals(batches, index.size());
+        assertEquals(batches, index.search(null, query("message"), 2 * batches, Integer.MAX_VALUE).size());
+        index.close();
+    }
+
+    @Test
+    void tellsApartChannelsWhoseKeysAreTheSame() throws Exception {
+        assertEquals(IrcLine.key("#a@"), IrcLine.key("#B!"));
+        var first = new TargetLog(root.resolve("net").resolve("a"), "#a@", false);
+        var second = new TargetLog(root.resolve("net").resolve("b"), "#b!", false);
+        var index = new SearchIndex(root);
+        index.start(List::of, (network, target) -> target.equals("#a@") ? first : second);
+        append(index, first, "net", "#a@", messages(0, 10));
+        append(index, second, "net", "#b!", messages(10, 5));
+        awaitSize(index, 15);
+        var hits = index.search(null, query("message", "#B!"), 100, Integer.MAX_VALUE);
+        assertEquals(5, hits.size());
+        assertTrue(hits.stream().allMatch(hit -> hit.target().equals("#b!")));
+        assertEquals(10, index.search(null, query("#A@"), 100, Integer.MAX_VALUE).size());
+        index.close();
+    }
+
+    private static List<Message> messages(int first, int count) {
+        var messages = new ArrayList<Message>();
+        for (int i = first; i < first + count; i++)
+            messages.add(new Message(Message.Kind.MESSAGE, "#c", "nick", "message " + i, i));
+        return messages;
+    }
+
+    /**
+     * Writes the messages to the log and hands them to the index, like the log writer
+     */
+    private static void append(SearchIndex index, TargetLog log, String network, String target, List<Message> messages) throws IOException {
+        var buffer = ByteBuffer.allocate(1 << 20);
+        var offsets = new int[messages.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = buffer.position();
+            LogSegment.encode(messages.get(i), buffer);
+        }
+        var location = log.append(buffer.flip(), timestamps(messages));
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] += location.position();
+        index.add(network, target, location.segment(), offsets, messages);
+    }
+
+    private static ByteBuffer encode(List<Message> messages) {
+        var buffer = ByteBuffer.allocate(1 << 20);
+        for (var message : messages)
+            LogSegment.encode(message, buffer);
+        return buffer.flip();
+    }
+
+    private static List<Long> timestamps(List<Message> messages) {
+        return messages.stream().map(Message::timestamp).toList();
+    }
+
+    private static TargetLog readOnly(Path directory) throws IOException {
+        return new TargetLog(directory, "#c", true);
+    }
+
+    private static SearchQuery query(String... args) {
+        return SearchQuery.parse(List.of(args));
+    }
+
+    private static List<Integer> ids(List<SearchIndex.Hit> hits) {
+        return hits.stream().map(SearchIndex.Hit::id).toList();
+    }
+
+    private static void awaitSize(SearchIndex index, int size) throws InterruptedException {
+        final long deadline = System.nanoTime() + Duration.ofSeconds(20).toNanos();
+        while (index.size() < size && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        assertTrue(index.size() >= size, index.size() + " of " + size + " indexed");
+    }
+}
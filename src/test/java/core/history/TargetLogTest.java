@@ -0,0 +1,138 @@
+package core.history;
+
+import core.records.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static core.history.LogSegmentTest.message;
+import static core.history.LogSegmentTest.messages;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetLogTest {
+    private static final int SEGMENT_BYTES = 20_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsByTimeAcrossSegments() throws IOException {
+        var messages = messages(3000, 1000);
+        try (var log = new TargetLog(directory, "#c", false, SEGMENT_BYTES)) {
+            // A segment is only full after a write, in batches like the writer's
+            for (int i = 0; i < messages.size(); i += 100)
+                append(log, messages.subList(i, i + 100));
+            assertReadsLike(messages, log);
+        }
+        assertTrue(segmentCount() > 5);
+        assertReadsLike(messages, new TargetLog(directory, "#c", true, SEGMENT_BYTES));
+    }
+
+    @Test
+    void readsEverythingOnceTimestampsArentInOrder() throws IOException {
+        var messages = new ArrayList<>(messages(2000, 1000));
+        // History played back in the middle, older than what was logged before it
+        var random = new Random(11);
+        var played = new ArrayList<Message>();
+        for (int i = 0; i < 300; i++)
+            played.add(message(5000 + i, 1000 + random.nextInt(4000)));
+        try (var log = new TargetLog(directory, "#c", false, SEGMENT_BYTES)) {
+            for (int i = 0; i < 1000; i += 100)
+                append(log, messages.subList(i, i + 100));
+            append(log, played);
+            for (int i = 1000; i < 2000; i += 100)
+                append(log, messages.subList(i, i + 100));
+        }
+        var written = new ArrayList<>(messages.subList(0, 1000));
+        written.addAll(played);
+        written.addAll(messages.subList(1000, 2000));
+        assertReadsLike(written, new TargetLog(directory, "#c", false, SEGMENT_BYTES));
+        assertReadsLike(written, new TargetLog(directory, "#c", true, SEGMENT_BYTES));
+    }
+
+    @Test
+    void passesTheRecordsAfterALocation() throws IOException {
+        var messages = messages(1500, 1000);
+        var locations = new ArrayList<TargetLog.Location>();
+        try (var log = new TargetLog(directory, "#c", false, SEGMENT_BYTES)) {
+            for (int i = 0; i < messages.size(); i += 50)
+                locations.addAll(append(log, messages.subList(i, i + 50)));
+            for (int i : new int[]{0, 1, 777, 1498, 1499}) {
+                assertEquals(messages.get(i), log.read(locations.get(i)));
+                var after = new ArrayList<Message>();
+                var seen = new ArrayList<TargetLog.Location>();
+                log.readAfter(locations.get(i), chunk -> {
+                    after.addAll(chunk.messages());
+                    for (int position : chunk.positions())
+                        seen.add(new TargetLog.Location(chunk.segment(), position));
+                    return true;
+                });
+                assertEquals(messages.subList(i + 1, messages.size()), after);
+                assertEquals(locations.subList(i + 1, locations.size()), seen);
+            }
+            var all = new ArrayList<Message>();
+            log.readAfter(null, chunk -> all.addAll(chunk.messages()));
+            assertEquals(messages, all);
+            // Stops when asked to
+            var first = new ArrayList<Message>();
+            log.readAfter(null, chunk -> !first.addAll(chunk.messages()));
+            assertTrue(first.size() < messages.size());
+        }
+    }
+
+    private static void assertReadsLike(List<Message> written, TargetLog log) throws IOException {
+        final long first = written.stream().mapToLong(Message::timestamp).min().orElseThrow();
+        final long last = written.stream().mapToLong(Message::timestamp).max().orElseThrow();
+        for (long timestamp : new long[]{Long.MIN_VALUE, first, first + 1, (first + last) / 2, last, last + 1, Long.MAX_VALUE}) {
+            for (int count : new int[]{1, 7, 100, 100_000}) {
+                assertEquals(expectedBefore(written, timestamp, count), log.readBefore(timestamp, count), "before " + timestamp);
+                assertEquals(expectedFrom(written, timestamp, count), log.readFrom(timestamp, count), "from " + timestamp);
+            }
+        }
+    }
+
+    /**
+     * @return the messages sent before the timestamp, oldest first and in the order they were written when sent at once
+     */
+    private static List<Message> expectedBefore(List<Message> written, long timestamp, int count) {
+        var matching = new ArrayList<>(written.stream().filter(message -> message.timestamp() < timestamp).toList());
+        matching.sort(Comparator.comparingLong(Message::timestamp));
+        return matching.subList(Math.max(0, matching.size() - count), matching.size());
+    }
+
+    private static List<Message> expectedFrom(List<Message> written, long timestamp, int count) {
+        var matching = new ArrayList<>(written.stream().filter(message -> message.timestamp() >= timestamp).toList());
+        matching.sort(Comparator.comparingLong(Message::timestamp));
+        return matching.subList(0, Math.min(count, matching.size()));
+    }
+
+    private static List<TargetLog.Location> append(TargetLog log, List<Message> messages) throws IOException {
+        var buffer = ByteBuffer.allocate(1 << 20);
+        var timestamps = new ArrayList<Long>();
+        var offsets = new ArrayList<Integer>();
+        for (var message : messages) {
+            offsets.add(buffer.position());
+            assertTrue(LogSegment.encode(message, buffer));
+            timestamps.add(message.timestamp());
+        }
+        var start = log.append(buffer.flip(), timestamps);
+        var locations = new ArrayList<TargetLog.Location>();
+        for (int offset : offsets)
+            locations.add(new TargetLog.Location(start.segment(), start.position() + offset));
+        return locations;
+    }
+
+    private int segmentCount() throws IOException {
+        try (var files = java.nio.file.Files.list(directory)) {
+            return (int) files.filter(file -> file.toString().endsWith(LogSegment.LOG_SUFFIX)).count();
+        }
+    }
+}
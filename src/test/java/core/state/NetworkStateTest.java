@@ -0,0 +1,142 @@
+package core.state;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NetworkStateTest {
+    @Test
+    void memberTableAgreesWithAMapThroughGrowingAndShrinking() {
+        var random = new Random(7);
+        var users = new ArrayList<User>();
+        for (int i = 0; i < 300; i++)
+            users.add(new User("user" + i));
+        var channel = new ChannelState("#c");
+        var expected = new IdentityHashMap<User, Integer>();
+        for (int step = 0; step < 50_000; step++) {
+            // Mostly adding and then mostly removing, in turns, so the table grows and shrinks
+            final boolean adding = random.nextInt(100) < (step % 20_000 < 10_000 ? 70 : 30);
+            var user = users.get(random.nextInt(users.size()));
+            if (adding) {
+                final int modes = random.nextInt(4);
+                assertEquals(!Integer.valueOf(modes).equals(expected.get(user)), channel.put(user, modes));
+                expected.put(user, modes);
+            } else {
+                assertEquals(expected.remove(user) != null, channel.remove(user));
+            }
+            if (step % 97 == 0)
+                assertSameMembers(expected, users, channel);
+        }
+        assertSameMembers(expected, users, channel);
+    }
+
+    @Test
+    void removingKeepsTheRestOfAProbeSequenceReachable() {
+        // Twelve members in sixteen slots, so many of them aren't in their home slot
+        var users = new ArrayList<User>();
+        for (int i = 0; i < 12; i++)
+            users.add(new User("user" + i));
+        for (int removed = 0; removed < users.size(); removed++) {
+            var channel = new ChannelState("#c");
+            for (var user : users)
+                channel.put(user, 1);
+            assertTrue(channel.remove(users.get(removed)));
+            assertFalse(channel.remove(users.get(removed)));
+            for (int i = 0; i < users.size(); i++)
+                assertEquals(i == removed ? -1 : 1, channel.modes(users.get(i)), "user" + i);
+            assertEquals(users.size() - 1, channel.size());
+        }
+    }
+
+    @Test
+    void tracksJoinsAndPartsOfOurChannelsOnly() {
+        var state = new NetworkState("me");
+        assertFalse(state.join("#c", "alice", "a", "host"));
+        assertTrue(state.join("#c", "me", null, null));
+        assertTrue(state.join("#C", "Alice", "a", "host"));
+        assertFalse(state.join("#c", "alice", null, null));
+        assertEquals(2, state.getMemberCount("#c"));
+        assertTrue(state.isJoined("#C"));
+
+        assertTrue(state.part("#c", "ALICE"));
+        assertFalse(state.part("#c", "alice"));
+        assertEquals(1, state.getUserCount());
+        assertTrue(state.part("#c", "me"));
+        assertFalse(state.isJoined("#c"));
+        assertEquals(0, state.getMemberCount("#c"));
+    }
+
+    @Test
+    void quitAndRenameTouchEverySharedChannel() {
+        var state = new NetworkState("me");
+        state.join("#a", "me", null, null);
+        state.join("#b", "me", null, null);
+        state.join("#a", "bob", null, null);
+        state.join("#b", "bob", null, null);
+
+        assertEquals(Set.of("#a", "#b"), new HashSet<>(state.rename("bob", "Robert")));
+        assertEquals(List.of(), state.getChannels("bob"));
+        assertEquals("Robert", state.getMembers("#a").stream()
+                .filter(member -> !member.nick().equals("me")).findFirst().orElseThrow().nick());
+
+        assertEquals(Set.of("#a", "#b"), new HashSet<>(state.quit("robert")));
+        assertEquals(1, state.getMemberCount("#a"));
+        assertEquals(1, state.getMemberCount("#b"));
+        assertEquals(1, state.getUserCount());
+    }
+
+    @Test
+    void namesAndModesGivePrefixesAndOrder() {
+        var state = new NetworkState("me");
+        state.setPrefix("(qaohv)~&@%+");
+        state.join("#c", "me", null, null);
+        state.names("#c", "~owner @Op +voiced plain me @+both!u@h");
+        assertTrue(state.endOfNames("#c"));
+        assertEquals(List.of("~owner", "@both", "@Op", "+voiced", "me", "plain"),
+                state.getMembers("#c").stream().map(Member::toString).toList());
+        assertEquals("@+", state.getMembers("#c").get(1).prefixes());
+
+        // +b takes an argument which isn't a nick, the -o and +v ones are
+        assertTrue(state.mode("#c", "+b-o+v", List.of("*!*@spam", "op", "plain")));
+        assertEquals(List.of("~owner", "@both", "+plain", "+voiced", "me", "Op"),
+                state.getMembers("#c").stream().map(Member::toString).toList());
+        assertFalse(state.mode("#c", "+v", List.of("plain")));
+
+        // A new NAMES reply starts over
+        state.names("#c", "me other");
+        state.endOfNames("#c");
+        assertEquals(2, state.getMemberCount("#c"));
+    }
+
+    @Test
+    void handsOutTheSameSnapshotUntilTheChannelChanges() {
+        var state = new NetworkState("me");
+        state.join("#c", "me", null, null);
+        state.join("#c", "alice", null, null);
+        var first = state.getMembers("#c");
+        assertSame(first, state.getMembers("#c"));
+        state.join("#c", "bob", null, null);
+        var second = state.getMembers("#c");
+        assertEquals(3, second.size());
+        assertEquals(2, first.size());
+    }
+
+    private static void assertSameMembers(IdentityHashMap<User, Integer> expected, List<User> users, ChannelState channel) {
+        assertEquals(expected.size(), channel.size());
+        for (var user : users)
+            assertEquals(expected.getOrDefault(user, -1), channel.modes(user), user.nick);
+        var seen = new IdentityHashMap<User, Integer>();
+        channel.forEach((user, modes) -> assertEquals(null, seen.put(user, modes)));
+        assertEquals(expected, seen);
+    }
+}